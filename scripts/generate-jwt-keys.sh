@@ -1,7 +1,8 @@
 #!/bin/bash
 
-# Script to generate RSA public/private key pair for JWT signing
-# Uses ssh-keygen to generate keys
+# Script to generate a public/private key pair for JWT signing
+# Usage: generate-jwt-keys.sh [RS256|ES256]
+# RS256 (default) makes an RSA key with ssh-keygen, ES256 an EC P-256 key with openssl
 
 set -e
 
@@ -10,12 +11,15 @@ KEYS_DIR="$WORKSPACE_DIR/.secrets"
 PRIVATE_KEY="$KEYS_DIR/jwt_key"
 PUBLIC_KEY="$KEYS_DIR/jwt_key.pub"
 CONFIG_FILE="$WORKSPACE_DIR/src/main/resources/application.properties"
+ALGORITHM="${1:-RS256}"
 
-echo "Generating JWT signing keys..."
+echo "Generating $ALGORITHM JWT signing keys..."
 
 # Create keys directory if it doesn't exist
 mkdir -p "$KEYS_DIR"
 
+case "$ALGORITHM" in
+RS256)
 # Generate RSA key pair using ssh-keygen
 # -t rsa: key type
 # -b 2048: key size
@@ -35,6 +39,20 @@ echo "  Public key (X.509 PEM): $KEYS_DIR/jwt_public_key.pem"
 # Convert private key to PKCS#8 format for Java compatibility
 ssh-keygen -p -f "$PRIVATE_KEY" -m pkcs8 -N ""
 echo "  Private key converted to PKCS#8 format"
+;;
+ES256)
+# genpkey writes the private key in PKCS#8 already
+openssl genpkey -algorithm EC -pkeyopt ec_paramgen_curve:P-256 -out "$PRIVATE_KEY"
+openssl pkey -in "$PRIVATE_KEY" -pubout -out "$KEYS_DIR/jwt_public_key.pem"
+echo "Keys generated successfully:"
+echo "  Private key (PKCS#8 PEM): $PRIVATE_KEY"
+echo "  Public key (X.509 PEM): $KEYS_DIR/jwt_public_key.pem"
+;;
+*)
+echo "Unknown algorithm $ALGORITHM, expected RS256 or ES256" >&2
+exit 1
+;;
+esac
 
 # Update application.properties with key paths
 echo ""
@@ -50,10 +68,13 @@ else
 # JWT Configuration
 jwt.privateKey=$PRIVATE_KEY
 jwt.publicKey=$KEYS_DIR/jwt_public_key.pem
+jwt.algorithm=$ALGORITHM
 jwt.expirationMs=3600000
 EOF
     echo "JWT configuration added to application.properties"
 fi
+echo "When replacing an existing key, list its old public key in jwt.additionalPublicKeys"
+echo "until the tokens signed with it have expired."
 
 echo ""
 echo "Key generation complete!"
@@ -0,0 +1,54 @@
+package fi.iki.korpiq.pogrejab;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Base64;
+
+/**
+ * Writes throwaway JWT signing keys in the PEM formats JwtService reads
+ */
+final class BenchmarkKeys {
+    final Path privateKeyPath;
+    final Path publicKeyPath;
+
+    private BenchmarkKeys(Path privateKeyPath, Path publicKeyPath) {
+        this.privateKeyPath = privateKeyPath;
+        this.publicKeyPath = publicKeyPath;
+    }
+
+    static BenchmarkKeys rsa(int bits) throws IOException, NoSuchAlgorithmException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(bits);
+        return write(generator.generateKeyPair());
+    }
+
+    static BenchmarkKeys ecP256() throws IOException, GeneralSecurityException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+        return write(generator.generateKeyPair());
+    }
+
+    private static BenchmarkKeys write(KeyPair keyPair) throws IOException {
+        Path directory = Files.createTempDirectory("pogrejab-jmh-keys");
+        directory.toFile().deleteOnExit();
+        Path privateKeyPath = directory.resolve("jwt_key");
+        Path publicKeyPath = directory.resolve("jwt_public_key.pem");
+        Files.writeString(privateKeyPath, pem("PRIVATE KEY", keyPair.getPrivate().getEncoded()));
+        Files.writeString(publicKeyPath, pem("PUBLIC KEY", keyPair.getPublic().getEncoded()));
+        privateKeyPath.toFile().deleteOnExit();
+        publicKeyPath.toFile().deleteOnExit();
+        return new BenchmarkKeys(privateKeyPath, publicKeyPath);
+    }
+
+    private static String pem(String type, byte[] der) {
+        return "-----BEGIN " + type + "-----\n"
+                + Base64.getMimeEncoder(64, "\n".getBytes()).encodeToString(der)
+                + "\n-----END " + type + "-----\n";
+    }
+}
@@ -0,0 +1,46 @@
+package fi.iki.korpiq.pogrejab;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rewriting the configured JDBC URL to point at the database picked at login
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class DatabaseUrlBenchmark {
+    @Param({"jdbc:postgresql://localhost:5432/pogrejab_db", "jdbc:postgresql://db.example.com:5432/pogrejab_db?sslmode=require&ApplicationName=pogrejab"})
+    public String databaseUrl;
+
+    private DatabaseUrl parsed;
+
+    @Setup
+    public void setUp() {
+        parsed = new DatabaseUrl(databaseUrl);
+    }
+
+    @Benchmark
+    public String forDatabase() {
+        return parsed.forDatabase("customer_db");
+    }
+
+    @Benchmark
+    public String parseAndRewrite() {
+        return new DatabaseUrl(databaseUrl).forDatabase("customer_db");
+    }
+}
@@ -0,0 +1,73 @@
+package fi.iki.korpiq.pogrejab;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializing large listing payloads such as the tables of a big schema
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx512m")
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class JsonSerializationBenchmark {
+    @Param({"100", "30000"})
+    public int nameCount;
+
+    private List<String> names;
+    private final CountingOutputStream out = new CountingOutputStream();
+
+    @Setup
+    public void setUp() {
+        names = new ArrayList<>(nameCount);
+        for (int i = 0; i < nameCount; i++) {
+            names.add(i % 10 == 0 ? "taulu_\u00e4\u00f6_\"" + i + "\"" : "table_" + i);
+        }
+    }
+
+    @Benchmark
+    public long writeNameList() throws IOException {
+        try (JsonStreamWriter json = new JsonStreamWriter(out)) {
+            json.beginObject().name("tables").beginArray();
+            for (String name : names) {
+                json.value(name);
+            }
+            json.endArray().endObject();
+        }
+        return out.count;
+    }
+
+    /**
+     * Stands in for the response stream, counting bytes so the work cannot be optimized away
+     */
+    private static final class CountingOutputStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package fi.iki.korpiq.pogrejab;
+
+import com.auth0.jwt.interfaces.DecodedJWT;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token signing at login and token validation on every API call, by signing key type
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class JwtBenchmark {
+    @Param({"RS256-2048", "RS256-4096", "ES256"})
+    public String key;
+
+    private JwtService jwtService;
+    private String token;
+
+    @Setup
+    public void setUp() throws Exception {
+        String algorithm = key.substring(0, 5);
+        BenchmarkKeys keys = algorithm.equals(JwtService.ES256)
+                ? BenchmarkKeys.ecP256()
+                : BenchmarkKeys.rsa(Integer.parseInt(key.substring(6)));
+        jwtService = new JwtService(keys.privateKeyPath.toString(), keys.publicKeyPath.toString(), 3600000,
+                1024, algorithm, List.of());
+        token = jwtService.generateToken("bench_user", jwtService.generateSessionId());
+    }
+
+    @Benchmark
+    public String generateToken() {
+        return jwtService.generateToken("bench_user", "bench-session");
+    }
+
+    @Benchmark
+    public DecodedJWT validateTokenCached() {
+        return jwtService.validateToken(token);
+    }
+
+    @Benchmark
+    public DecodedJWT validateTokenUncached() {
+        // Evicting first forces the full signature verification
+        jwtService.invalidateToken(token);
+        return jwtService.validateToken(token);
+    }
+}
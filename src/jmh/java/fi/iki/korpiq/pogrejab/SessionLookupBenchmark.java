@@ -0,0 +1,60 @@
+package fi.iki.korpiq.pogrejab;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Session lookups by many request threads at once, as done by every authenticated API call
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Threads(8)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SessionLookupBenchmark {
+    @Param({"100", "10000"})
+    public int sessionCount;
+
+    private final Map<String, SessionPrincipal> sessions = new ConcurrentHashMap<>();
+    private String[] sessionIds;
+
+    @Setup
+    public void setUp() {
+        Semaphore jdbcPermits = new Semaphore(64);
+        StatementCache.Stats statementCacheStats = new StatementCache.Stats();
+        sessionIds = new String[sessionCount];
+        for (int i = 0; i < sessionCount; i++) {
+            // Pools open connections lazily, so none are made here
+            sessionIds[i] = UUID.randomUUID().toString();
+            sessions.put(sessionIds[i], new SessionPrincipal(sessionIds[i], "bench_user", "bench",
+                    new SessionConnectionPool("jdbc:postgresql://localhost/bench", "bench_user", "",
+                            "bench", 1, 4, 1000, 60000, 30000, jdbcPermits, 32, statementCacheStats)));
+        }
+    }
+
+    @Benchmark
+    public SessionPrincipal lookup() {
+        // Look the id up through a copy, as request threads parse it from their own token
+        String sessionId = new String(sessionIds[ThreadLocalRandom.current().nextInt(sessionCount)]);
+        return sessions.get(sessionId);
+    }
+}
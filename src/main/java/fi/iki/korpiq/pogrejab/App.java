@@ -1,6 +1,14 @@
 package fi.iki.korpiq.pogrejab;
 
 import io.javalin.Javalin;
+import io.javalin.compression.Brotli;
+import io.javalin.compression.CompressionStrategy;
+import io.javalin.compression.Gzip;
+import io.javalin.config.JavalinConfig;
+import io.javalin.http.Handler;
+import io.javalin.http.HandlerType;
+
+import java.util.Map;
 
 /**
  * Main application class
@@ -10,24 +18,63 @@ public class App {
     private final JwtService jwtService;
     private final LoginHandler loginHandler;
     private final DatabaseHandler databaseHandler;
+    private final TableDataHandler tableDataHandler;
+    private final CatalogHandler catalogHandler;
+    private final TableImportHandler tableImportHandler;
+    private final QueryManager queryManager;
+    private final QueryHandler queryHandler;
+    private final ExactRowCounter exactRowCounter;
+    private final TableStatsHandler tableStatsHandler;
+    private final CatalogSearch catalogSearch;
+    private final CatalogSearchHandler catalogSearchHandler;
+    private final Metrics metrics;
+    private final MetricsHandler metricsHandler;
     private Javalin app;
 
     public App() {
-        this.config = new Config();
-        this.jwtService = new JwtService(
-                config.getJwtPrivateKeyPath(),
-                config.getJwtPublicKeyPath(),
-                config.getJwtExpirationMs()
-        );
-        this.loginHandler = new LoginHandler(jwtService, config.getDatabaseUrl());
-        this.databaseHandler = new DatabaseHandler(jwtService, loginHandler);
+        this(new Config());
+    }
+
+    public App(Config config) {
+        this(config, createJwtService(config), null);
     }
 
     public App(Config config, JwtService jwtService, LoginHandler loginHandler) {
         this.config = config;
         this.jwtService = jwtService;
-        this.loginHandler = loginHandler;
-        this.databaseHandler = new DatabaseHandler(jwtService, loginHandler);
+        this.loginHandler = loginHandler != null ? loginHandler : new LoginHandler(jwtService, config);
+        this.metrics = new Metrics();
+        CatalogCache catalogCache = new CatalogCache(
+                config.getCatalogCacheMaxEntries(), config.getCatalogCacheProbeIntervalMs());
+        this.databaseHandler = new DatabaseHandler(this.loginHandler, catalogCache,
+                config.getCatalogCoalesceWindowMs(), config.getPoolMaxWaitMs(), metrics);
+        this.tableDataHandler = new TableDataHandler(
+                config.getBrowseFetchSize(), config.getBrowseMaxPageRows(), metrics);
+        this.catalogHandler = new CatalogHandler(config.getBrowseFetchSize(), metrics);
+        this.tableImportHandler = new TableImportHandler(config.getImportBatchRows(), metrics,
+                !this.loginHandler.isSharedMode());
+        this.queryManager = new QueryManager(config.getBrowseFetchSize(), config.getQueryMaxRows(),
+                config.getQueryStatementTimeoutMs(), config.getQueryResultTtlMs(), config.getQueryMaxPerSession(), metrics);
+        this.loginHandler.addSessionEndListener(queryManager::endSession);
+        this.queryHandler = new QueryHandler(queryManager, !this.loginHandler.isSharedMode());
+        this.exactRowCounter = new ExactRowCounter(config.getStatsExactCountThreads(),
+                config.getStatsExactCountTimeoutMs(), config.getStatsExactCountTtlMs(), metrics);
+        this.tableStatsHandler = new TableStatsHandler(exactRowCounter, metrics);
+        this.catalogSearch = new CatalogSearch(catalogCache, config.getPoolMaxWaitMs());
+        this.catalogSearchHandler = new CatalogSearchHandler(catalogSearch, config.getSearchMaxResults());
+        this.metricsHandler = new MetricsHandler(metrics, this.loginHandler, catalogCache,
+                databaseHandler.getListingFlights(), catalogSearch);
+    }
+
+    private static JwtService createJwtService(Config config) {
+        return new JwtService(
+                config.getJwtPrivateKeyPath(),
+                config.getJwtPublicKeyPath(),
+                config.getJwtExpirationMs(),
+                config.getJwtTokenCacheSize(),
+                config.getJwtAlgorithm(),
+                config.getJwtAdditionalPublicKeyPaths()
+        );
     }
 
     public void start() {
@@ -35,25 +82,95 @@ public class App {
     }
 
     public void start(int port) {
+        // Javalin quietly stays on platform threads where virtual ones are not available
+        if (config.isServerVirtualThreads() && Runtime.version().feature() < 21) {
+            throw new IllegalStateException("server.threads=virtual needs Java 21 or later, this is Java " + Runtime.version());
+        }
         app = Javalin.create(javalinConfig -> {
             javalinConfig.showJavalinBanner = false;
+            // Handlers block on JDBC, which ties up platform threads but is cheap on virtual ones
+            javalinConfig.useVirtualThreads = config.isServerVirtualThreads();
+            configureCompression(javalinConfig, config.getServerCompression());
+            javalinConfig.requestLogger.http((ctx, executionTimeMs) -> metrics.recordRequest(
+                    ctx.method().name(), ctx.endpointHandlerPath(), ctx.statusCode(), (long) (executionTimeMs * 1_000_000)));
         }).start(port);
+        loginHandler.start();
+
+        // Everything under a database needs a session for that database, resolved once per request
+        app.before("/api/databases/{dbName}/*", loginHandler::authenticate);
+        app.exception(SessionException.class, (e, ctx) -> ctx.status(e.getStatus()).json(Map.of("error", e.getMessage())));
 
         // Register routes
-        app.post("/api/login", loginHandler::handleLogin);
-        app.get("/api/databases", databaseHandler::handleListDatabases);
-        app.post("/api/databases", databaseHandler::handleListDatabases);
-        app.get("/api/databases/{dbName}/schemas", databaseHandler::handleListSchemas);
-        app.get("/api/databases/{dbName}/schemas/{schemaName}/tables", databaseHandler::handleListTables);
-
-        // Health check endpoint
-        app.get("/health", ctx -> ctx.result("OK"));
+        route(HandlerType.POST, "/api/login", loginHandler::handleLogin);
+        route(HandlerType.POST, "/api/logout", loginHandler::handleLogout);
+        route(HandlerType.GET, "/api/databases", databaseHandler::handleListDatabases);
+        route(HandlerType.POST, "/api/databases", databaseHandler::handleListDatabases);
+        route(HandlerType.GET, "/api/databases/{dbName}/catalog", catalogHandler::handleCatalog);
+        route(HandlerType.GET, "/api/databases/{dbName}/schemas", databaseHandler::handleListSchemas);
+        route(HandlerType.GET, "/api/databases/{dbName}/search", catalogSearchHandler::handleSearch);
+        route(HandlerType.POST, "/api/databases/{dbName}/query", queryHandler::handleSubmit);
+        route(HandlerType.GET, "/api/databases/{dbName}/query/{queryId}", queryHandler::handlePoll);
+        route(HandlerType.DELETE, "/api/databases/{dbName}/query/{queryId}", queryHandler::handleCancel);
+        route(HandlerType.GET, "/api/databases/{dbName}/schemas/{schemaName}/tables", databaseHandler::handleListTables);
+        route(HandlerType.GET, "/api/databases/{dbName}/schemas/{schemaName}/structure", databaseHandler::handleSchemaStructure);
+        route(HandlerType.GET, "/api/databases/{dbName}/schemas/{schemaName}/stats", tableStatsHandler::handleSchemaStats);
+        route(HandlerType.GET, "/api/databases/{dbName}/schemas/{schemaName}/tables/{tableName}/stats", tableStatsHandler::handleTableStats);
+        route(HandlerType.GET, "/api/databases/{dbName}/schemas/{schemaName}/tables/{tableName}/rows", tableDataHandler::handleListRows);
+        route(HandlerType.GET, "/api/databases/{dbName}/schemas/{schemaName}/tables/{tableName}/export", tableDataHandler::handleExport);
+        route(HandlerType.POST, "/api/databases/{dbName}/schemas/{schemaName}/tables/{tableName}/import", tableImportHandler::handleImport);
+        route(HandlerType.GET, "/api/databases/{dbName}/imports", tableImportHandler::handleListImports);
+
+        // Operational endpoints
+        route(HandlerType.GET, "/health", ctx -> ctx.result("OK"));
+        route(HandlerType.GET, "/metrics", metricsHandler::handleMetrics);
+    }
+
+    private static void configureCompression(JavalinConfig javalinConfig, String compression) {
+        switch (compression) {
+            case "none":
+                javalinConfig.http.disableCompression();
+                break;
+            case "brotli":
+                if (isBrotliAvailable()) {
+                    javalinConfig.http.customCompression(new CompressionStrategy(new Brotli(), new Gzip()));
+                    break;
+                }
+                System.out.println("[DEBUG_LOG] Brotli is not on the classpath, compressing with gzip only");
+                javalinConfig.http.customCompression(new CompressionStrategy(null, new Gzip()));
+                break;
+            case "gzip":
+                javalinConfig.http.customCompression(new CompressionStrategy(null, new Gzip()));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown server.compression: " + compression);
+        }
+    }
+
+    private static boolean isBrotliAvailable() {
+        try {
+            Class.forName("com.aayushatharva.brotli4j.Brotli4jLoader");
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Registers a route along with its request metrics.
+     */
+    private void route(HandlerType method, String path, Handler handler) {
+        metrics.registerRoute(method.name(), path);
+        app.addHttpHandler(method, path, handler);
     }
 
     public void stop() {
         if (app != null) {
             app.stop();
         }
+        queryManager.stop();
+        exactRowCounter.stop();
+        catalogSearch.stop();
+        loginHandler.stop();
     }
 
     public int getPort() {
@@ -64,6 +181,10 @@ public class App {
         return loginHandler;
     }
 
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
     public static void main(String[] args) {
         App app = new App();
         app.start();
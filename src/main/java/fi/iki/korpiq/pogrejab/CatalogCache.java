@@ -0,0 +1,201 @@
+package fi.iki.korpiq.pogrejab;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Caches catalog listings per database and role.
+ *
+ * Entries are tied to a fingerprint of the database's catalog, probed with one cheap query at most
+ * once per probe interval and database. DDL and GRANT/REVOKE rewrite rows of pg_class, pg_namespace,
+ * pg_auth_members, pg_constraint or pg_attrdef, which changes their row versions and therefore the
+ * fingerprint, so stale entries stop being served within one probe interval. pg_attribute is left
+ * out as too large to sum for the whole database on every probe. Listings that show columns use
+ * {@link #fingerprint(String, String, Connection)} instead, which adds a probe of the pg_attribute
+ * rows of one schema's relations, so that renaming, dropping or altering a column changes it too.
+ */
+public class CatalogCache {
+    static final String FINGERPRINT_QUERY =
+            "SELECT (SELECT count(*) || ':' || coalesce(sum(xmin::text::bigint), 0) FROM pg_class)"
+            + " || '/' || (SELECT count(*) || ':' || coalesce(sum(xmin::text::bigint), 0) FROM pg_namespace)"
+            + " || '/' || (SELECT count(*) || ':' || coalesce(sum(xmin::text::bigint), 0) FROM pg_auth_members)"
+            + " || '/' || (SELECT count(*) || ':' || coalesce(sum(xmin::text::bigint), 0) FROM pg_constraint)"
+            + " || '/' || (SELECT count(*) || ':' || coalesce(sum(xmin::text::bigint), 0) FROM pg_attrdef)";
+    static final String SCHEMA_COLUMNS_QUERY =
+            "SELECT count(*) || ':' || coalesce(sum(a.xmin::text::bigint), 0) FROM pg_attribute a "
+            + "JOIN pg_class c ON c.oid = a.attrelid JOIN pg_namespace n ON n.oid = c.relnamespace "
+            + "WHERE n.nspname = ? AND a.attnum > 0";
+
+    private final long probeIntervalMs;
+    private final Map<String, Entry> entries;
+    private final Map<String, Probe> probes = new ConcurrentHashMap<>();
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder probeCount = new LongAdder();
+
+    public CatalogCache(int maxEntries, long probeIntervalMs) {
+        this.probeIntervalMs = probeIntervalMs;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    @FunctionalInterface
+    public interface Loader<T> {
+        T load() throws SQLException;
+    }
+
+    /**
+     * Returns the cached value for the key, or loads and caches it if the fingerprint has changed since.
+     *
+     * @param role the role whose privileges the value was filtered by
+     * @param fingerprint the current fingerprint of what the value shows, from one of the fingerprint methods
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(String dbName, String role, String key, String fingerprint, Loader<T> loader) throws SQLException {
+        String cacheKey = dbName + '\u0000' + role + '\u0000' + key;
+
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(cacheKey);
+        }
+        if (entry != null && entry.fingerprint.equals(fingerprint)) {
+            hitCount.increment();
+            return (T) entry.value;
+        }
+
+        missCount.increment();
+        T value = loader.load();
+        synchronized (entries) {
+            entries.put(cacheKey, new Entry(fingerprint, value));
+        }
+        return value;
+    }
+
+    /**
+     * Returns the catalog fingerprint of the database, probing it if the last probe is older than the probe interval.
+     */
+    public String fingerprint(String dbName, Connection conn) throws SQLException {
+        return probe(dbName, conn, FINGERPRINT_QUERY, null);
+    }
+
+    /**
+     * Returns the catalog fingerprint of the database together with one of the columns of the
+     * schema's relations, probing each if its last probe is older than the probe interval.
+     */
+    public String fingerprint(String dbName, String schemaName, Connection conn) throws SQLException {
+        return fingerprint(dbName, conn) + '/' + probe(dbName + '\u0000' + schemaName, conn, SCHEMA_COLUMNS_QUERY, schemaName);
+    }
+
+    private String probe(String probeKey, Connection conn, String sql, String parameter) throws SQLException {
+        long now = System.currentTimeMillis();
+        Probe probe = probes.get(probeKey);
+        if (probe != null && now - probe.checkedAt < probeIntervalMs) {
+            return probe.fingerprint;
+        }
+
+        probeCount.increment();
+        String fingerprint;
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            if (parameter != null) {
+                stmt.setString(1, parameter);
+            }
+            try (ResultSet rs = stmt.executeQuery()) {
+                rs.next();
+                fingerprint = rs.getString(1);
+            }
+        }
+        probes.put(probeKey, new Probe(fingerprint, now));
+        return fingerprint;
+    }
+
+    /**
+     * Makes a strong entity tag for a listing, which changes whenever the catalog fingerprint does.
+     *
+     * @param resource the path and query of the listing
+     */
+    public static String entityTag(String fingerprint, String role, String resource) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest((fingerprint + '\u0000' + role + '\u0000' + resource).getBytes(StandardCharsets.UTF_8));
+            StringBuilder tag = new StringBuilder(34).append('"');
+            for (int i = 0; i < 16; i++) {
+                tag.append(Character.forDigit((hash[i] >> 4) & 0xf, 16)).append(Character.forDigit(hash[i] & 0xf, 16));
+            }
+            return tag.append('"').toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Tells whether an If-None-Match header value lists the entity tag.
+     */
+    public static boolean matchesEntityTag(String ifNoneMatch, String entityTag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            // If-None-Match compares weakly, so a weak tag of the same value matches
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*") || candidate.equals(entityTag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    public long getProbeCount() {
+        return probeCount.sum();
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private static final class Entry {
+        private final String fingerprint;
+        private final Object value;
+
+        private Entry(String fingerprint, Object value) {
+            this.fingerprint = fingerprint;
+            this.value = value;
+        }
+    }
+
+    private static final class Probe {
+        private final String fingerprint;
+        private final long checkedAt;
+
+        private Probe(String fingerprint, long checkedAt) {
+            this.fingerprint = fingerprint;
+            this.checkedAt = checkedAt;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package fi.iki.korpiq.pogrejab;
+
+import io.javalin.http.Context;
+import io.javalin.http.HttpStatus;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.Map;
+
+/**
+ * Serves the whole catalog tree of a database in one response
+ */
+public class CatalogHandler {
+    // Schemas come first in name order, each followed by its relations, so the tree can be written as rows arrive
+    static final String SCHEMAS_QUERY = "SELECT n.nspname FROM pg_namespace n "
+            + "WHERE n.nspname LIKE ? AND has_schema_privilege(?, n.oid, 'USAGE') "
+            + "ORDER BY n.nspname";
+    static final String RELATIONS_QUERY = "SELECT n.nspname, c.relname, c.relkind, "
+            + "CASE WHEN c.relkind IN ('r', 'm') THEN pg_total_relation_size(c.oid) END "
+            + "FROM pg_namespace n "
+            + "LEFT JOIN pg_class c ON c.relnamespace = n.oid AND c.relkind IN ('r', 'p', 'v', 'm', 'f') "
+            + "AND c.relname LIKE ? AND has_table_privilege(?, c.oid, 'SELECT') "
+            + "WHERE n.nspname LIKE ? AND has_schema_privilege(?, n.oid, 'USAGE') "
+            + "ORDER BY n.nspname, c.relname";
+
+    private final int fetchSize;
+    private final Metrics metrics;
+
+    public CatalogHandler(int fetchSize, Metrics metrics) {
+        this.fetchSize = fetchSize;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Streams the schemas the user may use and, unless depth is 1, the tables, views and
+     * materialized views in them the user may read, with their sizes on disk.
+     * Optional "schemaPrefix" and "prefix" query parameters filter schema and relation names.
+     */
+    public void handleCatalog(Context ctx) {
+        SessionPrincipal principal = SessionPrincipal.of(ctx);
+        String dbName = principal.getDatabaseName();
+        String username = principal.getUsername();
+        SessionPool pool = principal.getPool();
+
+        int depth;
+        try {
+            String depthParam = ctx.queryParam("depth");
+            depth = depthParam == null ? 2 : Integer.parseInt(depthParam);
+        } catch (NumberFormatException e) {
+            ctx.status(HttpStatus.BAD_REQUEST).json(Map.of("error", "depth must be a number"));
+            return;
+        }
+        if (depth < 1 || depth > 2) {
+            ctx.status(HttpStatus.BAD_REQUEST).json(Map.of("error", "depth must be 1 (schemas) or 2 (schemas and relations)"));
+            return;
+        }
+        String schemaPattern = likePrefix(ctx.queryParam("schemaPrefix"));
+        String relationPattern = likePrefix(ctx.queryParam("prefix"));
+
+        try {
+            Connection conn = pool.borrowForRead();
+            try {
+                streamCatalog(ctx, conn, dbName, username, depth, schemaPattern, relationPattern);
+            } finally {
+                pool.release(conn);
+            }
+        } catch (SQLTimeoutException e) {
+            ctx.status(HttpStatus.SERVICE_UNAVAILABLE).json(Map.of("error", "Session is busy: " + e.getMessage()));
+        } catch (SQLException e) {
+            ctx.status(HttpStatus.BAD_REQUEST).json(Map.of("error", "Reading catalog failed: " + e.getMessage()));
+        } catch (IOException e) {
+            System.out.println("[DEBUG_LOG] Writing catalog failed: " + e.getMessage());
+        }
+    }
+
+    private void streamCatalog(Context ctx, Connection conn, String dbName, String username, int depth,
+                               String schemaPattern, String relationPattern) throws SQLException, IOException {
+        boolean withRelations = depth > 1;
+
+        // A cursor only streams inside a transaction
+        conn.setAutoCommit(false);
+        try (PreparedStatement pstmt = conn.prepareStatement(withRelations ? RELATIONS_QUERY : SCHEMAS_QUERY)) {
+            pstmt.setFetchSize(fetchSize);
+            int index = 1;
+            if (withRelations) {
+                pstmt.setString(index++, relationPattern);
+                pstmt.setString(index++, username);
+            }
+            pstmt.setString(index++, schemaPattern);
+            pstmt.setString(index, username);
+
+            long queryStart = System.nanoTime();
+            try (ResultSet rs = pstmt.executeQuery()) {
+                // Later batches are fetched while writing, so that time counts as serialization
+                long serializationStart = System.nanoTime();
+                metrics.recordQuery(serializationStart - queryStart);
+
+                ctx.status(HttpStatus.OK);
+                ctx.contentType("application/json");
+                try (JsonStreamWriter json = new JsonStreamWriter(ctx.outputStream())) {
+                    json.beginObject().name("database").value(dbName).name("schemas").beginArray();
+                    String currentSchema = null;
+                    while (rs.next()) {
+                        String schema = rs.getString(1);
+                        if (!schema.equals(currentSchema)) {
+                            if (currentSchema != null) {
+                                endSchema(json, withRelations);
+                            }
+                            currentSchema = schema;
+                            json.beginObject().name("name").value(schema);
+                            if (withRelations) {
+                                json.name("relations").beginArray();
+                            }
+                        }
+                        String relation = withRelations ? rs.getString(2) : null;
+                        if (relation != null) {
+                            json.beginObject()
+                                .name("name").value(relation)
+                                .name("kind").value(relationKind(rs.getString(3)));
+                            long size = rs.getLong(4);
+                            json.name("sizeBytes");
+                            if (rs.wasNull()) {
+                                json.nullValue();
+                            } else {
+                                json.value(size);
+                            }
+                            json.endObject();
+                        }
+                    }
+                    if (currentSchema != null) {
+                        endSchema(json, withRelations);
+                    }
+                    json.endArray().endObject();
+                }
+                metrics.recordSerialization(System.nanoTime() - serializationStart);
+            }
+        } finally {
+            conn.rollback();
+            conn.setAutoCommit(true);
+        }
+    }
+
+    private static void endSchema(JsonStreamWriter json, boolean withRelations) throws IOException {
+        if (withRelations) {
+            json.endArray();
+        }
+        json.endObject();
+    }
+
+    static String relationKind(String relkind) {
+        switch (relkind) {
+            case "r":
+                return "table";
+            case "p":
+                return "partitioned_table";
+            case "v":
+                return "view";
+            case "m":
+                return "materialized_view";
+            case "f":
+                return "foreign_table";
+            default:
+                return relkind;
+        }
+    }
+
+    /**
+     * Turns a name prefix into a LIKE pattern that matches it literally.
+     */
+    static String likePrefix(String prefix) {
+        if (prefix == null) {
+            return "%";
+        }
+        return likeLiteral(prefix) + "%";
+    }
+
+    /**
+     * Turns a name into a LIKE pattern that matches only it.
+     */
+    static String likeLiteral(String name) {
+        return name.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+    }
+}
@@ -0,0 +1,117 @@
+package fi.iki.korpiq.pogrejab;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps a search index of the names in each database and searches it for sessions.
+ *
+ * An index is built on the first search of a database. When the catalog fingerprint has changed
+ * since, searches keep using the old index while a new one is built in the background, reading
+ * the columns only of relations that have changed.
+ */
+public class CatalogSearch {
+    private final CatalogCache catalogCache;
+    private final Map<String, CatalogSearchIndex> indexes = new ConcurrentHashMap<>();
+    private final SingleFlight<CatalogSearchIndex> firstBuilds;
+    private final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+    private final ExecutorService executor;
+
+    private final LongAdder buildCount = new LongAdder();
+
+    /**
+     * @param maxWaitMs how long a search waits for the first index of a database being built for another
+     */
+    public CatalogSearch(CatalogCache catalogCache, long maxWaitMs) {
+        this.catalogCache = catalogCache;
+        this.firstBuilds = new SingleFlight<>(0, maxWaitMs);
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "catalog-search-index");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void stop() {
+        executor.shutdownNow();
+        indexes.clear();
+    }
+
+    /**
+     * Finds the schemas, relations and columns of the session's database whose names contain
+     * the query and the session's role may use.
+     */
+    List<CatalogSearchIndex.Hit> search(SessionPrincipal principal, String query, int limit) throws SQLException {
+        String dbName = principal.getDatabaseName();
+        SessionPool pool = principal.getPool();
+        CatalogSearchIndex index;
+        CatalogSearchIndex.Visibility visibility;
+        Connection conn = pool.borrowForRead();
+        try {
+            String fingerprint = catalogCache.fingerprint(dbName, conn);
+            index = indexes.get(dbName);
+            if (index == null) {
+                index = firstBuilds.execute(dbName, () -> build(dbName, null, conn));
+            } else if (!index.getFingerprint().equals(fingerprint)) {
+                refresh(dbName, index, pool);
+            }
+            visibility = index.visibility(conn, principal.getUsername());
+        } finally {
+            pool.release(conn);
+        }
+        return index.search(query, limit, visibility);
+    }
+
+    private CatalogSearchIndex build(String dbName, CatalogSearchIndex previous, Connection conn) throws SQLException {
+        // The fingerprint is read first, so changes made during the build make the index stale rather than missed
+        String fingerprint = catalogCache.fingerprint(dbName, conn);
+        CatalogSearchIndex index = CatalogSearchIndex.build(conn, fingerprint, previous);
+        indexes.put(dbName, index);
+        buildCount.increment();
+        return index;
+    }
+
+    private void refresh(String dbName, CatalogSearchIndex previous, SessionPool pool) {
+        if (!refreshing.add(dbName)) {
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    Connection conn = pool.borrowForRead();
+                    try {
+                        build(dbName, previous, conn);
+                    } finally {
+                        pool.release(conn);
+                    }
+                } catch (SQLException | RuntimeException e) {
+                    System.out.println("[DEBUG_LOG] Rebuilding the search index of " + dbName + " failed: " + e.getMessage());
+                } finally {
+                    refreshing.remove(dbName);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            refreshing.remove(dbName);
+        }
+    }
+
+    public long getBuildCount() {
+        return buildCount.sum();
+    }
+
+    public long getIndexedNameCount() {
+        long count = 0;
+        for (CatalogSearchIndex index : indexes.values()) {
+            count += index.getNameCount();
+        }
+        return count;
+    }
+}
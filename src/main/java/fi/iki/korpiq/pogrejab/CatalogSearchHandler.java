@@ -0,0 +1,71 @@
+package fi.iki.korpiq.pogrejab;
+
+import io.javalin.http.Context;
+import io.javalin.http.HttpStatus;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serves search-as-you-type over the names of schemas, tables and columns
+ */
+public class CatalogSearchHandler {
+    private static final int DEFAULT_RESULTS = 20;
+
+    private final CatalogSearch catalogSearch;
+    private final int maxResults;
+
+    public CatalogSearchHandler(CatalogSearch catalogSearch, int maxResults) {
+        this.catalogSearch = catalogSearch;
+        this.maxResults = maxResults;
+    }
+
+    /**
+     * Lists the names containing the "q" query parameter, best matches first, at most "limit" of them.
+     */
+    public void handleSearch(Context ctx) {
+        SessionPrincipal principal = SessionPrincipal.of(ctx);
+        String query = ctx.queryParam("q");
+        if (query == null || query.isBlank()) {
+            ctx.status(HttpStatus.BAD_REQUEST).json(Map.of("error", "q is required"));
+            return;
+        }
+        int limit;
+        try {
+            String limitParam = ctx.queryParam("limit");
+            limit = limitParam == null ? DEFAULT_RESULTS : Integer.parseInt(limitParam);
+        } catch (NumberFormatException e) {
+            limit = 0;
+        }
+        if (limit < 1) {
+            ctx.status(HttpStatus.BAD_REQUEST).json(Map.of("error", "limit must be a positive number"));
+            return;
+        }
+
+        try {
+            List<CatalogSearchIndex.Hit> hits = catalogSearch.search(principal, query.trim(), Math.min(limit, maxResults));
+            ctx.status(HttpStatus.OK);
+            ctx.contentType("application/json");
+            try (JsonStreamWriter json = new JsonStreamWriter(ctx.outputStream())) {
+                json.beginObject().name("query").value(query.trim()).name("results").beginArray();
+                for (CatalogSearchIndex.Hit hit : hits) {
+                    json.beginObject().name("kind").value(hit.kind).name("schema").value(hit.schema);
+                    if (hit.relation != null) {
+                        json.name("table").value(hit.relation);
+                    }
+                    json.name("name").value(hit.name).endObject();
+                }
+                json.endArray().endObject();
+            }
+        } catch (SQLTimeoutException e) {
+            ctx.status(HttpStatus.SERVICE_UNAVAILABLE).json(Map.of("error", "Session is busy: " + e.getMessage()));
+        } catch (SQLException e) {
+            ctx.status(HttpStatus.INTERNAL_SERVER_ERROR).json(Map.of("error", "Searching the catalog failed: " + e.getMessage()));
+        } catch (IOException e) {
+            System.out.println("[DEBUG_LOG] Writing search results failed: " + e.getMessage());
+        }
+    }
+}
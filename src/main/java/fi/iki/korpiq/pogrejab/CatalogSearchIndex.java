@@ -0,0 +1,474 @@
+package fi.iki.korpiq.pogrejab;
+
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * An immutable search index of the schema, relation and column names of one database.
+ *
+ * The distinct names are sorted by their lowercase form, so the names starting with a prefix are
+ * a range of name ids, and each trigram of the lowercase names has a sorted list of the ids of the
+ * names containing it, so the names containing a longer query are found by intersecting a few
+ * lists. Everything is kept in primitive arrays, and the schemas, relations and columns a name
+ * stands for are a slice of one int array.
+ *
+ * The index holds every name in the database; searches only return those in schemas and
+ * relations the searching role may use, as listed once per role by {@link #visibility}.
+ */
+final class CatalogSearchIndex {
+    private static final String USER_SCHEMA = "n.nspname NOT IN ('pg_catalog', 'information_schema') "
+            + "AND n.nspname !~ '^pg_(toast|temp)'";
+    static final String SCHEMAS_QUERY = "SELECT n.oid, n.nspname FROM pg_namespace n WHERE " + USER_SCHEMA
+            + " ORDER BY n.oid";
+    // Adding, dropping, renaming or retyping a column writes a new version of its pg_attribute row,
+    // which changes the sum of the relation's attribute xmins even when its pg_class row stays as it was,
+    // so only relations whose sum has changed need their columns read again
+    static final String RELATIONS_QUERY = "SELECT c.oid, (SELECT coalesce(sum(a.xmin::text::bigint), 0) "
+            + "FROM pg_attribute a WHERE a.attrelid = c.oid AND a.attnum > 0), c.relnamespace, c.relname, c.relkind "
+            + "FROM pg_class c JOIN pg_namespace n ON n.oid = c.relnamespace "
+            + "WHERE c.relkind IN ('r', 'p', 'v', 'm', 'f') AND " + USER_SCHEMA + " ORDER BY c.oid";
+    static final String COLUMNS_QUERY = "SELECT attrelid, attname FROM pg_attribute "
+            + "WHERE attrelid = ANY(?::oid[]) AND attnum > 0 AND NOT attisdropped ORDER BY attrelid, attnum";
+    static final String VISIBLE_QUERY = "SELECT 's', n.oid FROM pg_namespace n WHERE " + USER_SCHEMA
+            + " AND has_schema_privilege(?, n.oid, 'USAGE') "
+            + "UNION ALL SELECT 'r', c.oid FROM pg_class c JOIN pg_namespace n ON n.oid = c.relnamespace "
+            + "WHERE c.relkind IN ('r', 'p', 'v', 'm', 'f') AND " + USER_SCHEMA
+            + " AND has_schema_privilege(?, n.oid, 'USAGE') AND has_any_column_privilege(?, c.oid, 'SELECT')";
+
+    private static final int MAX_CACHED_ROLES = 256;
+    private static final int SCHEMA = 0;
+    private static final int RELATION = 1;
+    private static final int COLUMN = 2;
+
+    private final String fingerprint;
+
+    private final long[] schemaOids;
+    private final String[] schemaNames;
+    private final Relation[] relations;
+    private final long[] relationOids;
+    private final int[] relationSchemas;
+
+    // Name ids index these, in order of the lowercase names
+    private final String[] names;
+    private final String[] keys;
+    // Entries of name i are entries[entryOffsets[i]] up to entries[entryOffsets[i + 1]], each (index << 2 | kind)
+    private final int[] entryOffsets;
+    private final int[] entries;
+    // Names containing trigram i are postings[postingOffsets[i]] up to postings[postingOffsets[i + 1]]
+    private final long[] trigrams;
+    private final int[] postingOffsets;
+    private final int[] postings;
+
+    private final Map<String, Visibility> visibilities = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Visibility> eldest) {
+            return size() > MAX_CACHED_ROLES;
+        }
+    };
+
+    /**
+     * Reads the names of a database, reusing the columns read for the previous index of relations
+     * that have not changed since.
+     *
+     * @param previous the index being replaced, or null
+     */
+    static CatalogSearchIndex build(Connection conn, String fingerprint, CatalogSearchIndex previous) throws SQLException {
+        List<Long> schemaOids = new ArrayList<>();
+        List<String> schemaNames = new ArrayList<>();
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(SCHEMAS_QUERY)) {
+            while (rs.next()) {
+                schemaOids.add(rs.getLong(1));
+                schemaNames.add(rs.getString(2));
+            }
+        }
+
+        List<Relation> relations = new ArrayList<>();
+        List<Long> changed = new ArrayList<>();
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(RELATIONS_QUERY)) {
+            while (rs.next()) {
+                long oid = rs.getLong(1);
+                long columnsVersion = rs.getLong(2);
+                Relation known = previous == null ? null : previous.relation(oid);
+                String[] columns = known != null && known.columnsVersion == columnsVersion ? known.columns : null;
+                if (columns == null) {
+                    changed.add(oid);
+                }
+                relations.add(new Relation(oid, columnsVersion, rs.getLong(3), rs.getString(4), rs.getString(5).charAt(0), columns));
+            }
+        }
+
+        if (!changed.isEmpty()) {
+            Map<Long, List<String>> columns = new HashMap<>();
+            Map<String, String> canonical = new HashMap<>();
+            Array oids = conn.createArrayOf("int8", changed.toArray());
+            try (PreparedStatement pstmt = conn.prepareStatement(COLUMNS_QUERY)) {
+                pstmt.setArray(1, oids);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        // Column names repeat across tables, so each distinct one is kept once
+                        String name = canonical.computeIfAbsent(rs.getString(2), n -> n);
+                        columns.computeIfAbsent(rs.getLong(1), oid -> new ArrayList<>()).add(name);
+                    }
+                }
+            } finally {
+                oids.free();
+            }
+            for (int i = 0; i < relations.size(); i++) {
+                Relation relation = relations.get(i);
+                if (relation.columns == null) {
+                    List<String> read = columns.getOrDefault(relation.oid, List.of());
+                    relations.set(i, relation.withColumns(read.toArray(new String[0])));
+                }
+            }
+        }
+
+        return new CatalogSearchIndex(fingerprint, schemaOids, schemaNames, relations);
+    }
+
+    private CatalogSearchIndex(String fingerprint, List<Long> schemaOidList, List<String> schemaNameList,
+                               List<Relation> relationList) {
+        this.fingerprint = fingerprint;
+        this.schemaOids = schemaOidList.stream().mapToLong(Long::longValue).toArray();
+        this.schemaNames = schemaNameList.toArray(new String[0]);
+
+        // A relation whose schema was created after the schemas were read is left out until the next build
+        List<Relation> kept = new ArrayList<>(relationList.size());
+        for (Relation relation : relationList) {
+            if (Arrays.binarySearch(schemaOids, relation.schemaOid) >= 0) {
+                kept.add(relation);
+            }
+        }
+        this.relations = kept.toArray(new Relation[0]);
+        this.relationOids = new long[relations.length];
+        this.relationSchemas = new int[relations.length];
+        for (int i = 0; i < relations.length; i++) {
+            relationOids[i] = relations[i].oid;
+            relationSchemas[i] = Arrays.binarySearch(schemaOids, relations[i].schemaOid);
+        }
+
+        // Entries are added schemas first, then relations, then columns, which is their order within a name
+        Map<String, IntList> entriesByName = new HashMap<>();
+        for (int i = 0; i < schemaNames.length; i++) {
+            entriesByName.computeIfAbsent(schemaNames[i], n -> new IntList()).add(i << 2 | SCHEMA);
+        }
+        for (int i = 0; i < relations.length; i++) {
+            entriesByName.computeIfAbsent(relations[i].name, n -> new IntList()).add(i << 2 | RELATION);
+        }
+        for (int i = 0; i < relations.length; i++) {
+            for (String column : relations[i].columns) {
+                entriesByName.computeIfAbsent(column, n -> new IntList()).add(i << 2 | COLUMN);
+            }
+        }
+
+        int nameCount = entriesByName.size();
+        String[] unsortedNames = entriesByName.keySet().toArray(new String[0]);
+        String[] unsortedKeys = new String[nameCount];
+        Integer[] order = new Integer[nameCount];
+        for (int i = 0; i < nameCount; i++) {
+            unsortedKeys[i] = unsortedNames[i].toLowerCase(Locale.ROOT);
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> {
+            int byKey = unsortedKeys[a].compareTo(unsortedKeys[b]);
+            return byKey != 0 ? byKey : unsortedNames[a].compareTo(unsortedNames[b]);
+        });
+
+        this.names = new String[nameCount];
+        this.keys = new String[nameCount];
+        this.entryOffsets = new int[nameCount + 1];
+        IntList entryList = new IntList();
+        Map<Long, IntList> postingsByTrigram = new HashMap<>();
+        for (int id = 0; id < nameCount; id++) {
+            names[id] = unsortedNames[order[id]];
+            keys[id] = unsortedKeys[order[id]];
+            entryList.addAll(entriesByName.get(names[id]));
+            entryOffsets[id + 1] = entryList.size;
+            for (int i = 0; i + 3 <= keys[id].length(); i++) {
+                IntList list = postingsByTrigram.computeIfAbsent(trigram(keys[id], i), t -> new IntList());
+                // Ids are added in ascending order, so a repeated trigram of the same name is the last one
+                if (list.size == 0 || list.values[list.size - 1] != id) {
+                    list.add(id);
+                }
+            }
+        }
+        this.entries = entryList.toArray();
+
+        this.trigrams = postingsByTrigram.keySet().stream().mapToLong(Long::longValue).sorted().toArray();
+        this.postingOffsets = new int[trigrams.length + 1];
+        IntList postingList = new IntList();
+        for (int i = 0; i < trigrams.length; i++) {
+            postingList.addAll(postingsByTrigram.get(trigrams[i]));
+            postingOffsets[i + 1] = postingList.size;
+        }
+        this.postings = postingList.toArray();
+    }
+
+    /**
+     * The catalog fingerprint the index was built at.
+     */
+    String getFingerprint() {
+        return fingerprint;
+    }
+
+    int getNameCount() {
+        return names.length;
+    }
+
+    /**
+     * Returns the schemas and relations the role may use, reading them from the database the
+     * first time the role searches this index.
+     */
+    Visibility visibility(Connection conn, String role) throws SQLException {
+        synchronized (visibilities) {
+            Visibility visibility = visibilities.get(role);
+            if (visibility != null) {
+                return visibility;
+            }
+        }
+
+        Visibility visibility = new Visibility(new BitSet(schemaOids.length), new BitSet(relations.length));
+        try (PreparedStatement pstmt = conn.prepareStatement(VISIBLE_QUERY)) {
+            pstmt.setString(1, role);
+            pstmt.setString(2, role);
+            pstmt.setString(3, role);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    boolean schema = "s".equals(rs.getString(1));
+                    int index = Arrays.binarySearch(schema ? schemaOids : relationOids, rs.getLong(2));
+                    // Objects created after the index was built are not in it
+                    if (index >= 0) {
+                        (schema ? visibility.schemas : visibility.relations).set(index);
+                    }
+                }
+            }
+        }
+        synchronized (visibilities) {
+            visibilities.put(role, visibility);
+        }
+        return visibility;
+    }
+
+    /**
+     * Finds up to limit visible names containing the query, ignoring case. Exact matches come
+     * first, then names starting with the query, then names with a word starting with it, each
+     * shortest first. Queries shorter than a trigram only match the starts of names.
+     */
+    List<Hit> search(String query, int limit, Visibility visibility) {
+        String key = query.toLowerCase(Locale.ROOT);
+        List<Hit> hits = new ArrayList<>(Math.min(limit, 64));
+        if (key.length() < 3) {
+            int from = lowerBound(key);
+            int to = lowerBound(key + Character.MAX_VALUE);
+            for (int id = from; id < to && hits.size() < limit; id++) {
+                collect(id, visibility, hits, limit);
+            }
+            return hits;
+        }
+
+        int[] candidates = candidates(key);
+        long[] ranked = new long[candidates.length];
+        int count = 0;
+        for (int id : candidates) {
+            String name = keys[id];
+            int position = name.indexOf(key);
+            if (position < 0) {
+                continue;
+            }
+            int rank;
+            if (position == 0) {
+                rank = name.length() == key.length() ? 0 : 1;
+            } else {
+                rank = isWordStart(name, position) || isWordStart(name, name.indexOf(key, position + 1)) ? 2 : 3;
+            }
+            ranked[count++] = (long) rank << 56 | (long) Math.min(name.length(), 0xffff) << 32 | id;
+        }
+        Arrays.sort(ranked, 0, count);
+        for (int i = 0; i < count && hits.size() < limit; i++) {
+            collect((int) ranked[i], visibility, hits, limit);
+        }
+        return hits;
+    }
+
+    private void collect(int id, Visibility visibility, List<Hit> hits, int limit) {
+        for (int i = entryOffsets[id]; i < entryOffsets[id + 1] && hits.size() < limit; i++) {
+            int kind = entries[i] & 3;
+            int index = entries[i] >>> 2;
+            if (kind == SCHEMA) {
+                if (visibility.schemas.get(index)) {
+                    hits.add(new Hit("schema", schemaNames[index], null, names[id]));
+                }
+            } else if (visibility.relations.get(index)) {
+                Relation relation = relations[index];
+                String schemaName = schemaNames[relationSchemas[index]];
+                if (kind == RELATION) {
+                    hits.add(new Hit(CatalogHandler.relationKind(String.valueOf(relation.kind)), schemaName, null, names[id]));
+                } else {
+                    hits.add(new Hit("column", schemaName, relation.name, names[id]));
+                }
+            }
+        }
+    }
+
+    /**
+     * Ids of the names that have every trigram of the key, which includes all names containing it.
+     */
+    private int[] candidates(String key) {
+        int trigramCount = key.length() - 2;
+        int[] lists = new int[trigramCount];
+        int shortest = 0;
+        for (int i = 0; i < trigramCount; i++) {
+            lists[i] = Arrays.binarySearch(trigrams, trigram(key, i));
+            if (lists[i] < 0) {
+                return new int[0];
+            }
+            if (postingLength(lists[i]) < postingLength(lists[shortest])) {
+                shortest = i;
+            }
+        }
+
+        int[] result = Arrays.copyOfRange(postings, postingOffsets[lists[shortest]], postingOffsets[lists[shortest] + 1]);
+        int count = result.length;
+        for (int i = 0; i < trigramCount && count > 0; i++) {
+            if (lists[i] == lists[shortest]) {
+                continue;
+            }
+            int from = postingOffsets[lists[i]];
+            int to = postingOffsets[lists[i] + 1];
+            int kept = 0;
+            for (int j = 0; j < count; j++) {
+                if (Arrays.binarySearch(postings, from, to, result[j]) >= 0) {
+                    result[kept++] = result[j];
+                }
+            }
+            count = kept;
+        }
+        return count == result.length ? result : Arrays.copyOf(result, count);
+    }
+
+    private int postingLength(int list) {
+        return postingOffsets[list + 1] - postingOffsets[list];
+    }
+
+    private int lowerBound(String key) {
+        int low = 0;
+        int high = keys.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (keys[middle].compareTo(key) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private Relation relation(long oid) {
+        int index = Arrays.binarySearch(relationOids, oid);
+        return index >= 0 ? relations[index] : null;
+    }
+
+    private static boolean isWordStart(String name, int position) {
+        if (position <= 0) {
+            return position == 0;
+        }
+        char before = name.charAt(position - 1);
+        return before == '_' || before == ' ' || before == '-' || before == '.';
+    }
+
+    private static long trigram(String key, int start) {
+        return (long) key.charAt(start) << 32 | (long) key.charAt(start + 1) << 16 | key.charAt(start + 2);
+    }
+
+    /**
+     * One search result
+     */
+    static final class Hit {
+        final String kind;
+        final String schema;
+        // Set for columns only
+        final String relation;
+        final String name;
+
+        private Hit(String kind, String schema, String relation, String name) {
+            this.kind = kind;
+            this.schema = schema;
+            this.relation = relation;
+            this.name = name;
+        }
+    }
+
+    /**
+     * The schemas and relations of the index one role may use
+     */
+    static final class Visibility {
+        private final BitSet schemas;
+        private final BitSet relations;
+
+        private Visibility(BitSet schemas, BitSet relations) {
+            this.schemas = schemas;
+            this.relations = relations;
+        }
+    }
+
+    private static final class Relation {
+        private final long oid;
+        // Changes whenever a column of the relation does
+        private final long columnsVersion;
+        private final long schemaOid;
+        private final String name;
+        private final char kind;
+        private final String[] columns;
+
+        private Relation(long oid, long columnsVersion, long schemaOid, String name, char kind, String[] columns) {
+            this.oid = oid;
+            this.columnsVersion = columnsVersion;
+            this.schemaOid = schemaOid;
+            this.name = name;
+            this.kind = kind;
+            this.columns = columns;
+        }
+
+        private Relation withColumns(String[] columns) {
+            return new Relation(oid, columnsVersion, schemaOid, name, kind, columns);
+        }
+    }
+
+    private static final class IntList {
+        private int[] values = new int[4];
+        private int size;
+
+        private void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        private void addAll(IntList other) {
+            if (size + other.size > values.length) {
+                values = Arrays.copyOf(values, Math.max(size + other.size, size * 2));
+            }
+            System.arraycopy(other.values, 0, values, size, other.size);
+            size += other.size;
+        }
+
+        private int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
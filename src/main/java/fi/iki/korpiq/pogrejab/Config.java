@@ -2,6 +2,8 @@ package fi.iki.korpiq.pogrejab;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 
 /**
@@ -15,6 +17,19 @@ public class Config {
         loadProperties();
     }
 
+    /**
+     * Reads a comma-separated setting, leaving out blank items. An unset setting is an empty list.
+     */
+    private List<String> getList(String key) {
+        List<String> items = new ArrayList<>();
+        for (String item : properties.getProperty(key, "").split(",")) {
+            if (!item.isBlank()) {
+                items.add(item.trim());
+            }
+        }
+        return items;
+    }
+
     private void loadProperties() {
         try (InputStream input = getClass().getClassLoader().getResourceAsStream("application.properties")) {
             if (input == null) {
@@ -38,6 +53,157 @@ public class Config {
         return System.getProperty("DB_PASSWORD", properties.getProperty("db.password"));
     }
 
+    public List<String> getDatabaseReplicaUrls() {
+        return getList("db.replicas");
+    }
+
+    public long getReplicaMaxLagMs() {
+        return Long.parseLong(properties.getProperty("db.replica.maxLagMs", "5000"));
+    }
+
+    public long getReplicaCheckIntervalMs() {
+        return Long.parseLong(properties.getProperty("db.replica.checkIntervalMs", "1000"));
+    }
+
+    public int getDatabaseMaxInFlight() {
+        return Integer.parseInt(properties.getProperty("db.maxInFlight", "64"));
+    }
+
+    public int getPoolMinSize() {
+        return Integer.parseInt(properties.getProperty("db.pool.minSize", "1"));
+    }
+
+    public int getPoolMaxSize() {
+        return Integer.parseInt(properties.getProperty("db.pool.size", "4"));
+    }
+
+    public long getPoolMaxWaitMs() {
+        return Long.parseLong(properties.getProperty("db.pool.maxWait", "30000"));
+    }
+
+    public long getPoolIdleTimeoutMs() {
+        return Long.parseLong(properties.getProperty("db.pool.idleTimeoutMs", "60000"));
+    }
+
+    public long getPoolValidationIntervalMs() {
+        return Long.parseLong(properties.getProperty("db.pool.validationIntervalMs", "30000"));
+    }
+
+    public int getPoolStatementCacheSize() {
+        return Integer.parseInt(properties.getProperty("db.pool.statementCacheSize", "32"));
+    }
+
+    public int getLoginAddressBurst() {
+        return Integer.parseInt(properties.getProperty("login.throttle.address.burst", "30"));
+    }
+
+    public long getLoginAddressIntervalMs() {
+        return Long.parseLong(properties.getProperty("login.throttle.address.intervalMs", "1000"));
+    }
+
+    public int getLoginUsernameBurst() {
+        return Integer.parseInt(properties.getProperty("login.throttle.username.burst", "10"));
+    }
+
+    public long getLoginUsernameIntervalMs() {
+        return Long.parseLong(properties.getProperty("login.throttle.username.intervalMs", "6000"));
+    }
+
+    public int getLoginMaxConcurrent() {
+        return Integer.parseInt(properties.getProperty("login.throttle.maxConcurrent", "32"));
+    }
+
+    /**
+     * Addresses of reverse proxies trusted to tell the client's address in the forwarded header
+     */
+    public List<String> getLoginTrustedProxies() {
+        return getList("login.trustedProxies");
+    }
+
+    public String getLoginForwardedHeader() {
+        return properties.getProperty("login.forwardedHeader", "X-Forwarded-For");
+    }
+
+    public String getSessionMode() {
+        return properties.getProperty("session.mode", "dedicated");
+    }
+
+    public int getSharedPoolSize() {
+        return Integer.parseInt(properties.getProperty("db.sharedPool.size", "8"));
+    }
+
+    public long getSessionIdleTimeoutMs() {
+        return Long.parseLong(properties.getProperty("session.idleTimeoutMs", "1800000"));
+    }
+
+    public long getSessionAbsoluteTimeoutMs() {
+        return Long.parseLong(properties.getProperty("session.absoluteTimeoutMs", String.valueOf(getJwtExpirationMs())));
+    }
+
+    public int getSessionMaxCount() {
+        return Integer.parseInt(properties.getProperty("session.maxCount", "1000"));
+    }
+
+    public long getSessionReaperTickMs() {
+        return Long.parseLong(properties.getProperty("session.reaperTickMs", "1000"));
+    }
+
+    public int getCatalogCacheMaxEntries() {
+        return Integer.parseInt(properties.getProperty("catalog.cache.maxEntries", "10000"));
+    }
+
+    public long getCatalogCacheProbeIntervalMs() {
+        return Long.parseLong(properties.getProperty("catalog.cache.probeIntervalMs", "2000"));
+    }
+
+    public long getCatalogCoalesceWindowMs() {
+        return Long.parseLong(properties.getProperty("catalog.coalesceWindowMs", "100"));
+    }
+
+    public int getSearchMaxResults() {
+        return Integer.parseInt(properties.getProperty("search.maxResults", "100"));
+    }
+
+    public int getBrowseFetchSize() {
+        return Integer.parseInt(properties.getProperty("browse.fetchSize", "500"));
+    }
+
+    public int getBrowseMaxPageRows() {
+        return Integer.parseInt(properties.getProperty("browse.maxPageRows", "100000"));
+    }
+
+    public int getImportBatchRows() {
+        return Integer.parseInt(properties.getProperty("import.batchRows", "50000"));
+    }
+
+    public int getQueryMaxRows() {
+        return Integer.parseInt(properties.getProperty("query.maxRows", "10000"));
+    }
+
+    public long getQueryStatementTimeoutMs() {
+        return Long.parseLong(properties.getProperty("query.statementTimeoutMs", "30000"));
+    }
+
+    public long getQueryResultTtlMs() {
+        return Long.parseLong(properties.getProperty("query.resultTtlMs", "300000"));
+    }
+
+    public int getQueryMaxPerSession() {
+        return Integer.parseInt(properties.getProperty("query.maxPerSession", "2"));
+    }
+
+    public int getStatsExactCountThreads() {
+        return Integer.parseInt(properties.getProperty("stats.exactCountThreads", "2"));
+    }
+
+    public long getStatsExactCountTimeoutMs() {
+        return Long.parseLong(properties.getProperty("stats.exactCountTimeoutMs", "10000"));
+    }
+
+    public long getStatsExactCountTtlMs() {
+        return Long.parseLong(properties.getProperty("stats.exactCountTtlMs", "300000"));
+    }
+
     public String getJwtPrivateKeyPath() {
         return System.getProperty("JWT_PRIVATE_KEY", properties.getProperty("jwt.privateKey"));
     }
@@ -50,6 +216,35 @@ public class Config {
         return Long.parseLong(properties.getProperty("jwt.expirationMs", "3600000"));
     }
 
+    public String getJwtAlgorithm() {
+        return properties.getProperty("jwt.algorithm", "RS256");
+    }
+
+    /**
+     * Public keys of earlier signing keys, whose tokens are still accepted
+     */
+    public List<String> getJwtAdditionalPublicKeyPaths() {
+        return getList("jwt.additionalPublicKeys");
+    }
+
+    public int getJwtTokenCacheSize() {
+        return Integer.parseInt(properties.getProperty("jwt.tokenCacheSize", "1024"));
+    }
+
+    /**
+     * Whether request handlers run on virtual threads instead of Jetty's platform thread pool
+     */
+    public boolean isServerVirtualThreads() {
+        return "virtual".equalsIgnoreCase(properties.getProperty("server.threads", "platform"));
+    }
+
+    /**
+     * Response compression: "gzip", "brotli" (with gzip for clients without brotli support) or "none"
+     */
+    public String getServerCompression() {
+        return properties.getProperty("server.compression", "gzip");
+    }
+
     public int getServerPort() {
         return Integer.parseInt(properties.getProperty("server.port", "8080"));
     }
@@ -1,43 +1,81 @@
 package fi.iki.korpiq.pogrejab;
 
-import com.auth0.jwt.interfaces.DecodedJWT;
 import io.javalin.http.Context;
 import io.javalin.http.HttpStatus;
-import io.javalin.http.UnauthorizedResponse;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
-import java.sql.Statement;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class DatabaseHandler {
-    private final JwtService jwtService;
+    private static final String POSTGRES_DATABASE = "postgres";
+    // How long the connection to the postgres database may take before the configured one is tried alongside it
+    private static final long FALLBACK_DELAY_MS = 250;
+    // SQLState of a wrong password
+    private static final String INVALID_PASSWORD = "28P01";
+    private static final ExecutorService CONNECT_EXECUTOR = Executors.newFixedThreadPool(4, runnable -> {
+        Thread thread = new Thread(runnable, "list-databases-connect");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // The listing queries run on every request, so they are prepared once per pooled connection
+    static final String DATABASES_QUERY = "SELECT datname FROM pg_database "
+            + "WHERE datistemplate = false AND has_database_privilege(?, datname, 'CONNECT')";
+    static final String SCHEMAS_QUERY = "SELECT nspname FROM pg_namespace WHERE has_schema_privilege(?, nspname, 'USAGE')";
+    static final String TABLES_QUERY = "SELECT tablename FROM pg_tables WHERE schemaname = ? "
+            + "AND has_table_privilege(?, quote_ident(schemaname) || '.' || quote_ident(tablename), 'SELECT')";
+
     private final LoginHandler loginHandler;
+    private final CatalogCache catalogCache;
+    private final SingleFlight<Listing> listings;
+    private final Metrics metrics;
 
-    public DatabaseHandler(JwtService jwtService, LoginHandler loginHandler) {
-        this.jwtService = jwtService;
+    /**
+     * @param coalesceWindowMs how long a finished listing is still given to identical requests
+     * @param maxWaitMs how long an identical request waits for a listing running for another
+     */
+    public DatabaseHandler(LoginHandler loginHandler, CatalogCache catalogCache, long coalesceWindowMs,
+                           long maxWaitMs, Metrics metrics) {
         this.loginHandler = loginHandler;
+        this.catalogCache = catalogCache;
+        this.listings = new SingleFlight<>(coalesceWindowMs, maxWaitMs);
+        this.metrics = metrics;
+    }
+
+    public SingleFlight<?> getListingFlights() {
+        return listings;
     }
 
     public void handleListDatabases(Context ctx) {
         String authHeader = ctx.header("Authorization");
         if (authHeader != null && authHeader.startsWith("Bearer ")) {
-            String token = authHeader.substring(7);
+            SessionPrincipal principal = loginHandler.principalFor(authHeader);
+            SessionPool pool = principal.getPool();
             try {
-                DecodedJWT decodedJWT = jwtService.validateToken(token);
-                String sessionId = decodedJWT.getClaim("sessionId").asString();
-                String username = decodedJWT.getClaim("username").asString();
-
-                Connection conn = loginHandler.getSessionConnections().get(sessionId);
-                if (conn == null || conn.isClosed()) {
-                    throw new UnauthorizedResponse("Session expired or invalid");
+                Connection conn = pool.borrowForRead();
+                try {
+                    listDatabasesForUser(ctx, pool.prepareCached(conn, DATABASES_QUERY), principal.getUsername());
+                } finally {
+                    pool.release(conn);
                 }
-
-                listDatabasesForUser(ctx, conn, username);
+            } catch (SQLTimeoutException e) {
+                ctx.status(HttpStatus.SERVICE_UNAVAILABLE).json(Map.of("error", "Session is busy: " + e.getMessage()));
             } catch (Exception e) {
-                ctx.status(HttpStatus.UNAUTHORIZED).json(Map.of("error", "Invalid token or session: " + e.getMessage()));
+                ctx.status(HttpStatus.INTERNAL_SERVER_ERROR).json(Map.of("error", "Listing databases failed: " + e.getMessage()));
             }
         } else {
             // Try with username/password from body (for initial login step)
@@ -51,27 +89,22 @@ public class DatabaseHandler {
                     return;
                 }
 
+                LoginThrottle throttle = loginHandler.getLoginThrottle();
+                if (!throttle.acquire(ctx, username)) {
+                    return;
+                }
+
                 // Temporary connection to list databases
-                String url = loginHandler.getDatabaseUrl();
                 Connection conn = null;
                 try {
-                    // Try with 'postgres' database first as it usually exists and is accessible
-                    String postgresUrl;
-                    int lastSlashIndex = url.lastIndexOf("/");
-                    int questionMarkIndex = url.indexOf("?", lastSlashIndex);
-                    if (questionMarkIndex != -1) {
-                        postgresUrl = url.substring(0, lastSlashIndex + 1) + "postgres" + url.substring(questionMarkIndex);
-                    } else {
-                        postgresUrl = url.substring(0, lastSlashIndex + 1) + "postgres";
-                    }
-                    conn = java.sql.DriverManager.getConnection(postgresUrl, username, password);
-                } catch (Exception e) {
-                    // Fallback to original URL
-                    conn = java.sql.DriverManager.getConnection(url, username, password);
+                    conn = connectForListing(loginHandler.getDatabaseUrl(), username, password);
+                } finally {
+                    throttle.release(username, conn != null);
                 }
 
-                try (Connection finalConn = conn) {
-                    listDatabasesForUser(ctx, finalConn, username);
+                try (Connection finalConn = conn;
+                     PreparedStatement pstmt = finalConn.prepareStatement(DATABASES_QUERY)) {
+                    listDatabasesForUser(ctx, pstmt, username);
                 }
             } catch (Exception e) {
                 ctx.status(HttpStatus.UNAUTHORIZED).json(Map.of("error", "Authentication failed: " + e.getMessage()));
@@ -79,110 +112,256 @@ public class DatabaseHandler {
         }
     }
 
-    private void listDatabasesForUser(Context ctx, Connection conn, String username) throws java.sql.SQLException {
-        List<String> databases = new ArrayList<>();
-        String query = "SELECT datname FROM pg_database WHERE datistemplate = false AND has_database_privilege(?, datname, 'CONNECT')";
-
-        try (java.sql.PreparedStatement pstmt = conn.prepareStatement(query)) {
-            pstmt.setString(1, username);
-            try (ResultSet rs = pstmt.executeQuery()) {
-                while (rs.next()) {
-                    databases.add(rs.getString("datname"));
-                }
+    /**
+     * Connects to the postgres database, which usually exists and is accessible, or else to the
+     * configured one. The configured one is tried only if the first attempt fails for another reason
+     * than a wrong password, or has not finished in FALLBACK_DELAY_MS, so that a login costs the
+     * server one authentication and a wrong password counts once.
+     */
+    private static Connection connectForListing(DatabaseUrl url, String username, String password) throws SQLException {
+        if (POSTGRES_DATABASE.equals(url.getDatabaseName())) {
+            return url.connect(POSTGRES_DATABASE, username, password);
+        }
+        CompletableFuture<Connection> fallback = new CompletableFuture<>();
+        AtomicBoolean fallbackStarted = new AtomicBoolean();
+        Runnable startFallback = () -> {
+            if (fallbackStarted.compareAndSet(false, true)) {
+                CONNECT_EXECUTOR.execute(() -> {
+                    try {
+                        Connection conn = url.connect(url.getDatabaseName(), username, password);
+                        if (!fallback.complete(conn)) {
+                            // Given up on meanwhile
+                            closeQuietly(conn);
+                        }
+                    } catch (SQLException | RuntimeException e) {
+                        fallback.completeExceptionally(e);
+                    }
+                });
+            }
+        };
+        CompletableFuture.delayedExecutor(FALLBACK_DELAY_MS, TimeUnit.MILLISECONDS).execute(startFallback);
+        try {
+            Connection conn = url.connect(POSTGRES_DATABASE, username, password);
+            giveUpFallback(fallbackStarted, fallback);
+            return conn;
+        } catch (SQLException e) {
+            if (INVALID_PASSWORD.equals(e.getSQLState())) {
+                giveUpFallback(fallbackStarted, fallback);
+                throw e;
+            }
+            // Not worth waiting for the rest of the delay
+            startFallback.run();
+            try {
+                return fallback.join();
+            } catch (CompletionException fallbackFailure) {
+                Throwable cause = fallbackFailure.getCause();
+                throw cause instanceof SQLException ? (SQLException) cause : new SQLException(cause);
             }
         }
-        ctx.status(HttpStatus.OK).json(Map.of("databases", databases));
     }
 
-    public void handleListSchemas(Context ctx) {
-        String authHeader = ctx.header("Authorization");
-        if (authHeader == null || !authHeader.startsWith("Bearer ")) {
-            throw new UnauthorizedResponse("Missing or invalid Authorization header");
+    /**
+     * Makes sure the fallback connection is not opened, or is closed if it already has been.
+     */
+    private static void giveUpFallback(AtomicBoolean fallbackStarted, CompletableFuture<Connection> fallback) {
+        fallbackStarted.set(true);
+        if (!fallback.cancel(false)) {
+            // Connected while the first attempt was still running
+            fallback.thenAccept(DatabaseHandler::closeQuietly);
         }
+    }
 
-        String dbName = ctx.pathParam("dbName");
-        String token = authHeader.substring(7);
+    private static void closeQuietly(Connection conn) {
         try {
-            DecodedJWT decodedJWT = jwtService.validateToken(token);
-            String sessionId = decodedJWT.getClaim("sessionId").asString();
-            String username = decodedJWT.getClaim("username").asString();
+            conn.close();
+        } catch (SQLException e) {
+            // Nothing was done with it
+        }
+    }
 
-            Connection conn = loginHandler.getSessionConnections().get(sessionId);
-            if (conn == null || conn.isClosed()) {
-                throw new UnauthorizedResponse("Session expired or invalid");
+    /**
+     * Writes the databases the user may connect to. The statement is left open for the caller.
+     */
+    private void listDatabasesForUser(Context ctx, PreparedStatement pstmt, String username) throws java.sql.SQLException, IOException {
+        pstmt.setString(1, username);
+        long queryStart = System.nanoTime();
+        try (ResultSet rs = pstmt.executeQuery()) {
+            long serializationStart = System.nanoTime();
+            metrics.recordQuery(serializationStart - queryStart);
+            ctx.status(HttpStatus.OK);
+            ctx.contentType("application/json");
+            try (JsonStreamWriter json = new JsonStreamWriter(ctx.outputStream())) {
+                json.beginObject().name("databases").beginArray()
+                    .values(rs, 1)
+                    .endArray().endObject();
             }
+            metrics.recordSerialization(System.nanoTime() - serializationStart);
+        }
+    }
 
-            // Verify the connection is to the correct database
-            if (!dbName.equals(conn.getCatalog())) {
-                ctx.status(HttpStatus.FORBIDDEN).json(Map.of("error", "Session is not associated with database " + dbName));
-                return;
+    private byte[] serializeNameList(String field, List<String> names) throws SQLException {
+        long serializationStart = System.nanoTime();
+        ByteArrayOutputStream body = new ByteArrayOutputStream(64 + 32 * names.size());
+        try (JsonStreamWriter json = new JsonStreamWriter(body)) {
+            json.beginObject().name(field).beginArray();
+            for (String name : names) {
+                json.value(name);
             }
+            json.endArray().endObject();
+        } catch (IOException e) {
+            throw new SQLException("Serializing the listing failed", e);
+        }
+        metrics.recordSerialization(System.nanoTime() - serializationStart);
+        return body.toByteArray();
+    }
 
-            List<String> schemas = new ArrayList<>();
-            // Query to list schemas that the user has USAGE privilege on
-            // We use has_schema_privilege()
-            String query = "SELECT nspname FROM pg_namespace WHERE has_schema_privilege(?, nspname, 'USAGE')";
-            
-            try (java.sql.PreparedStatement pstmt = conn.prepareStatement(query)) {
-                pstmt.setString(1, username);
-                try (ResultSet rs = pstmt.executeQuery()) {
-                    while (rs.next()) {
-                        schemas.add(rs.getString("nspname"));
-                    }
+    /**
+     * Tags a catalog listing with an entity tag derived from the catalog fingerprint, and answers
+     * 304 Not Modified without a body if the client already has that version.
+     *
+     * @return true if the response is complete
+     */
+    private boolean notModified(Context ctx, String fingerprint, String username) {
+        String query = ctx.queryString();
+        String etag = CatalogCache.entityTag(fingerprint, username, query == null ? ctx.path() : ctx.path() + '?' + query);
+        ctx.header("ETag", etag);
+        // Listings depend on the user's privileges, so only the user's own browser may keep them
+        ctx.header("Cache-Control", "private, no-cache");
+        if (CatalogCache.matchesEntityTag(ctx.header("If-None-Match"), etag)) {
+            ctx.status(HttpStatus.NOT_MODIFIED);
+            return true;
+        }
+        return false;
+    }
+
+    public void handleListSchemas(Context ctx) {
+        SessionPrincipal principal = SessionPrincipal.of(ctx);
+        String username = principal.getUsername();
+        serveListing(ctx, principal, "schemas", null, "Listing schemas failed: ", (pool, conn) -> {
+            List<String> loaded = new ArrayList<>();
+            // Cached statements stay open, only their result sets are closed
+            PreparedStatement pstmt = pool.prepareCached(conn, SCHEMAS_QUERY);
+            pstmt.setString(1, username);
+            long queryStart = System.nanoTime();
+            try (ResultSet rs = pstmt.executeQuery()) {
+                metrics.recordQuery(System.nanoTime() - queryStart);
+                while (rs.next()) {
+                    loaded.add(rs.getString("nspname"));
                 }
             }
-
-            ctx.status(HttpStatus.OK).json(Map.of("schemas", schemas));
-        } catch (Exception e) {
-            ctx.status(HttpStatus.UNAUTHORIZED).json(Map.of("error", "Invalid token or session: " + e.getMessage()));
-        }
+            return serializeNameList("schemas", loaded);
+        });
     }
 
     public void handleListTables(Context ctx) {
-        String authHeader = ctx.header("Authorization");
-        if (authHeader == null || !authHeader.startsWith("Bearer ")) {
-            throw new UnauthorizedResponse("Missing or invalid Authorization header");
-        }
+        SessionPrincipal principal = SessionPrincipal.of(ctx);
+        String schemaName = ctx.pathParam("schemaName");
+        String username = principal.getUsername();
+        serveListing(ctx, principal, "tables/" + schemaName, null, "Listing tables failed: ", (pool, conn) -> {
+            List<String> loaded = new ArrayList<>();
+            PreparedStatement pstmt = pool.prepareCached(conn, TABLES_QUERY);
+            pstmt.setString(1, schemaName);
+            pstmt.setString(2, username);
+            long queryStart = System.nanoTime();
+            try (ResultSet rs = pstmt.executeQuery()) {
+                metrics.recordQuery(System.nanoTime() - queryStart);
+                while (rs.next()) {
+                    loaded.add(rs.getString("tablename"));
+                }
+            }
+            return serializeNameList("tables", loaded);
+        });
+    }
 
-        String dbName = ctx.pathParam("dbName");
+    /**
+     * Responds with the columns, constraints and indexes of the relations in a schema the user may read.
+     */
+    public void handleSchemaStructure(Context ctx) {
+        SessionPrincipal principal = SessionPrincipal.of(ctx);
         String schemaName = ctx.pathParam("schemaName");
-        String token = authHeader.substring(7);
-        try {
-            DecodedJWT decodedJWT = jwtService.validateToken(token);
-            String sessionId = decodedJWT.getClaim("sessionId").asString();
-            String username = decodedJWT.getClaim("username").asString();
+        serveListing(ctx, principal, "structure/" + schemaName, schemaName, "Reading the schema structure failed: ",
+                (pool, conn) -> SchemaStructure.load(pool, conn, schemaName, principal.getUsername(), metrics));
+    }
 
-            Connection conn = loginHandler.getSessionConnections().get(sessionId);
-            if (conn == null || conn.isClosed()) {
-                throw new UnauthorizedResponse("Session expired or invalid");
+    /**
+     * Responds with a catalog listing of the session's database, cached until the catalog changes.
+     * Identical listings requested for the same role at the same time share one catalog lookup.
+     *
+     * @param key what is listed, unique within the database and role
+     * @param columnsOf the schema whose columns the listing shows, or null if it shows none
+     */
+    private void serveListing(Context ctx, SessionPrincipal principal, String key, String columnsOf, String failure,
+                              ListingQuery query) {
+        String dbName = principal.getDatabaseName();
+        String username = principal.getUsername();
+        SessionPool pool = principal.getPool();
+        try {
+            if (ctx.header("If-None-Match") != null) {
+                // A client revalidating its copy is answered from the fingerprint alone when it is current
+                Connection conn = pool.borrowForRead();
+                String fingerprint;
+                try {
+                    fingerprint = fingerprint(dbName, columnsOf, conn);
+                } finally {
+                    pool.release(conn);
+                }
+                if (notModified(ctx, fingerprint, username)) {
+                    return;
+                }
             }
 
-            // Ensure we are connected to the correct database
-            if (!dbName.equals(conn.getCatalog())) {
-                ctx.status(HttpStatus.FORBIDDEN).json(Map.of("error", "Session is not associated with database " + dbName));
+            Listing listing = listings.execute(dbName + '\u0000' + username + '\u0000' + key, () -> {
+                Connection conn = pool.borrowForRead();
+                try {
+                    String fingerprint = fingerprint(dbName, columnsOf, conn);
+                    byte[] body = catalogCache.get(dbName, username, key, fingerprint, () -> query.load(pool, conn));
+                    return new Listing(fingerprint, body);
+                } finally {
+                    pool.release(conn);
+                }
+            });
+
+            if (notModified(ctx, listing.fingerprint, username)) {
                 return;
             }
+            ctx.status(HttpStatus.OK);
+            ctx.contentType("application/json");
+            ctx.result(listing.body);
+        } catch (SQLTimeoutException e) {
+            ctx.status(HttpStatus.SERVICE_UNAVAILABLE).json(Map.of("error", "Session is busy: " + e.getMessage()));
+        } catch (Exception e) {
+            ctx.status(HttpStatus.INTERNAL_SERVER_ERROR).json(Map.of("error", failure + e.getMessage()));
+        }
+    }
 
-            List<String> tables = new ArrayList<>();
-            // Query to list tables in the given schema that the user has SELECT privilege on
-            // We use has_table_privilege()
-            // In Postgres, tables are in pg_class, joined with pg_namespace for schema name.
-            // Relkind 'r' is for ordinary tables.
-            String query = "SELECT tablename FROM pg_tables WHERE schemaname = ? AND has_table_privilege(?, quote_ident(schemaname) || '.' || quote_ident(tablename), 'SELECT')";
-
-            try (java.sql.PreparedStatement pstmt = conn.prepareStatement(query)) {
-                pstmt.setString(1, schemaName);
-                pstmt.setString(2, username);
-                try (ResultSet rs = pstmt.executeQuery()) {
-                    while (rs.next()) {
-                        tables.add(rs.getString("tablename"));
-                    }
-                }
-            }
+    /**
+     * The catalog fingerprint of the database, including the columns of the schema if the listing shows them.
+     * Probes run at most once per probe interval, so asking again within it costs no query.
+     */
+    private String fingerprint(String dbName, String columnsOf, Connection conn) throws SQLException {
+        return columnsOf == null
+                ? catalogCache.fingerprint(dbName, conn)
+                : catalogCache.fingerprint(dbName, columnsOf, conn);
+    }
 
-            ctx.status(HttpStatus.OK).json(Map.of("tables", tables));
-        } catch (Exception e) {
-            ctx.status(HttpStatus.UNAUTHORIZED).json(Map.of("error", "Invalid token or session: " + e.getMessage()));
+    /**
+     * Reads a listing and serializes it as JSON
+     */
+    @FunctionalInterface
+    private interface ListingQuery {
+        byte[] load(SessionPool pool, Connection conn) throws SQLException;
+    }
+
+    /**
+     * A serialized listing and the catalog fingerprint it was read at
+     */
+    private static final class Listing {
+        private final String fingerprint;
+        private final byte[] body;
+
+        private Listing(String fingerprint, byte[] body) {
+            this.fingerprint = fingerprint;
+            this.body = body;
         }
     }
 }
@@ -0,0 +1,69 @@
+package fi.iki.korpiq.pogrejab;
+
+import org.postgresql.Driver;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Properties;
+
+/**
+ * The configured JDBC URL, split once around its database name so that URLs for other
+ * databases on the same server are made by concatenation.
+ *
+ * Connections are opened with the PostgreSQL driver directly rather than through
+ * DriverManager, which would try every registered driver on each call.
+ */
+public final class DatabaseUrl {
+    private static final Driver DRIVER = new Driver();
+
+    private final String prefix;
+    private final String databaseName;
+    private final String suffix;
+
+    public DatabaseUrl(String url) {
+        // e.g. jdbc:postgresql://host:port/dbname?param=value
+        int lastSlashIndex = url.lastIndexOf("/");
+        int questionMarkIndex = url.indexOf("?", lastSlashIndex);
+        int end = questionMarkIndex != -1 ? questionMarkIndex : url.length();
+        this.prefix = url.substring(0, lastSlashIndex + 1);
+        this.databaseName = url.substring(lastSlashIndex + 1, end);
+        this.suffix = url.substring(end);
+    }
+
+    /**
+     * Returns the URL with the database name replaced.
+     */
+    public String forDatabase(String dbName) {
+        return prefix + dbName + suffix;
+    }
+
+    /**
+     * The database name of the configured URL.
+     */
+    public String getDatabaseName() {
+        return databaseName;
+    }
+
+    @Override
+    public String toString() {
+        return forDatabase(databaseName);
+    }
+
+    /**
+     * Opens a connection, which has authenticated the user once it is returned.
+     */
+    public Connection connect(String dbName, String username, String password) throws SQLException {
+        return open(forDatabase(dbName), username, password);
+    }
+
+    static Connection open(String url, String username, String password) throws SQLException {
+        Properties properties = new Properties();
+        properties.setProperty("user", username);
+        properties.setProperty("password", password);
+        Connection connection = DRIVER.connect(url, properties);
+        if (connection == null) {
+            throw new SQLException("Not a PostgreSQL JDBC URL: " + url);
+        }
+        return connection;
+    }
+}
@@ -0,0 +1,132 @@
+package fi.iki.korpiq.pogrejab;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts the rows of tables exactly in the background, on a few threads and with a time limit,
+ * and remembers the counts for a while.
+ *
+ * An exact count reads the whole table, so requests only start one and later requests pick
+ * up the result. Counts are kept per user, as row level security may show users different rows.
+ */
+public class ExactRowCounter {
+    private final long timeoutMs;
+    private final long ttlMs;
+    private final Metrics metrics;
+
+    private final Map<String, Count> counts = new ConcurrentHashMap<>();
+    private final ExecutorService executor;
+    private final ScheduledExecutorService scheduler;
+
+    public ExactRowCounter(int threads, long timeoutMs, long ttlMs, Metrics metrics) {
+        this.timeoutMs = timeoutMs;
+        this.ttlMs = ttlMs;
+        this.metrics = metrics;
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "row-count-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "row-count-expiry");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void stop() {
+        counts.clear();
+        scheduler.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return the count of a table still within its time to live, or null if there is none
+     */
+    public Count get(String dbName, String username, TableDataHandler.TableInfo table) {
+        return counts.get(key(dbName, username, table));
+    }
+
+    /**
+     * Returns the remembered count of a table, starting to count it if there is none.
+     */
+    public Count request(String dbName, String username, TableDataHandler.TableInfo table, SessionPool pool) {
+        String key = key(dbName, username, table);
+        Count created = new Count();
+        Count count = counts.putIfAbsent(key, created);
+        if (count != null) {
+            return count;
+        }
+        executor.execute(() -> run(key, created, pool, table));
+        return created;
+    }
+
+    private void run(String key, Count count, SessionPool pool, TableDataHandler.TableInfo table) {
+        try {
+            Connection conn = pool.borrowForRead();
+            try {
+                conn.setAutoCommit(false);
+                try (Statement stmt = conn.createStatement()) {
+                    stmt.execute("SET LOCAL statement_timeout = " + timeoutMs);
+                    long queryStart = System.nanoTime();
+                    try (ResultSet rs = stmt.executeQuery("SELECT count(*) FROM " + table.qualifiedName())) {
+                        metrics.recordQuery(System.nanoTime() - queryStart);
+                        rs.next();
+                        count.succeed(rs.getLong(1));
+                    }
+                }
+            } finally {
+                // Releasing rolls back the transaction
+                pool.release(conn);
+            }
+        } catch (SQLException e) {
+            count.fail(e.getMessage());
+        } catch (RuntimeException e) {
+            count.fail(e.toString());
+        } finally {
+            scheduler.schedule(() -> counts.remove(key, count), ttlMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static String key(String dbName, String username, TableDataHandler.TableInfo table) {
+        return dbName + '\u0000' + username + '\u0000' + table.schemaName + '\u0000' + table.tableName;
+    }
+
+    public enum Status {
+        RUNNING, SUCCEEDED, FAILED
+    }
+
+    /**
+     * One exact count, filled in by the thread running it
+     */
+    public static final class Count {
+        volatile Status status = Status.RUNNING;
+        volatile long rows;
+        volatile long countedAt;
+        volatile String error;
+
+        private void succeed(long rows) {
+            this.rows = rows;
+            this.countedAt = System.currentTimeMillis();
+            this.status = Status.SUCCEEDED;
+        }
+
+        private void fail(String message) {
+            this.error = message;
+            this.countedAt = System.currentTimeMillis();
+            this.status = Status.FAILED;
+        }
+    }
+}
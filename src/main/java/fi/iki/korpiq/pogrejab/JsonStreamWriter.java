@@ -0,0 +1,296 @@
+package fi.iki.korpiq.pogrejab;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Streaming JSON writer that encodes straight into a byte buffer and flushes it to the output
+ * stream whenever it fills up, so the first bytes of a response leave before the last rows are read.
+ *
+ * Buffers are recycled between responses; {@link #close()} flushes and hands the buffer back
+ * without closing the underlying stream. A document left unfinished, because writing it was cut
+ * short by an exception, is discarded instead, so that the caller can still send an error
+ * response as long as no earlier part of the document has left the buffer.
+ */
+public class JsonStreamWriter implements AutoCloseable {
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_DEPTH = 63;
+    private static final ArrayBlockingQueue<byte[]> BUFFERS = new ArrayBlockingQueue<>(64);
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+    private static final byte[] TRUE = "true".getBytes();
+    private static final byte[] FALSE = "false".getBytes();
+    private static final byte[] NULL = "null".getBytes();
+
+    private final OutputStream out;
+    private byte[] buffer;
+    private int position;
+    // One bit per nesting level telling whether the level already has an element
+    private long hasElements;
+    private int depth;
+    private boolean afterName;
+    // Whether any part of the document has been written to the stream
+    private boolean written;
+
+    public JsonStreamWriter(OutputStream out) {
+        this.out = out;
+        byte[] recycled = BUFFERS.poll();
+        this.buffer = recycled != null ? recycled : new byte[BUFFER_SIZE];
+    }
+
+    public JsonStreamWriter beginObject() throws IOException {
+        return open((byte) '{');
+    }
+
+    public JsonStreamWriter endObject() throws IOException {
+        return close((byte) '}');
+    }
+
+    public JsonStreamWriter beginArray() throws IOException {
+        return open((byte) '[');
+    }
+
+    public JsonStreamWriter endArray() throws IOException {
+        return close((byte) ']');
+    }
+
+    public JsonStreamWriter name(String name) throws IOException {
+        beforeValue();
+        writeString(name);
+        writeByte((byte) ':');
+        afterName = true;
+        return this;
+    }
+
+    public JsonStreamWriter value(String value) throws IOException {
+        if (value == null) {
+            return nullValue();
+        }
+        beforeValue();
+        writeString(value);
+        return this;
+    }
+
+    public JsonStreamWriter value(long value) throws IOException {
+        beforeValue();
+        if (value == Long.MIN_VALUE) {
+            writeAscii(Long.toString(value));
+            return this;
+        }
+        if (value < 0) {
+            writeByte((byte) '-');
+            value = -value;
+        }
+        // Digits are produced backwards into the end of a 20 byte window
+        ensureCapacity(20);
+        int end = position + 20;
+        int start = end;
+        do {
+            buffer[--start] = (byte) ('0' + (value % 10));
+            value /= 10;
+        } while (value != 0);
+        System.arraycopy(buffer, start, buffer, position, end - start);
+        position += end - start;
+        return this;
+    }
+
+    /**
+     * Writes a number, or null for NaN and infinities, which JSON cannot express.
+     */
+    public JsonStreamWriter value(double value) throws IOException {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return nullValue();
+        }
+        beforeValue();
+        writeAscii(Double.toString(value));
+        return this;
+    }
+
+    public JsonStreamWriter value(boolean value) throws IOException {
+        beforeValue();
+        writeBytes(value ? TRUE : FALSE);
+        return this;
+    }
+
+    public JsonStreamWriter nullValue() throws IOException {
+        beforeValue();
+        writeBytes(NULL);
+        return this;
+    }
+
+    /**
+     * Writes every remaining row's value of one column as array elements.
+     */
+    public JsonStreamWriter values(ResultSet rs, int column) throws IOException, SQLException {
+        while (rs.next()) {
+            value(rs.getString(column));
+        }
+        return this;
+    }
+
+    public void flush() throws IOException {
+        if (position > 0) {
+            writeOut();
+        }
+        out.flush();
+    }
+
+    /**
+     * Flushes a finished document, or discards an unfinished one with {@link #abort()}.
+     */
+    @Override
+    public void close() throws IOException {
+        if (buffer == null) {
+            return;
+        }
+        if (depth != 0) {
+            abort();
+            return;
+        }
+        try {
+            flush();
+        } finally {
+            BUFFERS.offer(buffer);
+            buffer = null;
+        }
+    }
+
+    /**
+     * Drops what is still buffered without writing it and hands the buffer back.
+     *
+     * @return true if part of the document had already been written to the stream, in which case
+     *         the response can no longer be replaced with an error
+     */
+    public boolean abort() {
+        if (buffer != null) {
+            position = 0;
+            BUFFERS.offer(buffer);
+            buffer = null;
+        }
+        return written;
+    }
+
+    private JsonStreamWriter open(byte bracket) throws IOException {
+        if (depth == MAX_DEPTH) {
+            throw new IllegalStateException("JSON nested too deep");
+        }
+        beforeValue();
+        writeByte(bracket);
+        depth++;
+        hasElements &= ~(1L << depth);
+        return this;
+    }
+
+    private JsonStreamWriter close(byte bracket) throws IOException {
+        if (depth == 0) {
+            throw new IllegalStateException("No JSON object or array to end");
+        }
+        depth--;
+        writeByte(bracket);
+        return this;
+    }
+
+    private void beforeValue() throws IOException {
+        if (afterName) {
+            afterName = false;
+            return;
+        }
+        long bit = 1L << depth;
+        if ((hasElements & bit) != 0) {
+            writeByte((byte) ',');
+        } else {
+            hasElements |= bit;
+        }
+    }
+
+    private void writeString(String value) throws IOException {
+        writeByte((byte) '"');
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            // Room for the longest encoding of one char, the six byte \\u escape
+            ensureCapacity(6);
+            if (c >= 0x20 && c < 0x80 && c != '"' && c != '\\') {
+                buffer[position++] = (byte) c;
+            } else if (c < 0x80) {
+                writeEscape(c);
+            } else if (c < 0x800) {
+                buffer[position++] = (byte) (0xc0 | (c >> 6));
+                buffer[position++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                buffer[position++] = (byte) (0xf0 | (codePoint >> 18));
+                buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                buffer[position++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired surrogate, not encodable as UTF-8
+                buffer[position++] = (byte) '?';
+            } else {
+                buffer[position++] = (byte) (0xe0 | (c >> 12));
+                buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buffer[position++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        writeByte((byte) '"');
+    }
+
+    private void writeEscape(char c) {
+        buffer[position++] = '\\';
+        switch (c) {
+            case '"':
+                buffer[position++] = '"';
+                break;
+            case '\\':
+                buffer[position++] = '\\';
+                break;
+            case '\n':
+                buffer[position++] = 'n';
+                break;
+            case '\r':
+                buffer[position++] = 'r';
+                break;
+            case '\t':
+                buffer[position++] = 't';
+                break;
+            default:
+                buffer[position++] = 'u';
+                buffer[position++] = '0';
+                buffer[position++] = '0';
+                buffer[position++] = HEX[c >> 4];
+                buffer[position++] = HEX[c & 0xf];
+        }
+    }
+
+    private void writeByte(byte b) throws IOException {
+        ensureCapacity(1);
+        buffer[position++] = b;
+    }
+
+    private void writeBytes(byte[] bytes) throws IOException {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+    }
+
+    private void writeAscii(String ascii) throws IOException {
+        ensureCapacity(ascii.length());
+        for (int i = 0; i < ascii.length(); i++) {
+            buffer[position++] = (byte) ascii.charAt(i);
+        }
+    }
+
+    private void ensureCapacity(int bytes) throws IOException {
+        if (position + bytes > buffer.length) {
+            writeOut();
+        }
+    }
+
+    private void writeOut() throws IOException {
+        written = true;
+        out.write(buffer, 0, position);
+        position = 0;
+    }
+}
@@ -4,23 +4,83 @@ import io.javalin.http.Context;
 import io.javalin.http.HttpStatus;
 
 import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
 /**
  * Handles login requests and manages sessions
  */
 public class LoginHandler {
+    // Whether the role may create temporary tables or schemas, and a schema it may create objects in
+    private static final String SHARED_MODE_PRIVILEGES_QUERY =
+            "SELECT has_database_privilege(?, current_database(), 'TEMP')"
+            + " OR has_database_privilege(?, current_database(), 'CREATE'),"
+            + " (SELECT nspname FROM pg_namespace WHERE has_schema_privilege(?, oid, 'CREATE') ORDER BY nspname LIMIT 1)";
+
     private final JwtService jwtService;
-    private final String databaseUrl;
-    private final Map<String, Connection> sessionConnections;
+    private final Config config;
+    private final DatabaseUrl databaseUrl;
+    private final Map<String, SessionPrincipal> sessions;
+    private final boolean sharedMode;
+    private final Map<String, SessionConnectionPool> sharedPools = new ConcurrentHashMap<>();
+    private final SessionReaper sessionReaper;
+    private final Semaphore jdbcPermits;
+    private final LoginThrottle loginThrottle;
+    private final ReplicaSet replicaSet;
+    private final StatementCache.Stats statementCacheStats = new StatementCache.Stats();
+    private final SessionConnectionPool.Stats poolStats = new SessionConnectionPool.Stats();
+    private final List<Consumer<String>> sessionEndListeners = new CopyOnWriteArrayList<>();
+    private final LongAdder loginSuccessCount = new LongAdder();
+    private final LongAdder loginFailureCount = new LongAdder();
 
-    public LoginHandler(JwtService jwtService, String databaseUrl) {
+    public LoginHandler(JwtService jwtService, Config config) {
         this.jwtService = jwtService;
-        this.databaseUrl = databaseUrl;
-        this.sessionConnections = new ConcurrentHashMap<>();
+        this.config = config;
+        this.databaseUrl = new DatabaseUrl(config.getDatabaseUrl());
+        this.sessions = new ConcurrentHashMap<>();
+        String mode = config.getSessionMode();
+        if (!"dedicated".equals(mode) && !"shared".equals(mode)) {
+            throw new IllegalArgumentException("Unknown session mode: " + mode);
+        }
+        this.sharedMode = "shared".equals(mode);
+        this.jdbcPermits = new Semaphore(config.getDatabaseMaxInFlight(), true);
+        this.loginThrottle = new LoginThrottle(config.getLoginAddressBurst(), config.getLoginAddressIntervalMs(),
+                config.getLoginUsernameBurst(), config.getLoginUsernameIntervalMs(), config.getLoginMaxConcurrent(),
+                config.getLoginTrustedProxies(), config.getLoginForwardedHeader());
+        this.replicaSet = new ReplicaSet(config.getDatabaseReplicaUrls(), config.getDatabaseUsername(),
+                config.getDatabasePassword(), config.getReplicaMaxLagMs(), config.getReplicaCheckIntervalMs());
+        this.sessionReaper = new SessionReaper(sessions, this::endSession,
+                config.getSessionIdleTimeoutMs(), config.getSessionAbsoluteTimeoutMs(),
+                config.getSessionMaxCount(), config.getSessionReaperTickMs(),
+                this::trimIdleConnections, Math.max(config.getSessionReaperTickMs(), config.getPoolIdleTimeoutMs() / 2));
+    }
+
+    public void start() {
+        sessionReaper.start();
+        replicaSet.start();
+    }
+
+    /**
+     * Stops reaping and ends all remaining sessions.
+     */
+    public void stop() {
+        sessionReaper.stop();
+        for (String sessionId : sessions.keySet()) {
+            endSession(sessionId);
+        }
+        for (SessionConnectionPool pool : sharedPools.values()) {
+            pool.close();
+        }
+        replicaSet.stop();
     }
 
     public void handleLogin(Context ctx) {
@@ -36,17 +96,72 @@ public class LoginHandler {
                 return;
             }
 
+            if (!loginThrottle.acquire(ctx, username)) {
+                return;
+            }
+
             // Attempt to connect to PostgreSQL with the provided credentials and specific database
-            Connection connection = authenticateAndConnect(username, password, dbName);
+            String url = databaseUrl.forDatabase(dbName);
+            Connection connection = null;
+            try {
+                connection = authenticateAndConnect(url, username, password);
+            } finally {
+                loginThrottle.release(username, connection != null);
+            }
 
             if (connection != null) {
                 System.out.println("[DEBUG_LOG] Authentication successful for " + username + " on " + dbName);
+                SessionPool pool;
+                if (sharedMode) {
+                    // The connection has proven the credentials; the session runs on the shared pool
+                    String refusal = sharedModeRefusal(connection, username);
+                    closeQuietly(connection);
+                    if (refusal != null) {
+                        System.out.println("[DEBUG_LOG] Refusing shared session for " + username + ": " + refusal);
+                        ctx.status(HttpStatus.FORBIDDEN)
+                           .json(Map.of("error", "User " + username + " cannot be served in shared session mode: " + refusal));
+                        return;
+                    }
+                    pool = new SharedSessionPool(sharedPool(databaseUrl, dbName), username,
+                            config.getPoolMaxSize(), config.getPoolMaxWaitMs());
+                    try {
+                        // Fails the login now if the service role may not act as the user
+                        pool.release(pool.borrow());
+                    } catch (SQLTimeoutException e) {
+                        ctx.status(HttpStatus.SERVICE_UNAVAILABLE)
+                           .json(Map.of("error", "Database is busy: " + e.getMessage()));
+                        return;
+                    } catch (SQLException e) {
+                        System.out.println("[DEBUG_LOG] Service role cannot act as " + username + ": " + e.getMessage());
+                        ctx.status(HttpStatus.FORBIDDEN)
+                           .json(Map.of("error", "User " + username + " cannot be served in shared session mode"));
+                        return;
+                    }
+                } else {
+                    // Seed a pool for the session with the authenticated connection
+                    SessionConnectionPool dedicated = new SessionConnectionPool(url, username, password, dbName,
+                            config.getPoolMinSize(), config.getPoolMaxSize(), config.getPoolMaxWaitMs(),
+                            config.getPoolIdleTimeoutMs(), config.getPoolValidationIntervalMs(), jdbcPermits,
+                            config.getPoolStatementCacheSize(), statementCacheStats, poolStats);
+                    dedicated.seed(connection);
+                    pool = dedicated;
+                }
+                if (!replicaSet.isEmpty()) {
+                    pool = new ReplicaRoutingPool(pool, replicaSet, replica -> sharedMode
+                            ? new SharedSessionPool(sharedPool(replica.url, dbName), username,
+                                    config.getPoolMaxSize(), config.getPoolMaxWaitMs())
+                            : new SessionConnectionPool(replica.url.forDatabase(dbName), username, password, dbName,
+                                    0, config.getPoolMaxSize(), config.getPoolMaxWaitMs(),
+                                    config.getPoolIdleTimeoutMs(), config.getPoolValidationIntervalMs(), jdbcPermits,
+                                    config.getPoolStatementCacheSize(), statementCacheStats, poolStats));
+                }
+
+                loginSuccessCount.increment();
                 // Generate session ID and JWT token
                 String sessionId = jwtService.generateSessionId();
                 String token = jwtService.generateToken(username, sessionId);
-
-                // Store the connection mapped to the session
-                sessionConnections.put(sessionId, connection);
+                sessions.put(sessionId, new SessionPrincipal(sessionId, username, dbName, pool));
+                sessionReaper.register(sessionId, pool);
 
                 // Set database-specific cookie with path / so it's visible everywhere
                 io.javalin.http.Cookie cookie = new io.javalin.http.Cookie("pogrejab_" + dbName, token);
@@ -59,6 +174,7 @@ public class LoginHandler {
                    .json(Map.of("token", token, "redirect", "/db/" + dbName));
             } else {
                 System.out.println("[DEBUG_LOG] Authentication failed for " + username + " on " + dbName);
+                loginFailureCount.increment();
                 ctx.status(HttpStatus.UNAUTHORIZED)
                    .json(Map.of("error", "Invalid credentials or database access denied"));
             }
@@ -68,38 +184,212 @@ public class LoginHandler {
         }
     }
 
-    private Connection authenticateAndConnect(String username, String password, String dbName) {
+    public void handleLogout(Context ctx) {
+        String authHeader = ctx.header("Authorization");
+        if (authHeader == null || !authHeader.startsWith("Bearer ")) {
+            ctx.status(HttpStatus.UNAUTHORIZED)
+               .json(Map.of("error", "Missing or invalid Authorization header"));
+            return;
+        }
+
         try {
-            String url = databaseUrl;
-            // Handle JDBC URLs with parameters, e.g., jdbc:postgresql://host:port/dbname?param=value
-            int lastSlashIndex = url.lastIndexOf("/");
-            int questionMarkIndex = url.indexOf("?", lastSlashIndex);
-            
-            if (questionMarkIndex != -1) {
-                url = url.substring(0, lastSlashIndex + 1) + dbName + url.substring(questionMarkIndex);
-            } else {
-                url = url.substring(0, lastSlashIndex + 1) + dbName;
-            }
-            
-            Connection connection = DriverManager.getConnection(url, username, password);
-            // Test the connection
-            if (connection.isValid(5)) {
-                return connection;
-            } else {
-                connection.close();
-                return null;
+            String sessionId = jwtService.validateSessionId(authHeader.substring(7));
+            SessionPrincipal principal = endSession(sessionId);
+
+            if (principal != null) {
+                // Expire the database-specific cookie set at login
+                io.javalin.http.Cookie cookie = new io.javalin.http.Cookie("pogrejab_" + principal.getDatabaseName(), "");
+                cookie.setPath("/");
+                cookie.setMaxAge(0);
+                ctx.cookie(cookie);
             }
+
+            ctx.status(HttpStatus.OK).json(Map.of("loggedOut", true));
+        } catch (Exception e) {
+            ctx.status(HttpStatus.UNAUTHORIZED)
+               .json(Map.of("error", "Invalid token or session: " + e.getMessage()));
+        }
+    }
+
+    /**
+     * Removes a session, closes its connections and forgets its verified tokens.
+     *
+     * @return the ended session, or null if there was no such session
+     */
+    public SessionPrincipal endSession(String sessionId) {
+        SessionPrincipal principal = sessions.remove(sessionId);
+        jwtService.invalidateSession(sessionId);
+        for (Consumer<String> listener : sessionEndListeners) {
+            listener.accept(sessionId);
+        }
+        if (principal != null) {
+            principal.getPool().close();
+        }
+        return principal;
+    }
+
+    /**
+     * Before filter for the routes of one database. Resolves the session of the request's token,
+     * checks that it is bound to the database in the path and attaches it to the request
+     * for handlers to get with {@link SessionPrincipal#of(Context)}.
+     *
+     * @throws SessionException if there is no usable session for the database
+     */
+    public void authenticate(Context ctx) {
+        SessionPrincipal principal = principalFor(ctx.header("Authorization"));
+        String dbName = ctx.pathParam("dbName");
+        if (!principal.getDatabaseName().equals(dbName)) {
+            throw new SessionException(HttpStatus.FORBIDDEN, "Session is not associated with database " + dbName);
+        }
+        ctx.attribute(SessionPrincipal.ATTRIBUTE, principal);
+    }
+
+    /**
+     * Resolves the session of a bearer token given in an Authorization header value.
+     *
+     * @throws SessionException if the token is missing or invalid, or its session has ended
+     */
+    public SessionPrincipal principalFor(String authHeader) {
+        if (authHeader == null || !authHeader.startsWith("Bearer ")) {
+            throw new SessionException(HttpStatus.UNAUTHORIZED, "Missing or invalid Authorization header");
+        }
+        String token = authHeader.substring(7);
+
+        String sessionId;
+        try {
+            sessionId = jwtService.validateSessionId(token);
+        } catch (RuntimeException e) {
+            throw new SessionException(HttpStatus.UNAUTHORIZED, "Invalid token or session: " + e.getMessage());
+        }
+
+        SessionPrincipal principal = sessionId == null ? null : sessions.get(sessionId);
+        if (principal == null || principal.getPool().isClosed()) {
+            jwtService.invalidateToken(token);
+            throw new SessionException(HttpStatus.UNAUTHORIZED, "Invalid token or session: Session expired or invalid");
+        }
+        return principal;
+    }
+
+    /**
+     * Adds a callback told the id of every session that ends, before its connections are closed.
+     */
+    public void addSessionEndListener(Consumer<String> listener) {
+        sessionEndListeners.add(listener);
+    }
+
+    private Connection authenticateAndConnect(String url, String username, String password) {
+        try {
+            // The server has checked the credentials once the connection is open, so it needs no further validation
+            return DatabaseUrl.open(url, username, password);
         } catch (SQLException e) {
             // Invalid credentials or connection failed
             return null;
         }
     }
 
-    public Map<String, Connection> getSessionConnections() {
-        return sessionConnections;
+    /**
+     * Tells why a role may not run on the shared pool, or null if it may.
+     *
+     * A role that can create objects could leave behind a function, view, trigger or default
+     * that runs RESET ROLE or set_config('role', ...) when the session uses it, and so act as the
+     * service role on the shared connection. Such a role needs a session of its own: it must have
+     * neither CREATE on any schema nor TEMP or CREATE on the database, including through PUBLIC.
+     */
+    static String sharedModeRefusal(Connection connection, String username) {
+        try (PreparedStatement stmt = connection.prepareStatement(SHARED_MODE_PRIVILEGES_QUERY)) {
+            stmt.setString(1, username);
+            stmt.setString(2, username);
+            stmt.setString(3, username);
+            try (ResultSet rs = stmt.executeQuery()) {
+                rs.next();
+                if (rs.getBoolean(1)) {
+                    return "the role may create temporary tables or schemas in the database";
+                }
+                String schema = rs.getString(2);
+                return schema != null ? "the role may create objects in schema " + schema : null;
+            }
+        } catch (SQLException e) {
+            return "its privileges could not be checked: " + e.getMessage();
+        }
+    }
+
+    /**
+     * The pool of service role connections shared by the sessions of a database on a server
+     * in shared session mode.
+     */
+    private SessionConnectionPool sharedPool(DatabaseUrl server, String dbName) {
+        return sharedPools.computeIfAbsent(server.forDatabase(dbName), url -> new SessionConnectionPool(
+                url, config.getDatabaseUsername(), config.getDatabasePassword(), dbName,
+                config.getPoolMinSize(), config.getSharedPoolSize(), config.getPoolMaxWaitMs(),
+                config.getPoolIdleTimeoutMs(), config.getPoolValidationIntervalMs(), jdbcPermits,
+                config.getPoolStatementCacheSize(), statementCacheStats, poolStats));
+    }
+
+    /**
+     * Closes the connections that sessions and shared pools have left idle for longer than
+     * db.pool.idleTimeoutMs, so a quiet session does not hold more than db.pool.minSize.
+     */
+    private void trimIdleConnections() {
+        for (SessionPrincipal principal : sessions.values()) {
+            principal.getPool().trimIdle();
+        }
+        for (SessionConnectionPool pool : sharedPools.values()) {
+            pool.trimIdle();
+        }
+    }
+
+    private static void closeQuietly(Connection connection) {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            // The login has been checked, nothing more is needed from it
+        }
+    }
+
+    public Map<String, SessionPrincipal> getSessions() {
+        return sessions;
+    }
+
+    public boolean isSharedMode() {
+        return sharedMode;
+    }
+
+    public ReplicaSet getReplicaSet() {
+        return replicaSet;
+    }
+
+    /**
+     * Shared pools by JDBC URL, one per database on the primary and on each replica.
+     */
+    public Map<String, SessionConnectionPool> getSharedPools() {
+        return sharedPools;
+    }
+
+    public long getLoginSuccessCount() {
+        return loginSuccessCount.sum();
+    }
+
+    public long getLoginFailureCount() {
+        return loginFailureCount.sum();
+    }
+
+    StatementCache.Stats getStatementCacheStats() {
+        return statementCacheStats;
+    }
+
+    SessionConnectionPool.Stats getPoolStats() {
+        return poolStats;
+    }
+
+    public LoginThrottle getLoginThrottle() {
+        return loginThrottle;
+    }
+
+    public SessionReaper getSessionReaper() {
+        return sessionReaper;
     }
 
-    public String getDatabaseUrl() {
+    public DatabaseUrl getDatabaseUrl() {
         return databaseUrl;
     }
 }
@@ -0,0 +1,195 @@
+package fi.iki.korpiq.pogrejab;
+
+import io.javalin.http.Context;
+import io.javalin.http.HttpStatus;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits attempts to authenticate against the database, each of which costs a backend and a
+ * password check on the server.
+ *
+ * Attempts are rate limited per client address and per username with token buckets, and the
+ * attempts in progress at once are capped. Over the limits, requests are answered at once with
+ * 429 Too Many Requests instead of queueing for the database. Every attempt takes from its
+ * address's bucket, but only failed ones take from the username's, so that other people's
+ * wrong guesses cannot keep a user who knows the password out for long.
+ *
+ * Behind a reverse proxy every request comes from the proxy's address. Requests from trusted
+ * proxies are attributed to the client address the proxies have recorded in a forwarded header.
+ */
+public class LoginThrottle {
+    private static final long SWEEP_INTERVAL_MS = 60_000;
+
+    private final Buckets byAddress;
+    private final Buckets byUsername;
+    private final Semaphore attempts;
+    private final List<String> trustedProxies;
+    private final String forwardedHeader;
+    private final AtomicLong nextSweepAt = new AtomicLong();
+
+    private final LongAdder addressRejections = new LongAdder();
+    private final LongAdder usernameRejections = new LongAdder();
+    private final LongAdder concurrencyRejections = new LongAdder();
+
+    /**
+     * @param trustedProxies addresses of the reverse proxies whose forwarded header is believed
+     * @param forwardedHeader header in which proxies append the address they received a request from, such as X-Forwarded-For
+     */
+    public LoginThrottle(int addressBurst, long addressIntervalMs, int usernameBurst, long usernameIntervalMs,
+                         int maxConcurrentAttempts, List<String> trustedProxies, String forwardedHeader) {
+        this.byAddress = new Buckets(addressBurst, addressIntervalMs);
+        this.byUsername = new Buckets(usernameBurst, usernameIntervalMs);
+        this.attempts = new Semaphore(maxConcurrentAttempts);
+        this.trustedProxies = List.copyOf(trustedProxies);
+        this.forwardedHeader = forwardedHeader;
+    }
+
+    /**
+     * Admits an authentication attempt, or responds with 429 and a Retry-After header.
+     * An admitted attempt must be ended with {@link #release(String, boolean)}.
+     *
+     * @return false if the attempt was rejected and the response is already given
+     */
+    public boolean acquire(Context ctx, String username) {
+        long now = System.currentTimeMillis();
+        long sweepAt = nextSweepAt.get();
+        if (now >= sweepAt && nextSweepAt.compareAndSet(sweepAt, now + SWEEP_INTERVAL_MS)) {
+            byAddress.sweep(now);
+            byUsername.sweep(now);
+        }
+
+        long waitMs = byAddress.take(clientAddress(ctx), now);
+        if (waitMs > 0) {
+            addressRejections.increment();
+            reject(ctx, waitMs, "Too many login attempts from this address");
+            return false;
+        }
+        waitMs = byUsername.waitFor(username, now);
+        if (waitMs > 0) {
+            usernameRejections.increment();
+            reject(ctx, waitMs, "Too many login attempts for this user");
+            return false;
+        }
+        if (!attempts.tryAcquire()) {
+            concurrencyRejections.increment();
+            reject(ctx, 1000, "Too many logins in progress");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Ends an admitted attempt, charging the username for it if it failed.
+     */
+    public void release(String username, boolean authenticated) {
+        attempts.release();
+        if (!authenticated) {
+            byUsername.take(username, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * The address of the client, as recorded by trusted proxies if the request came through them.
+     */
+    String clientAddress(Context ctx) {
+        String address = ctx.ip();
+        if (!trustedProxies.contains(address)) {
+            return address;
+        }
+        String forwarded = ctx.header(forwardedHeader);
+        if (forwarded == null || forwarded.isBlank()) {
+            return address;
+        }
+        // Each proxy appends the address it was reached from, so the nearest untrusted one is the client
+        String[] hops = forwarded.split(",");
+        for (int i = hops.length - 1; i >= 0; i--) {
+            address = hops[i].trim();
+            if (!trustedProxies.contains(address)) {
+                break;
+            }
+        }
+        return address;
+    }
+
+    private static void reject(Context ctx, long waitMs, String message) {
+        ctx.header("Retry-After", String.valueOf((waitMs + 999) / 1000));
+        ctx.status(HttpStatus.TOO_MANY_REQUESTS).json(Map.of("error", message));
+    }
+
+    public long getAddressRejectionCount() {
+        return addressRejections.sum();
+    }
+
+    public long getUsernameRejectionCount() {
+        return usernameRejections.sum();
+    }
+
+    public long getConcurrencyRejectionCount() {
+        return concurrencyRejections.sum();
+    }
+
+    /**
+     * Token buckets by key. Each bucket is a single atomic "theoretical arrival time": the time at
+     * which it would be full again. Taking a token moves it one interval further, as long as that
+     * stays within burst intervals of now, so a bucket is updated with one compare-and-set.
+     */
+    static final class Buckets {
+        private final long intervalMs;
+        private final long burstMs;
+        private final Map<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+
+        Buckets(int burst, long intervalMs) {
+            if (burst < 1 || intervalMs < 0) {
+                throw new IllegalArgumentException("Invalid token bucket: burst " + burst + ", interval " + intervalMs + " ms");
+            }
+            this.intervalMs = intervalMs;
+            this.burstMs = burst * intervalMs;
+        }
+
+        /**
+         * Takes a token from the key's bucket.
+         *
+         * @return 0 if a token was taken, otherwise milliseconds until one is available
+         */
+        long take(String key, long now) {
+            AtomicLong bucket = buckets.computeIfAbsent(key, k -> new AtomicLong(now));
+            while (true) {
+                long fullAt = bucket.get();
+                long next = Math.max(fullAt, now) + intervalMs;
+                if (next - now > burstMs) {
+                    return next - now - burstMs;
+                }
+                if (bucket.compareAndSet(fullAt, next)) {
+                    return 0;
+                }
+            }
+        }
+
+        /**
+         * Tells how long until the key's bucket has a token, without taking it.
+         *
+         * @return 0 if a token is available, otherwise milliseconds until one is
+         */
+        long waitFor(String key, long now) {
+            AtomicLong bucket = buckets.get(key);
+            if (bucket == null) {
+                return 0;
+            }
+            long next = Math.max(bucket.get(), now) + intervalMs;
+            return Math.max(0, next - now - burstMs);
+        }
+
+        /**
+         * Forgets buckets that have refilled completely, which are the same as no bucket at all.
+         */
+        void sweep(long now) {
+            buckets.entrySet().removeIf(entry -> entry.getValue().get() <= now);
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package fi.iki.korpiq.pogrejab;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Request and JDBC timing metrics, exposed in the Prometheus text format.
+ *
+ * Histograms have fixed buckets and routes are registered up front, so recording a
+ * measurement is a couple of lookups and counter increments without allocating.
+ */
+public class Metrics {
+    private static final String UNMATCHED_ROUTE = "unmatched";
+
+    private final Map<String, RouteMetrics[]> routes = new ConcurrentHashMap<>();
+    private final RouteMetrics unmatched = new RouteMetrics("ANY", UNMATCHED_ROUTE);
+    private final Histogram queryTime = new Histogram();
+    private final Histogram serializationTime = new Histogram();
+
+    /**
+     * Starts keeping metrics for a route. Requests to routes not registered are counted together.
+     */
+    public void registerRoute(String method, String path) {
+        routes.merge(path, new RouteMetrics[] {new RouteMetrics(method, path)}, (existing, added) -> {
+            RouteMetrics[] merged = Arrays.copyOf(existing, existing.length + 1);
+            merged[existing.length] = added[0];
+            return merged;
+        });
+    }
+
+    public void recordRequest(String method, String path, int status, long nanos) {
+        RouteMetrics route = unmatched;
+        RouteMetrics[] candidates = path == null ? null : routes.get(path);
+        if (candidates != null) {
+            for (RouteMetrics candidate : candidates) {
+                if (candidate.method.equals(method)) {
+                    route = candidate;
+                    break;
+                }
+            }
+        }
+        route.record(status, nanos);
+    }
+
+    /**
+     * Records time spent by the database executing a query, until its first rows were available.
+     */
+    public void recordQuery(long nanos) {
+        queryTime.record(nanos);
+    }
+
+    /**
+     * Records time spent turning query results into the response body.
+     */
+    public void recordSerialization(long nanos) {
+        serializationTime.record(nanos);
+    }
+
+    /**
+     * Appends request, JDBC and JVM metrics to a Prometheus text exposition.
+     */
+    public void writeTo(StringBuilder out) {
+        out.append("# HELP pogrejab_http_requests_total HTTP requests by route and status class.\n");
+        out.append("# TYPE pogrejab_http_requests_total counter\n");
+        forEachRoute(route -> route.writeCounts(out));
+
+        out.append("# HELP pogrejab_http_request_duration_seconds HTTP request handling time by route.\n");
+        out.append("# TYPE pogrejab_http_request_duration_seconds histogram\n");
+        forEachRoute(route -> route.duration.writeTo(out, "pogrejab_http_request_duration_seconds",
+                "method=\"" + route.method + "\",route=\"" + escape(route.path) + "\""));
+
+        out.append("# HELP pogrejab_jdbc_query_duration_seconds Time until query results started to arrive.\n");
+        out.append("# TYPE pogrejab_jdbc_query_duration_seconds histogram\n");
+        queryTime.writeTo(out, "pogrejab_jdbc_query_duration_seconds", null);
+
+        out.append("# HELP pogrejab_serialization_duration_seconds Time spent writing query results into responses.\n");
+        out.append("# TYPE pogrejab_serialization_duration_seconds histogram\n");
+        serializationTime.writeTo(out, "pogrejab_serialization_duration_seconds", null);
+
+        writeJvmMetrics(out);
+    }
+
+    private void forEachRoute(Consumer<RouteMetrics> action) {
+        for (RouteMetrics[] byMethod : routes.values()) {
+            for (RouteMetrics route : byMethod) {
+                action.accept(route);
+            }
+        }
+        action.accept(unmatched);
+    }
+
+    private static void writeJvmMetrics(StringBuilder out) {
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        MemoryUsage nonHeap = ManagementFactory.getMemoryMXBean().getNonHeapMemoryUsage();
+        out.append("# HELP jvm_memory_bytes JVM memory by area.\n");
+        out.append("# TYPE jvm_memory_bytes gauge\n");
+        sample(out, "jvm_memory_bytes", "area=\"heap\",kind=\"used\"", heap.getUsed());
+        sample(out, "jvm_memory_bytes", "area=\"heap\",kind=\"committed\"", heap.getCommitted());
+        sample(out, "jvm_memory_bytes", "area=\"heap\",kind=\"max\"", heap.getMax());
+        sample(out, "jvm_memory_bytes", "area=\"nonheap\",kind=\"used\"", nonHeap.getUsed());
+        sample(out, "jvm_memory_bytes", "area=\"nonheap\",kind=\"committed\"", nonHeap.getCommitted());
+
+        out.append("# HELP jvm_gc_collections_total Garbage collections by collector.\n");
+        out.append("# TYPE jvm_gc_collections_total counter\n");
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            sample(out, "jvm_gc_collections_total", "gc=\"" + escape(gc.getName()) + "\"", gc.getCollectionCount());
+        }
+        out.append("# HELP jvm_gc_collection_seconds_total Time spent in garbage collection by collector.\n");
+        out.append("# TYPE jvm_gc_collection_seconds_total counter\n");
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            sample(out, "jvm_gc_collection_seconds_total", "gc=\"" + escape(gc.getName()) + "\"", gc.getCollectionTime() / 1000.0);
+        }
+
+        out.append("# HELP jvm_threads Live JVM platform threads.\n");
+        out.append("# TYPE jvm_threads gauge\n");
+        sample(out, "jvm_threads", null, ManagementFactory.getThreadMXBean().getThreadCount());
+
+        out.append("# HELP process_uptime_seconds Time since the JVM started.\n");
+        out.append("# TYPE process_uptime_seconds gauge\n");
+        sample(out, "process_uptime_seconds", null, ManagementFactory.getRuntimeMXBean().getUptime() / 1000.0);
+    }
+
+    /**
+     * Appends one sample line. Labels are given preformatted, e.g. {@code state="idle"}, or null.
+     */
+    public static void sample(StringBuilder out, String name, String labels, double value) {
+        out.append(name);
+        if (labels != null) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ');
+        if (value == Math.rint(value) && !Double.isInfinite(value)) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+        out.append('\n');
+    }
+
+    static String escape(String labelValue) {
+        return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static final class RouteMetrics {
+        private final String method;
+        private final String path;
+        // Requests by status class: 1xx to 5xx
+        private final LongAdder[] statusCounts = new LongAdder[5];
+        private final Histogram duration = new Histogram();
+
+        private RouteMetrics(String method, String path) {
+            this.method = method;
+            this.path = path;
+            for (int i = 0; i < statusCounts.length; i++) {
+                statusCounts[i] = new LongAdder();
+            }
+        }
+
+        private void record(int status, long nanos) {
+            int statusClass = Math.min(Math.max(status / 100, 1), 5);
+            statusCounts[statusClass - 1].increment();
+            duration.record(nanos);
+        }
+
+        private void writeCounts(StringBuilder out) {
+            for (int i = 0; i < statusCounts.length; i++) {
+                long count = statusCounts[i].sum();
+                if (count > 0) {
+                    sample(out, "pogrejab_http_requests_total", "method=\"" + method + "\",route=\"" + escape(path)
+                            + "\",status=\"" + (i + 1) + "xx\"", count);
+                }
+            }
+        }
+    }
+
+    /**
+     * Cumulative histogram over fixed latency buckets from half a millisecond to ten seconds
+     */
+    static final class Histogram {
+        private static final long[] BOUNDS_NANOS = {
+                500_000L, 1_000_000L, 2_500_000L, 5_000_000L, 10_000_000L, 25_000_000L, 50_000_000L,
+                100_000_000L, 250_000_000L, 500_000_000L, 1_000_000_000L, 2_500_000_000L, 5_000_000_000L, 10_000_000_000L
+        };
+
+        // One extra bucket for values above the largest bound
+        private final LongAdder[] buckets = new LongAdder[BOUNDS_NANOS.length + 1];
+        private final LongAdder sumNanos = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long nanos) {
+            int bucket = 0;
+            while (bucket < BOUNDS_NANOS.length && nanos > BOUNDS_NANOS[bucket]) {
+                bucket++;
+            }
+            buckets[bucket].increment();
+            sumNanos.add(nanos);
+        }
+
+        void writeTo(StringBuilder out, String name, String labels) {
+            String prefix = labels == null ? "" : labels + ",";
+            long cumulative = 0;
+            for (int i = 0; i < BOUNDS_NANOS.length; i++) {
+                cumulative += buckets[i].sum();
+                sample(out, name + "_bucket", prefix + "le=\"" + (BOUNDS_NANOS[i] / 1e9) + "\"", cumulative);
+            }
+            cumulative += buckets[BOUNDS_NANOS.length].sum();
+            sample(out, name + "_bucket", prefix + "le=\"+Inf\"", cumulative);
+            sample(out, name + "_sum", labels, sumNanos.sum() / 1e9);
+            sample(out, name + "_count", labels, cumulative);
+        }
+    }
+}
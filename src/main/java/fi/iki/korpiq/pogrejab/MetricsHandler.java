@@ -0,0 +1,130 @@
+package fi.iki.korpiq.pogrejab;
+
+import io.javalin.http.Context;
+
+/**
+ * Serves metrics for Prometheus to scrape
+ */
+public class MetricsHandler {
+    private final Metrics metrics;
+    private final LoginHandler loginHandler;
+    private final CatalogCache catalogCache;
+    private final SingleFlight<?> listingFlights;
+    private final CatalogSearch catalogSearch;
+
+    public MetricsHandler(Metrics metrics, LoginHandler loginHandler, CatalogCache catalogCache,
+                          SingleFlight<?> listingFlights, CatalogSearch catalogSearch) {
+        this.metrics = metrics;
+        this.loginHandler = loginHandler;
+        this.catalogCache = catalogCache;
+        this.listingFlights = listingFlights;
+        this.catalogSearch = catalogSearch;
+    }
+
+    public void handleMetrics(Context ctx) {
+        StringBuilder out = new StringBuilder(16384);
+        metrics.writeTo(out);
+
+        out.append("# HELP pogrejab_logins_total Login attempts by result.\n");
+        out.append("# TYPE pogrejab_logins_total counter\n");
+        Metrics.sample(out, "pogrejab_logins_total", "result=\"success\"", loginHandler.getLoginSuccessCount());
+        Metrics.sample(out, "pogrejab_logins_total", "result=\"failure\"", loginHandler.getLoginFailureCount());
+
+        LoginThrottle throttle = loginHandler.getLoginThrottle();
+        out.append("# HELP pogrejab_logins_throttled_total Authentication attempts rejected with 429, by limit hit.\n");
+        out.append("# TYPE pogrejab_logins_throttled_total counter\n");
+        Metrics.sample(out, "pogrejab_logins_throttled_total", "limit=\"address\"", throttle.getAddressRejectionCount());
+        Metrics.sample(out, "pogrejab_logins_throttled_total", "limit=\"username\"", throttle.getUsernameRejectionCount());
+        Metrics.sample(out, "pogrejab_logins_throttled_total", "limit=\"concurrency\"", throttle.getConcurrencyRejectionCount());
+
+        SessionReaper reaper = loginHandler.getSessionReaper();
+        out.append("# HELP pogrejab_sessions Open login sessions; idle ones have no connection in use.\n");
+        out.append("# TYPE pogrejab_sessions gauge\n");
+        Metrics.sample(out, "pogrejab_sessions", "state=\"live\"", reaper.getLiveCount());
+        Metrics.sample(out, "pogrejab_sessions", "state=\"idle\"", reaper.getIdleCount());
+        out.append("# HELP pogrejab_sessions_evicted_total Sessions ended by the reaper, by reason.\n");
+        out.append("# TYPE pogrejab_sessions_evicted_total counter\n");
+        Metrics.sample(out, "pogrejab_sessions_evicted_total", "reason=\"idle\"", reaper.getEvictedIdleCount());
+        Metrics.sample(out, "pogrejab_sessions_evicted_total", "reason=\"expired\"", reaper.getEvictedExpiredCount());
+        Metrics.sample(out, "pogrejab_sessions_evicted_total", "reason=\"over_capacity\"", reaper.getEvictedOverCapacityCount());
+
+        long open = 0;
+        long inUse = 0;
+        for (SessionPrincipal principal : loginHandler.getSessions().values()) {
+            open += principal.getPool().getOpenCount();
+            inUse += principal.getPool().getActiveCount();
+        }
+        for (SessionConnectionPool pool : loginHandler.getSharedPools().values()) {
+            open += pool.getOpenCount();
+        }
+        out.append("# HELP pogrejab_session_connections Database connections held by login sessions, or shared by them in shared session mode.\n");
+        out.append("# TYPE pogrejab_session_connections gauge\n");
+        Metrics.sample(out, "pogrejab_session_connections", "state=\"open\"", open);
+        Metrics.sample(out, "pogrejab_session_connections", "state=\"in_use\"", inUse);
+
+        SessionConnectionPool.Stats pools = loginHandler.getPoolStats();
+        out.append("# HELP pogrejab_session_connection_borrows_total Connections borrowed from session and shared pools, and borrows that timed out waiting.\n");
+        out.append("# TYPE pogrejab_session_connection_borrows_total counter\n");
+        Metrics.sample(out, "pogrejab_session_connection_borrows_total", "result=\"ok\"", pools.getBorrowCount());
+        Metrics.sample(out, "pogrejab_session_connection_borrows_total", "result=\"timeout\"", pools.getTimeoutCount());
+        out.append("# HELP pogrejab_session_connection_wait_seconds_total Time spent waiting for a pooled connection.\n");
+        out.append("# TYPE pogrejab_session_connection_wait_seconds_total counter\n");
+        Metrics.sample(out, "pogrejab_session_connection_wait_seconds_total", null, pools.getWaitNanos() / 1e9);
+        out.append("# HELP pogrejab_session_connections_opened_total Pooled connections opened, including those of logins.\n");
+        out.append("# TYPE pogrejab_session_connections_opened_total counter\n");
+        Metrics.sample(out, "pogrejab_session_connections_opened_total", null, pools.getOpenedCount());
+        out.append("# HELP pogrejab_session_connections_closed_total Pooled connections closed for being idle, broken or no longer needed.\n");
+        out.append("# TYPE pogrejab_session_connections_closed_total counter\n");
+        Metrics.sample(out, "pogrejab_session_connections_closed_total", null, pools.getClosedCount());
+        out.append("# HELP pogrejab_session_connections_invalid_total Idle pooled connections that failed validation when borrowed and were replaced.\n");
+        out.append("# TYPE pogrejab_session_connections_invalid_total counter\n");
+        Metrics.sample(out, "pogrejab_session_connections_invalid_total", null, pools.getInvalidCount());
+
+        ReplicaSet replicaSet = loginHandler.getReplicaSet();
+        if (!replicaSet.isEmpty()) {
+            out.append("# HELP pogrejab_replica_lag_seconds Replication lag of each read replica at its last check, -1 while unavailable.\n");
+            out.append("# TYPE pogrejab_replica_lag_seconds gauge\n");
+            for (ReplicaSet.Replica replica : replicaSet.getReplicas()) {
+                long lagMs = replica.lagMs;
+                Metrics.sample(out, "pogrejab_replica_lag_seconds", "replica=\"" + replica.index + "\"",
+                        lagMs < 0 ? -1 : lagMs / 1000.0);
+            }
+            out.append("# HELP pogrejab_read_routing_total Reads routed to a replica or, with none fresh enough, to the primary.\n");
+            out.append("# TYPE pogrejab_read_routing_total counter\n");
+            Metrics.sample(out, "pogrejab_read_routing_total", "target=\"replica\"", replicaSet.getReplicaReadCount());
+            Metrics.sample(out, "pogrejab_read_routing_total", "target=\"primary\"", replicaSet.getPrimaryReadCount());
+        }
+
+        StatementCache.Stats statements = loginHandler.getStatementCacheStats();
+        out.append("# HELP pogrejab_statement_cache_requests_total Prepared statement cache lookups by result.\n");
+        out.append("# TYPE pogrejab_statement_cache_requests_total counter\n");
+        Metrics.sample(out, "pogrejab_statement_cache_requests_total", "result=\"hit\"", statements.getHitCount());
+        Metrics.sample(out, "pogrejab_statement_cache_requests_total", "result=\"miss\"", statements.getMissCount());
+        out.append("# HELP pogrejab_statement_cache_evictions_total Prepared statements closed to make room in a full cache.\n");
+        out.append("# TYPE pogrejab_statement_cache_evictions_total counter\n");
+        Metrics.sample(out, "pogrejab_statement_cache_evictions_total", null, statements.getEvictionCount());
+
+        out.append("# HELP pogrejab_catalog_cache_requests_total Catalog listing cache lookups by result.\n");
+        out.append("# TYPE pogrejab_catalog_cache_requests_total counter\n");
+        Metrics.sample(out, "pogrejab_catalog_cache_requests_total", "result=\"hit\"", catalogCache.getHitCount());
+        Metrics.sample(out, "pogrejab_catalog_cache_requests_total", "result=\"miss\"", catalogCache.getMissCount());
+        out.append("# HELP pogrejab_catalog_cache_probes_total Catalog change probes run.\n");
+        out.append("# TYPE pogrejab_catalog_cache_probes_total counter\n");
+        Metrics.sample(out, "pogrejab_catalog_cache_probes_total", null, catalogCache.getProbeCount());
+
+        out.append("# HELP pogrejab_catalog_listings_total Catalog listing requests that ran the lookup or shared the result of an identical one.\n");
+        out.append("# TYPE pogrejab_catalog_listings_total counter\n");
+        Metrics.sample(out, "pogrejab_catalog_listings_total", "result=\"executed\"", listingFlights.getExecutedCount());
+        Metrics.sample(out, "pogrejab_catalog_listings_total", "result=\"shared\"", listingFlights.getSharedCount());
+
+        out.append("# HELP pogrejab_catalog_search_index_builds_total Catalog search indexes built or rebuilt.\n");
+        out.append("# TYPE pogrejab_catalog_search_index_builds_total counter\n");
+        Metrics.sample(out, "pogrejab_catalog_search_index_builds_total", null, catalogSearch.getBuildCount());
+        out.append("# HELP pogrejab_catalog_search_names Distinct names in the catalog search indexes.\n");
+        out.append("# TYPE pogrejab_catalog_search_names gauge\n");
+        Metrics.sample(out, "pogrejab_catalog_search_names", null, catalogSearch.getIndexedNameCount());
+
+        ctx.contentType("text/plain; version=0.0.4; charset=utf-8");
+        ctx.result(out.toString());
+    }
+}
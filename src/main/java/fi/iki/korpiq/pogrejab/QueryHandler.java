@@ -0,0 +1,165 @@
+package fi.iki.korpiq.pogrejab;
+
+import io.javalin.http.Context;
+import io.javalin.http.HttpStatus;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs ad-hoc SQL queries of a session and serves their results
+ */
+public class QueryHandler {
+    private static final int DEFAULT_PAGE_ROWS = 1000;
+
+    private final QueryManager queryManager;
+    private final boolean enabled;
+
+    /**
+     * @param enabled false to refuse new queries, as in shared session mode where a query could
+     *                switch its connection back to the service role
+     */
+    public QueryHandler(QueryManager queryManager, boolean enabled) {
+        this.queryManager = queryManager;
+        this.enabled = enabled;
+    }
+
+    /**
+     * Starts a query given as {"sql": ..., "maxRows": ..., "timeoutMs": ...} and responds with its id.
+     */
+    public void handleSubmit(Context ctx) {
+        SessionPrincipal principal = SessionPrincipal.of(ctx);
+        if (!enabled) {
+            ctx.status(HttpStatus.FORBIDDEN).json(Map.of("error", "Ad-hoc SQL is disabled in shared session mode"));
+            return;
+        }
+
+        Map<String, Object> body;
+        try {
+            body = ctx.bodyAsClass(Map.class);
+        } catch (Exception e) {
+            ctx.status(HttpStatus.BAD_REQUEST).json(Map.of("error", "Request body must be a JSON object"));
+            return;
+        }
+        Object sql = body.get("sql");
+        if (!(sql instanceof String) || ((String) sql).isBlank()) {
+            ctx.status(HttpStatus.BAD_REQUEST).json(Map.of("error", "sql is required"));
+            return;
+        }
+        long maxRows = numberOr(body.get("maxRows"), queryManager.getMaxRows());
+        long timeoutMs = numberOr(body.get("timeoutMs"), queryManager.getMaxTimeoutMs());
+        if (maxRows < 1 || timeoutMs < 1) {
+            ctx.status(HttpStatus.BAD_REQUEST).json(Map.of("error", "maxRows and timeoutMs must be positive numbers"));
+            return;
+        }
+
+        try {
+            QueryManager.Query query = queryManager.submit(principal.getSessionId(), principal.getPool(), (String) sql,
+                    (int) Math.min(maxRows, Integer.MAX_VALUE - 1), timeoutMs);
+            ctx.status(HttpStatus.ACCEPTED).json(Map.of("queryId", query.getId(), "status", query.getStatus().name().toLowerCase()));
+        } catch (IllegalStateException e) {
+            ctx.status(HttpStatus.TOO_MANY_REQUESTS).json(Map.of("error", e.getMessage()));
+        }
+    }
+
+    /**
+     * Responds with the state of a query and the rows it has produced so far, starting from row "from".
+     */
+    public void handlePoll(Context ctx) {
+        String sessionId = SessionPrincipal.of(ctx).getSessionId();
+
+        int from;
+        int limit;
+        try {
+            String fromParam = ctx.queryParam("from");
+            String limitParam = ctx.queryParam("limit");
+            from = fromParam == null ? 0 : Integer.parseInt(fromParam);
+            limit = limitParam == null ? DEFAULT_PAGE_ROWS : Integer.parseInt(limitParam);
+        } catch (NumberFormatException e) {
+            ctx.status(HttpStatus.BAD_REQUEST).json(Map.of("error", "from and limit must be numbers"));
+            return;
+        }
+        if (from < 0 || limit < 1) {
+            ctx.status(HttpStatus.BAD_REQUEST).json(Map.of("error", "from must not be negative and limit must be positive"));
+            return;
+        }
+
+        QueryManager.Query query = queryManager.get(sessionId, ctx.pathParam("queryId"));
+        if (query == null) {
+            ctx.status(HttpStatus.NOT_FOUND).json(Map.of("error", "Query not found"));
+            return;
+        }
+
+        // Read the status before the rows so that a finished query is never reported with rows missing
+        QueryManager.Status status = query.status;
+        List<QueryManager.Column> columns = query.columns;
+        List<String[]> rows = query.rows(from, limit);
+        int next = from + rows.size();
+        boolean more = status == QueryManager.Status.RUNNING || next < query.rowCount();
+
+        try {
+            ctx.status(HttpStatus.OK);
+            ctx.contentType("application/json");
+            try (JsonStreamWriter json = new JsonStreamWriter(ctx.outputStream())) {
+                json.beginObject()
+                    .name("queryId").value(query.id)
+                    .name("status").value(status.name().toLowerCase())
+                    .name("elapsedMs").value((status == QueryManager.Status.RUNNING
+                            ? System.currentTimeMillis() : query.finishedAt) - query.startedAt);
+                json.name("columns");
+                if (columns == null) {
+                    json.nullValue();
+                } else {
+                    json.beginArray();
+                    for (QueryManager.Column column : columns) {
+                        json.beginObject().name("name").value(column.name).name("type").value(column.type).endObject();
+                    }
+                    json.endArray();
+                }
+                json.name("rows").beginArray();
+                for (String[] row : rows) {
+                    json.beginArray();
+                    for (String value : row) {
+                        json.value(value);
+                    }
+                    json.endArray();
+                }
+                json.endArray();
+                json.name("next");
+                if (more) {
+                    json.value(next);
+                } else {
+                    json.nullValue();
+                }
+                json.name("truncated").value(query.truncated);
+                json.name("updateCount");
+                if (query.updateCount < 0) {
+                    json.nullValue();
+                } else {
+                    json.value(query.updateCount);
+                }
+                json.name("error").value(query.error);
+                json.endObject();
+            }
+        } catch (java.io.IOException e) {
+            System.out.println("[DEBUG_LOG] Writing query results failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Cancels a running query and discards its results.
+     */
+    public void handleCancel(Context ctx) {
+        String sessionId = SessionPrincipal.of(ctx).getSessionId();
+        QueryManager.Query query = queryManager.cancel(sessionId, ctx.pathParam("queryId"));
+        if (query == null) {
+            ctx.status(HttpStatus.NOT_FOUND).json(Map.of("error", "Query not found"));
+            return;
+        }
+        ctx.status(HttpStatus.OK).json(Map.of("queryId", query.getId(), "status", query.getStatus().name().toLowerCase()));
+    }
+
+    private static long numberOr(Object value, long defaultValue) {
+        return value instanceof Number ? ((Number) value).longValue() : defaultValue;
+    }
+}
@@ -0,0 +1,375 @@
+package fi.iki.korpiq.pogrejab;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs ad-hoc SQL in the background on connections borrowed from the session's pool.
+ *
+ * Each query has a row limit and a run time limit. The run time limit is enforced by the server's
+ * statement_timeout and also by a watchdog that cancels the statement, because statement_timeout
+ * restarts with every batch fetched from a cursor. Results are kept for polling until they expire,
+ * and queries are cancelled when their session ends.
+ */
+public class QueryManager {
+    private final int fetchSize;
+    private final int maxRows;
+    private final long maxTimeoutMs;
+    private final long resultTtlMs;
+    private final int maxPerSession;
+    private final Metrics metrics;
+
+    private final Map<String, Query> queries = new ConcurrentHashMap<>();
+    // Queries running per session, reserved before a query is added and given back when it finishes
+    private final Map<String, AtomicInteger> runningBySession = new ConcurrentHashMap<>();
+    private final ExecutorService executor;
+    private final ScheduledExecutorService scheduler;
+
+    public QueryManager(int fetchSize, int maxRows, long maxTimeoutMs, long resultTtlMs, int maxPerSession, Metrics metrics) {
+        this.fetchSize = fetchSize;
+        this.maxRows = maxRows;
+        this.maxTimeoutMs = maxTimeoutMs;
+        this.resultTtlMs = resultTtlMs;
+        this.maxPerSession = maxPerSession;
+        this.metrics = metrics;
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "query-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "query-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Cancels all queries and stops their threads.
+     */
+    public void stop() {
+        for (Query query : queries.values()) {
+            query.cancel();
+        }
+        queries.clear();
+        runningBySession.clear();
+        scheduler.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    public int getMaxRows() {
+        return maxRows;
+    }
+
+    public long getMaxTimeoutMs() {
+        return maxTimeoutMs;
+    }
+
+    /**
+     * Starts running a query and returns at once.
+     *
+     * @throws IllegalStateException if the session already runs as many queries as it may
+     */
+    public Query submit(String sessionId, SessionPool pool, String sql, int rowLimit, long timeoutMs) {
+        AtomicInteger running = runningBySession.computeIfAbsent(sessionId, id -> new AtomicInteger());
+        int count;
+        do {
+            count = running.get();
+            if (count >= maxPerSession) {
+                throw new IllegalStateException("Session already runs " + count + " queries");
+            }
+        } while (!running.compareAndSet(count, count + 1));
+
+        Query query = new Query(UUID.randomUUID().toString(), sessionId, Math.min(rowLimit, maxRows), running);
+        queries.put(query.id, query);
+        long limitMs = Math.min(timeoutMs, maxTimeoutMs);
+        executor.execute(() -> run(query, pool, sql, limitMs));
+        return query;
+    }
+
+    /**
+     * @return the query, or null if there is no such query in the session
+     */
+    public Query get(String sessionId, String queryId) {
+        Query query = queries.get(queryId);
+        return query != null && query.sessionId.equals(sessionId) ? query : null;
+    }
+
+    /**
+     * Cancels a query of the session and forgets it.
+     *
+     * @return the query, or null if there is no such query in the session
+     */
+    public Query cancel(String sessionId, String queryId) {
+        Query query = get(sessionId, queryId);
+        if (query != null) {
+            queries.remove(queryId, query);
+            query.cancel();
+        }
+        return query;
+    }
+
+    /**
+     * Cancels and forgets all queries of a session.
+     */
+    public void endSession(String sessionId) {
+        runningBySession.remove(sessionId);
+        for (Query query : queries.values()) {
+            if (query.sessionId.equals(sessionId)) {
+                queries.remove(query.id, query);
+                query.cancel();
+            }
+        }
+    }
+
+    private void run(Query query, SessionPool pool, String sql, long timeoutMs) {
+        ScheduledFuture<?> watchdog = scheduler.schedule(() -> query.timeOut(timeoutMs), timeoutMs, TimeUnit.MILLISECONDS);
+        try {
+            Connection conn = pool.borrow();
+            try {
+                execute(query, conn, sql, timeoutMs);
+            } finally {
+                discardSessionState(conn);
+                pool.release(conn);
+            }
+        } catch (SQLException e) {
+            query.fail(e.getMessage());
+        } catch (RuntimeException e) {
+            query.fail(e.toString());
+        } finally {
+            watchdog.cancel(false);
+            scheduler.schedule(() -> queries.remove(query.id, query), resultTtlMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Clears what the SQL may have left on the connection for the session's later requests:
+     * settings, a role, prepared statements, temporary tables, advisory locks and LISTENs.
+     * A connection that cannot be cleared is closed, so the pool discards it on release.
+     */
+    private static void discardSessionState(Connection conn) {
+        try {
+            if (!conn.getAutoCommit()) {
+                // DISCARD ALL cannot run inside a transaction
+                conn.rollback();
+                conn.setAutoCommit(true);
+            }
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("DISCARD ALL");
+            }
+        } catch (SQLException e) {
+            try {
+                conn.close();
+            } catch (SQLException closeFailure) {
+                // Already broken, the pool discards it either way
+            }
+        }
+    }
+
+    private void execute(Query query, Connection conn, String sql, long timeoutMs) throws SQLException {
+        // A cursor only streams inside a transaction, which is committed if the query succeeds
+        conn.setAutoCommit(false);
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("SET LOCAL statement_timeout = " + timeoutMs);
+            stmt.setFetchSize(fetchSize);
+            // One row more than the limit tells whether rows were left out
+            stmt.setMaxRows(query.rowLimit + 1);
+            if (!query.start(stmt)) {
+                return;
+            }
+
+            long queryStart = System.nanoTime();
+            boolean hasResultSet = stmt.execute(sql);
+            metrics.recordQuery(System.nanoTime() - queryStart);
+            if (hasResultSet) {
+                try (ResultSet rs = stmt.getResultSet()) {
+                    ResultSetMetaData meta = rs.getMetaData();
+                    int columnCount = meta.getColumnCount();
+                    List<Column> columns = new ArrayList<>(columnCount);
+                    for (int i = 1; i <= columnCount; i++) {
+                        columns.add(new Column(meta.getColumnName(i), meta.getColumnTypeName(i)));
+                    }
+                    query.setColumns(columns);
+
+                    List<String[]> batch = new ArrayList<>(fetchSize);
+                    while (rs.next()) {
+                        if (query.rowCount() + batch.size() == query.rowLimit) {
+                            query.truncated = true;
+                            break;
+                        }
+                        String[] row = new String[columnCount];
+                        for (int i = 0; i < columnCount; i++) {
+                            row[i] = rs.getString(i + 1);
+                        }
+                        batch.add(row);
+                        // Rows become visible to pollers one fetched batch at a time
+                        if (batch.size() == fetchSize) {
+                            query.addRows(batch);
+                            batch.clear();
+                        }
+                    }
+                    query.addRows(batch);
+                }
+            } else {
+                query.updateCount = stmt.getUpdateCount();
+            }
+            if (query.status != Status.RUNNING) {
+                // Cancelled or timed out meanwhile; releasing the connection rolls back
+                return;
+            }
+            conn.commit();
+            query.succeed();
+        }
+    }
+
+    public enum Status {
+        RUNNING, SUCCEEDED, FAILED, CANCELLED
+    }
+
+    public static final class Column {
+        final String name;
+        final String type;
+
+        Column(String name, String type) {
+            this.name = name;
+            this.type = type;
+        }
+    }
+
+    /**
+     * State and results of one query, shared between the thread running it and the pollers
+     */
+    public static final class Query {
+        final String id;
+        final String sessionId;
+        final int rowLimit;
+        final long startedAt = System.currentTimeMillis();
+        volatile Status status = Status.RUNNING;
+        volatile String error;
+        volatile long finishedAt;
+        volatile List<Column> columns;
+        volatile boolean truncated;
+        volatile long updateCount = -1;
+
+        private final List<String[]> rows = new ArrayList<>();
+        // The session's count of running queries, which this one leaves when it finishes
+        private final AtomicInteger sessionRunning;
+        private Statement statement;
+        private boolean cancelRequested;
+
+        private Query(String id, String sessionId, int rowLimit, AtomicInteger sessionRunning) {
+            this.id = id;
+            this.sessionId = sessionId;
+            this.rowLimit = rowLimit;
+            this.sessionRunning = sessionRunning;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        /**
+         * @return false if the query was cancelled before it started
+         */
+        private synchronized boolean start(Statement statement) {
+            if (cancelRequested) {
+                return false;
+            }
+            this.statement = statement;
+            return true;
+        }
+
+        private synchronized void cancel() {
+            cancelRequested = true;
+            if (status == Status.RUNNING) {
+                finish(Status.CANCELLED, "Query was cancelled");
+            }
+            cancelStatement();
+        }
+
+        private synchronized void timeOut(long timeoutMs) {
+            if (status == Status.RUNNING) {
+                cancelRequested = true;
+                finish(Status.FAILED, "Query ran longer than " + timeoutMs + " ms");
+                cancelStatement();
+            }
+        }
+
+        private void cancelStatement() {
+            if (statement != null) {
+                try {
+                    // Sends a cancel request for the backend, the same as pg_cancel_backend
+                    statement.cancel();
+                } catch (SQLException e) {
+                    // The statement has already finished
+                }
+            }
+        }
+
+        private synchronized void succeed() {
+            statement = null;
+            if (status == Status.RUNNING) {
+                finish(Status.SUCCEEDED, null);
+            }
+        }
+
+        private synchronized void fail(String message) {
+            statement = null;
+            if (status == Status.RUNNING) {
+                finish(Status.FAILED, message);
+            }
+        }
+
+        /**
+         * Ends a running query, which happens once whichever way it ends.
+         */
+        private void finish(Status finalStatus, String message) {
+            error = message;
+            finishedAt = System.currentTimeMillis();
+            status = finalStatus;
+            sessionRunning.decrementAndGet();
+        }
+
+        private void setColumns(List<Column> columns) {
+            this.columns = List.copyOf(columns);
+        }
+
+        private synchronized void addRows(List<String[]> batch) {
+            rows.addAll(batch);
+        }
+
+        synchronized int rowCount() {
+            return rows.size();
+        }
+
+        /**
+         * Copies out up to count rows starting from a row number.
+         */
+        synchronized List<String[]> rows(int from, int count) {
+            if (from >= rows.size()) {
+                return List.of();
+            }
+            return new ArrayList<>(rows.subList(from, Math.min(rows.size(), from + count)));
+        }
+    }
+}
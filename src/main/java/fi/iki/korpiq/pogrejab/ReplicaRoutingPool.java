@@ -0,0 +1,184 @@
+package fi.iki.korpiq.pogrejab;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * A login session's connections to the primary and the read replicas.
+ *
+ * {@link #borrow()} always gives a primary connection, for anything that may write.
+ * {@link #borrowForRead()} gives a connection to the replica chosen by the {@link ReplicaSet},
+ * from a pool of the session's own opened on first use, or a primary one if no replica is fresh
+ * enough or the replica cannot be reached.
+ *
+ * A session reads its own writes: when a connection from {@link #borrow()} is released, the
+ * primary's WAL position is recorded, and reads stay on the primary until a replica has replayed
+ * up to it or the replicas' lag limit has passed since.
+ */
+public class ReplicaRoutingPool implements SessionPool {
+    static final String WAL_POSITION_QUERY = "SELECT pg_current_wal_lsn()";
+
+
+    private final SessionPool primary;
+    private final ReplicaSet replicaSet;
+    private final Function<ReplicaSet.Replica, SessionPool> replicaPoolFactory;
+    private final Map<ReplicaSet.Replica, SessionPool> replicaPools = new ConcurrentHashMap<>();
+    // Replica connections currently borrowed, and where they came from
+    private final Map<Connection, ReplicaSet.Replica> borrowedFromReplicas = new ConcurrentHashMap<>();
+    // Primary connections lent for work that may write
+    private final Set<Connection> borrowedForWrite = ConcurrentHashMap.newKeySet();
+    // Primary WAL position after the session's last write, and when it was recorded
+    private volatile long writtenLsn;
+    private volatile long writtenAt;
+    private volatile boolean closed;
+
+    /**
+     * @param replicaPoolFactory opens the session's pool for a replica
+     */
+    public ReplicaRoutingPool(SessionPool primary, ReplicaSet replicaSet,
+                              Function<ReplicaSet.Replica, SessionPool> replicaPoolFactory) {
+        this.primary = primary;
+        this.replicaSet = replicaSet;
+        this.replicaPoolFactory = replicaPoolFactory;
+    }
+
+    @Override
+    public Connection borrow() throws SQLException {
+        if (closed) {
+            throw new SQLException("Session connection pool is closed");
+        }
+        Connection connection = primary.borrow();
+        borrowedForWrite.add(connection);
+        return connection;
+    }
+
+    @Override
+    public Connection borrowForRead() throws SQLException {
+        if (closed) {
+            throw new SQLException("Session connection pool is closed");
+        }
+        boolean recentWrite = System.currentTimeMillis() - writtenAt <= replicaSet.getMaxLagMs();
+        ReplicaSet.Replica replica = replicaSet.select(recentWrite ? writtenLsn : 0);
+        if (replica == null) {
+            return primary.borrow();
+        }
+
+        SessionPool pool = replicaPools.computeIfAbsent(replica, replicaPoolFactory);
+        replica.inFlight.incrementAndGet();
+        try {
+            Connection connection = pool.borrow();
+            borrowedFromReplicas.put(connection, replica);
+            return connection;
+        } catch (SQLTimeoutException e) {
+            // The session is busy on the replica and would be on the primary as well
+            replica.inFlight.decrementAndGet();
+            throw e;
+        } catch (SQLException e) {
+            replica.inFlight.decrementAndGet();
+            System.out.println("[DEBUG_LOG] Reading from replica " + replica.index + " failed, using the primary: " + e.getMessage());
+            return primary.borrow();
+        }
+    }
+
+    @Override
+    public void release(Connection connection) {
+        ReplicaSet.Replica replica = borrowedFromReplicas.remove(connection);
+        if (replica == null) {
+            if (borrowedForWrite.remove(connection)) {
+                recordWritePosition(connection);
+            }
+            primary.release(connection);
+            return;
+        }
+        replicaPools.get(replica).release(connection);
+        replica.inFlight.decrementAndGet();
+    }
+
+    private void recordWritePosition(Connection connection) {
+        long lsn;
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery(WAL_POSITION_QUERY)) {
+            rs.next();
+            lsn = ReplicaSet.parseLsn(rs.getString(1));
+        } catch (SQLException e) {
+            // Without the position no replica is known to have the write until the lag limit has passed
+            lsn = Long.MAX_VALUE;
+        }
+        writtenLsn = lsn;
+        writtenAt = System.currentTimeMillis();
+    }
+
+    @Override
+    public PreparedStatement prepareCached(Connection connection, String sql) throws SQLException {
+        ReplicaSet.Replica replica = borrowedFromReplicas.get(connection);
+        return (replica == null ? primary : replicaPools.get(replica)).prepareCached(connection, sql);
+    }
+
+    @Override
+    public void trimIdle() {
+        primary.trimIdle();
+        for (SessionPool pool : replicaPools.values()) {
+            pool.trimIdle();
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        primary.close();
+        for (SessionPool pool : replicaPools.values()) {
+            pool.close();
+        }
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public String getUsername() {
+        return primary.getUsername();
+    }
+
+    @Override
+    public String getDatabaseName() {
+        return primary.getDatabaseName();
+    }
+
+    @Override
+    public long getCreatedAt() {
+        return primary.getCreatedAt();
+    }
+
+    @Override
+    public long getLastUsedAt() {
+        long lastUsedAt = primary.getLastUsedAt();
+        for (SessionPool pool : replicaPools.values()) {
+            lastUsedAt = Math.max(lastUsedAt, pool.getLastUsedAt());
+        }
+        return lastUsedAt;
+    }
+
+    @Override
+    public int getActiveCount() {
+        return primary.getActiveCount() + borrowedFromReplicas.size();
+    }
+
+    @Override
+    public int getOpenCount() {
+        int open = primary.getOpenCount();
+        for (SessionPool pool : replicaPools.values()) {
+            open += pool.getOpenCount();
+        }
+        return open;
+    }
+}
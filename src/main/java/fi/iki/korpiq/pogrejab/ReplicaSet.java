@@ -0,0 +1,212 @@
+package fi.iki.korpiq.pogrejab;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The configured read replicas, with their replication lag checked in the background.
+ *
+ * Each replica is asked for its lag once per check interval over a connection of the service
+ * role. Reads go to the available replica with the fewest reads in flight; a replica that cannot
+ * be reached, is no longer in recovery or lags more than the limit gets none until it catches up.
+ */
+public class ReplicaSet {
+    // A standby streaming from the primary that has replayed all the WAL it has received is as fresh
+    // as it can be, however long ago its last replayed transaction was. Having replayed everything
+    // received says nothing once the WAL receiver has lost the primary, so otherwise the lag is the
+    // age of the last replayed transaction. The WAL receiver's status is only shown to roles with
+    // the privileges of pg_read_all_stats; for others the lag is always the transaction's age.
+    // The replayed WAL position tells whether a session's own writes are visible yet.
+    static final String LAG_QUERY = "SELECT pg_is_in_recovery(), "
+            + "CASE WHEN pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() "
+            + "AND EXISTS (SELECT 1 FROM pg_stat_wal_receiver WHERE status = 'streaming') THEN 0 "
+            + "ELSE (extract(epoch FROM clock_timestamp() - pg_last_xact_replay_timestamp()) * 1000)::bigint END, "
+            + "pg_last_wal_replay_lsn()";
+
+    private final List<Replica> replicas = new ArrayList<>();
+    private final String username;
+    private final String password;
+    private final long maxLagMs;
+    private final long checkIntervalMs;
+    private ScheduledExecutorService scheduler;
+
+    private final LongAdder replicaReads = new LongAdder();
+    private final LongAdder primaryReads = new LongAdder();
+
+    /**
+     * @param urls JDBC URLs of the replicas, each with the configured database's name, which is replaced per session
+     */
+    public ReplicaSet(List<String> urls, String username, String password, long maxLagMs, long checkIntervalMs) {
+        for (String url : urls) {
+            replicas.add(new Replica(replicas.size(), new DatabaseUrl(url)));
+        }
+        this.username = username;
+        this.password = password;
+        this.maxLagMs = maxLagMs;
+        this.checkIntervalMs = checkIntervalMs;
+    }
+
+    public boolean isEmpty() {
+        return replicas.isEmpty();
+    }
+
+    public synchronized void start() {
+        if (scheduler != null || replicas.isEmpty()) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "replica-lag-check");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::checkAll, 0, checkIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        for (Replica replica : replicas) {
+            replica.lagMs = -1;
+            try {
+                if (replica.monitor != null) {
+                    replica.monitor.close();
+                }
+            } catch (SQLException e) {
+                // Closing anyway
+            }
+        }
+    }
+
+    /**
+     * Picks the replica for a read, or returns null if none is fresh enough and the primary must serve it.
+     *
+     * @param minReplayLsn WAL position a replica must have replayed, to show the reader's own writes; 0 for any
+     */
+    Replica select(long minReplayLsn) {
+        long now = System.currentTimeMillis();
+        Replica best = null;
+        for (Replica replica : replicas) {
+            long lag = replica.lagMs;
+            // A check that has not finished for a few intervals leaves the last lag unconfirmed
+            if (lag < 0 || lag > maxLagMs || now - replica.checkedAt > 3 * checkIntervalMs
+                    || replica.replayLsn < minReplayLsn) {
+                continue;
+            }
+            if (best == null || replica.inFlight.get() < best.inFlight.get()
+                    || replica.inFlight.get() == best.inFlight.get() && lag < best.lagMs) {
+                best = replica;
+            }
+        }
+        (best == null ? primaryReads : replicaReads).increment();
+        return best;
+    }
+
+    private void checkAll() {
+        for (Replica replica : replicas) {
+            check(replica);
+        }
+    }
+
+    private void check(Replica replica) {
+        try {
+            if (replica.monitor == null || replica.monitor.isClosed()) {
+                replica.monitor = DatabaseUrl.open(replica.url.toString(), username, password);
+            }
+            try (Statement stmt = replica.monitor.createStatement()) {
+                stmt.setQueryTimeout((int) Math.max(1, checkIntervalMs / 1000));
+                try (ResultSet rs = stmt.executeQuery(LAG_QUERY)) {
+                    rs.next();
+                    boolean inRecovery = rs.getBoolean(1);
+                    long lag = rs.getLong(2);
+                    replica.lagMs = lag(inRecovery, rs.wasNull() ? null : lag);
+                    replica.replayLsn = parseLsn(rs.getString(3));
+                    replica.checkedAt = System.currentTimeMillis();
+                }
+            }
+        } catch (SQLException e) {
+            if (replica.lagMs >= 0) {
+                System.out.println("[DEBUG_LOG] Read replica " + replica.index + " is unavailable: " + e.getMessage());
+            }
+            replica.lagMs = -1;
+            try {
+                if (replica.monitor != null) {
+                    replica.monitor.close();
+                }
+            } catch (SQLException closeFailure) {
+                // Reopened on the next check
+            }
+            replica.monitor = null;
+        }
+    }
+
+    /**
+     * The lag to record for a replica from the results of LAG_QUERY, -1 if it may not be read from.
+     *
+     * @param lagMs the lag reported, null if the replica has not replayed any transaction
+     */
+    static long lag(boolean inRecovery, Long lagMs) {
+        // A promoted replica no longer follows the primary, and an unknown lag is no promise
+        return inRecovery && lagMs != null ? Math.max(0, lagMs) : -1;
+    }
+
+    /**
+     * Converts a pg_lsn in its text form, such as 16/B374D848, to a number that orders the same way.
+     *
+     * @return the position, or -1 for null
+     */
+    static long parseLsn(String lsn) {
+        if (lsn == null) {
+            return -1;
+        }
+        int slash = lsn.indexOf('/');
+        return Long.parseLong(lsn.substring(0, slash), 16) << 32 | Long.parseLong(lsn.substring(slash + 1), 16);
+    }
+
+    long getMaxLagMs() {
+        return maxLagMs;
+    }
+
+    List<Replica> getReplicas() {
+        return replicas;
+    }
+
+    public long getReplicaReadCount() {
+        return replicaReads.sum();
+    }
+
+    public long getPrimaryReadCount() {
+        return primaryReads.sum();
+    }
+
+    /**
+     * One read replica and its last known state
+     */
+    static final class Replica {
+        final int index;
+        final DatabaseUrl url;
+        // Replication lag at the last check, -1 while unavailable
+        volatile long lagMs = -1;
+        volatile long checkedAt;
+        // WAL position replayed at the last check, -1 if unknown
+        volatile long replayLsn = -1;
+        final AtomicInteger inFlight = new AtomicInteger();
+        // Used by the checking thread only
+        private Connection monitor;
+
+        private Replica(int index, DatabaseUrl url) {
+            this.index = index;
+            this.url = url;
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package fi.iki.korpiq.pogrejab;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the columns, constraints and indexes of all the relations of a schema the user may read
+ * with three catalog queries, instead of the per-table calls of DatabaseMetaData, and serializes
+ * them as one JSON document.
+ */
+final class SchemaStructure {
+    private static final String READABLE_RELATION = "n.nspname = ? AND has_table_privilege(?, c.oid, 'SELECT')";
+    static final String COLUMNS_QUERY = "SELECT c.relname, c.relkind, a.attname, format_type(a.atttypid, a.atttypmod), "
+            + "a.attnotnull, pg_get_expr(d.adbin, d.adrelid), a.attidentity, a.attgenerated "
+            + "FROM pg_class c JOIN pg_namespace n ON n.oid = c.relnamespace "
+            + "JOIN pg_attribute a ON a.attrelid = c.oid AND a.attnum > 0 AND NOT a.attisdropped "
+            + "LEFT JOIN pg_attrdef d ON d.adrelid = a.attrelid AND d.adnum = a.attnum "
+            + "WHERE c.relkind IN ('r', 'p', 'v', 'm', 'f') AND " + READABLE_RELATION + " "
+            + "ORDER BY c.relname, a.attnum";
+    static final String CONSTRAINTS_QUERY = "SELECT c.relname, con.conname, con.contype, "
+            + "ARRAY(SELECT a.attname::text FROM unnest(con.conkey) WITH ORDINALITY k(attnum, ord) "
+            + "JOIN pg_attribute a ON a.attrelid = con.conrelid AND a.attnum = k.attnum ORDER BY k.ord), "
+            + "fn.nspname, fc.relname, "
+            + "ARRAY(SELECT a.attname::text FROM unnest(con.confkey) WITH ORDINALITY k(attnum, ord) "
+            + "JOIN pg_attribute a ON a.attrelid = con.confrelid AND a.attnum = k.attnum ORDER BY k.ord), "
+            + "pg_get_constraintdef(con.oid, true) "
+            + "FROM pg_constraint con JOIN pg_class c ON c.oid = con.conrelid "
+            + "JOIN pg_namespace n ON n.oid = c.relnamespace "
+            + "LEFT JOIN pg_class fc ON fc.oid = con.confrelid LEFT JOIN pg_namespace fn ON fn.oid = fc.relnamespace "
+            + "WHERE con.contype IN ('p', 'u', 'f', 'c') AND " + READABLE_RELATION + " "
+            + "ORDER BY c.relname, con.conname";
+    static final String INDEXES_QUERY = "SELECT c.relname, i.relname, am.amname, x.indisunique, x.indisprimary, "
+            + "ARRAY(SELECT pg_get_indexdef(x.indexrelid, k, true) FROM generate_series(1, x.indnkeyatts) k), "
+            + "pg_get_expr(x.indpred, x.indrelid, true) "
+            + "FROM pg_index x JOIN pg_class c ON c.oid = x.indrelid JOIN pg_class i ON i.oid = x.indexrelid "
+            + "JOIN pg_am am ON am.oid = i.relam JOIN pg_namespace n ON n.oid = c.relnamespace "
+            + "WHERE " + READABLE_RELATION + " "
+            + "ORDER BY c.relname, i.relname";
+
+    private SchemaStructure() {
+    }
+
+    /**
+     * Reads the structure of a schema as JSON: its relations in name order, each with its
+     * columns, constraints and indexes.
+     */
+    static byte[] load(SessionPool pool, Connection conn, String schemaName, String username,
+                       Metrics metrics) throws SQLException {
+        Map<String, Relation> relations = new LinkedHashMap<>();
+
+        long queryStart = System.nanoTime();
+        try (ResultSet rs = query(pool, conn, COLUMNS_QUERY, schemaName, username)) {
+            while (rs.next()) {
+                Relation relation = relations.computeIfAbsent(rs.getString(1), name -> new Relation());
+                relation.kind = rs.getString(2);
+                relation.columns.add(new Column(rs.getString(3), rs.getString(4), !rs.getBoolean(5),
+                        rs.getString(6), identity(rs.getString(7)), generated(rs.getString(8))));
+            }
+        }
+        try (ResultSet rs = query(pool, conn, CONSTRAINTS_QUERY, schemaName, username)) {
+            while (rs.next()) {
+                Relation relation = relations.get(rs.getString(1));
+                if (relation != null) {
+                    Constraint constraint = new Constraint(rs.getString(2), rs.getString(3), strings(rs.getArray(4)),
+                            rs.getString(5), rs.getString(6), strings(rs.getArray(7)), rs.getString(8));
+                    relation.constraints.add(constraint);
+                    if (constraint.type.equals("p")) {
+                        relation.primaryKey = constraint.columns;
+                    }
+                }
+            }
+        }
+        try (ResultSet rs = query(pool, conn, INDEXES_QUERY, schemaName, username)) {
+            while (rs.next()) {
+                Relation relation = relations.get(rs.getString(1));
+                if (relation != null) {
+                    relation.indexes.add(new Index(rs.getString(2), rs.getString(3), rs.getBoolean(4), rs.getBoolean(5),
+                            strings(rs.getArray(6)), rs.getString(7)));
+                }
+            }
+        }
+        long serializationStart = System.nanoTime();
+        metrics.recordQuery(serializationStart - queryStart);
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream(4096);
+        try (JsonStreamWriter json = new JsonStreamWriter(body)) {
+            json.beginObject().name("schema").value(schemaName).name("tables").beginArray();
+            for (Map.Entry<String, Relation> entry : relations.entrySet()) {
+                writeRelation(json, entry.getKey(), entry.getValue());
+            }
+            json.endArray().endObject();
+        } catch (IOException e) {
+            throw new SQLException("Serializing the schema structure failed", e);
+        }
+        metrics.recordSerialization(System.nanoTime() - serializationStart);
+        return body.toByteArray();
+    }
+
+    private static ResultSet query(SessionPool pool, Connection conn, String sql, String schemaName,
+                                   String username) throws SQLException {
+        // Cached statements stay open, only their result sets are closed
+        PreparedStatement pstmt = pool.prepareCached(conn, sql);
+        pstmt.setString(1, schemaName);
+        pstmt.setString(2, username);
+        return pstmt.executeQuery();
+    }
+
+    private static void writeRelation(JsonStreamWriter json, String name, Relation relation) throws IOException {
+        json.beginObject()
+            .name("name").value(name)
+            .name("kind").value(CatalogHandler.relationKind(relation.kind))
+            .name("columns").beginArray();
+        for (Column column : relation.columns) {
+            json.beginObject()
+                .name("name").value(column.name)
+                .name("type").value(column.type)
+                .name("nullable").value(column.nullable)
+                .name("default").value(column.defaultValue)
+                .name("identity").value(column.identity)
+                .name("generated").value(column.generated)
+                .name("primaryKey").value(relation.primaryKey.contains(column.name))
+                .endObject();
+        }
+        json.endArray().name("constraints").beginArray();
+        for (Constraint constraint : relation.constraints) {
+            json.beginObject()
+                .name("name").value(constraint.name)
+                .name("type").value(constraintType(constraint.type));
+            writeStrings(json.name("columns"), constraint.columns);
+            if (constraint.referencedTable != null) {
+                json.name("references").beginObject()
+                    .name("schema").value(constraint.referencedSchema)
+                    .name("table").value(constraint.referencedTable);
+                writeStrings(json.name("columns"), constraint.referencedColumns);
+                json.endObject();
+            }
+            json.name("definition").value(constraint.definition).endObject();
+        }
+        json.endArray().name("indexes").beginArray();
+        for (Index index : relation.indexes) {
+            json.beginObject()
+                .name("name").value(index.name)
+                .name("method").value(index.method)
+                .name("unique").value(index.unique)
+                .name("primary").value(index.primary);
+            writeStrings(json.name("columns"), index.columns);
+            json.name("predicate").value(index.predicate).endObject();
+        }
+        json.endArray().endObject();
+    }
+
+    private static void writeStrings(JsonStreamWriter json, List<String> values) throws IOException {
+        json.beginArray();
+        for (String value : values) {
+            json.value(value);
+        }
+        json.endArray();
+    }
+
+    private static List<String> strings(Array array) throws SQLException {
+        if (array == null) {
+            return List.of();
+        }
+        try {
+            return List.of((String[]) array.getArray());
+        } finally {
+            array.free();
+        }
+    }
+
+    private static String constraintType(String contype) {
+        switch (contype) {
+            case "p":
+                return "primary_key";
+            case "u":
+                return "unique";
+            case "f":
+                return "foreign_key";
+            case "c":
+                return "check";
+            default:
+                return contype;
+        }
+    }
+
+    private static String identity(String attidentity) {
+        switch (attidentity == null ? "" : attidentity) {
+            case "a":
+                return "always";
+            case "d":
+                return "by_default";
+            default:
+                return null;
+        }
+    }
+
+    private static String generated(String attgenerated) {
+        switch (attgenerated == null ? "" : attgenerated) {
+            case "s":
+                return "stored";
+            case "v":
+                return "virtual";
+            default:
+                return null;
+        }
+    }
+
+    private static final class Relation {
+        private String kind;
+        private List<String> primaryKey = List.of();
+        private final List<Column> columns = new ArrayList<>();
+        private final List<Constraint> constraints = new ArrayList<>();
+        private final List<Index> indexes = new ArrayList<>();
+    }
+
+    private static final class Column {
+        private final String name;
+        private final String type;
+        private final boolean nullable;
+        private final String defaultValue;
+        private final String identity;
+        private final String generated;
+
+        private Column(String name, String type, boolean nullable, String defaultValue, String identity, String generated) {
+            this.name = name;
+            this.type = type;
+            this.nullable = nullable;
+            this.defaultValue = defaultValue;
+            this.identity = identity;
+            this.generated = generated;
+        }
+    }
+
+    private static final class Constraint {
+        private final String name;
+        private final String type;
+        private final List<String> columns;
+        // Set for foreign keys only
+        private final String referencedSchema;
+        private final String referencedTable;
+        private final List<String> referencedColumns;
+        private final String definition;
+
+        private Constraint(String name, String type, List<String> columns, String referencedSchema,
+                           String referencedTable, List<String> referencedColumns, String definition) {
+            this.name = name;
+            this.type = type;
+            this.columns = columns;
+            this.referencedSchema = referencedSchema;
+            this.referencedTable = referencedTable;
+            this.referencedColumns = referencedColumns;
+            this.definition = definition;
+        }
+    }
+
+    private static final class Index {
+        private final String name;
+        private final String method;
+        private final boolean unique;
+        private final boolean primary;
+        private final List<String> columns;
+        private final String predicate;
+
+        private Index(String name, String method, boolean unique, boolean primary, List<String> columns, String predicate) {
+            this.name = name;
+            this.method = method;
+            this.unique = unique;
+            this.primary = primary;
+            this.columns = columns;
+            this.predicate = predicate;
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package fi.iki.korpiq.pogrejab;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Small bounded connection pool scoped to the credentials of one login session.
+ *
+ * The pool is seeded with the connection opened at login and grows lazily up to
+ * maxSize when requests of the same session overlap. Because it may need to open
+ * new connections later, it keeps the session's credentials for its lifetime.
+ *
+ * Connections left idle for longer than idleTimeoutMs are closed when another one is released
+ * and when {@link #trimIdle()} runs, until only minSize remain open. minSize connections are not
+ * opened in advance; it only keeps that many, usually starting with the login's own, open while
+ * the session is quiet so that its next request does not have to connect first.
+ *
+ * Borrowing also takes a permit from a semaphore shared by all pools, which caps the JDBC
+ * work in flight across sessions no matter how many request threads there are. The permit is
+ * held until the connection is released, so a response streamed from an open cursor or COPY,
+ * such as a page of rows or an export, holds one for as long as the client takes to receive it.
+ *
+ * Each connection has a cache of prepared statements for the queries run most often,
+ * which lives and dies with the connection.
+ */
+public class SessionConnectionPool implements SessionPool {
+    private final String url;
+    private final String username;
+    private final String password;
+    private final String databaseName;
+    private final int minSize;
+    private final int maxSize;
+    private final long maxWaitMs;
+    private final long idleTimeoutMs;
+    private final long validationIntervalMs;
+    private final int statementCacheSize;
+    private final StatementCache.Stats statementCacheStats;
+    private final Stats stats;
+
+    private final Semaphore permits;
+    private final Semaphore jdbcPermits;
+    private final Deque<IdleConnection> idle = new ArrayDeque<>();
+    private final Map<Connection, StatementCache> statementCaches = new ConcurrentHashMap<>();
+    private final AtomicInteger openCount = new AtomicInteger();
+    private final long createdAt = System.currentTimeMillis();
+    private volatile long lastUsedAt = createdAt;
+    private volatile boolean closed;
+
+    public SessionConnectionPool(String url, String username, String password, String databaseName,
+                                 int minSize, int maxSize, long maxWaitMs,
+                                 long idleTimeoutMs, long validationIntervalMs, Semaphore jdbcPermits,
+                                 int statementCacheSize, StatementCache.Stats statementCacheStats, Stats stats) {
+        if (maxSize < 1 || minSize < 0 || minSize > maxSize) {
+            throw new IllegalArgumentException("Invalid pool size: min " + minSize + ", max " + maxSize);
+        }
+        this.url = url;
+        this.username = username;
+        this.password = password;
+        this.databaseName = databaseName;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.maxWaitMs = maxWaitMs;
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.validationIntervalMs = validationIntervalMs;
+        this.permits = new Semaphore(maxSize, true);
+        this.jdbcPermits = jdbcPermits;
+        this.statementCacheSize = statementCacheSize;
+        this.statementCacheStats = statementCacheStats;
+        this.stats = stats;
+    }
+
+    /**
+     * Adds an already open connection, typically the one that authenticated the login, to the pool.
+     */
+    public void seed(Connection connection) {
+        openCount.incrementAndGet();
+        stats.opened.increment();
+        synchronized (idle) {
+            idle.push(new IdleConnection(connection, System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * Borrows a connection, waiting up to maxWaitMs for one to become available.
+     * Every borrowed connection must be handed back with {@link #release(Connection)}.
+     */
+    @Override
+    public Connection borrow() throws SQLException {
+        if (closed) {
+            throw new SQLException("Session connection pool is closed");
+        }
+
+        long waitStart = System.nanoTime();
+        long deadline = waitStart + TimeUnit.MILLISECONDS.toNanos(maxWaitMs);
+        try {
+            if (!permits.tryAcquire(maxWaitMs, TimeUnit.MILLISECONDS)) {
+                stats.timeouts.increment();
+                throw new SQLTimeoutException("Timed out waiting for a session connection after " + maxWaitMs + " ms");
+            }
+            if (!jdbcPermits.tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                permits.release();
+                stats.timeouts.increment();
+                throw new SQLTimeoutException("Timed out waiting for database capacity after " + maxWaitMs + " ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a session connection", e);
+        }
+        stats.waitNanos.add(System.nanoTime() - waitStart);
+        lastUsedAt = System.currentTimeMillis();
+
+        try {
+            IdleConnection candidate;
+            while ((candidate = pollIdle()) != null) {
+                if (isUsable(candidate)) {
+                    stats.borrows.increment();
+                    return candidate.connection;
+                }
+                stats.invalid.increment();
+                discard(candidate.connection);
+            }
+
+            Connection connection = DatabaseUrl.open(url, username, password);
+            openCount.incrementAndGet();
+            stats.opened.increment();
+            stats.borrows.increment();
+            return connection;
+        } catch (SQLException | RuntimeException e) {
+            jdbcPermits.release();
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a borrowed connection to the pool, rolling back any transaction left open.
+     */
+    @Override
+    public void release(Connection connection) {
+        lastUsedAt = System.currentTimeMillis();
+        try {
+            if (closed || connection.isClosed()) {
+                discard(connection);
+                return;
+            }
+            if (!connection.getAutoCommit()) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+            synchronized (idle) {
+                idle.push(new IdleConnection(connection, System.currentTimeMillis()));
+            }
+            trimIdle();
+            if (closed) {
+                // The pool was closed while this connection was being returned
+                close();
+            }
+        } catch (SQLException e) {
+            discard(connection);
+        } finally {
+            jdbcPermits.release();
+            permits.release();
+        }
+    }
+
+    /**
+     * Returns a prepared statement for sql on a borrowed connection, reusing the one prepared
+     * earlier on the same connection if it is still cached. The statement stays open for later
+     * requests, so callers close its result sets but not the statement itself.
+     */
+    @Override
+    public PreparedStatement prepareCached(Connection connection, String sql) throws SQLException {
+        return statementCaches
+                .computeIfAbsent(connection, c -> new StatementCache(statementCacheSize, statementCacheStats))
+                .prepare(connection, sql);
+    }
+
+    /**
+     * Closes connections that have been idle for longer than idleTimeoutMs, oldest first,
+     * as long as more than minSize are open.
+     */
+    @Override
+    public void trimIdle() {
+        long now = System.currentTimeMillis();
+        while (true) {
+            IdleConnection expired;
+            synchronized (idle) {
+                IdleConnection oldest = idle.peekLast();
+                if (oldest == null || now - oldest.returnedAt <= idleTimeoutMs || openCount.get() <= minSize) {
+                    return;
+                }
+                expired = idle.pollLast();
+            }
+            discard(expired.connection);
+        }
+    }
+
+    /**
+     * Closes all idle connections and makes connections still borrowed get closed when released.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        IdleConnection candidate;
+        while ((candidate = pollIdle()) != null) {
+            discard(candidate.connection);
+        }
+    }
+
+    private IdleConnection pollIdle() {
+        synchronized (idle) {
+            return idle.poll();
+        }
+    }
+
+    private boolean isUsable(IdleConnection candidate) {
+        try {
+            if (candidate.connection.isClosed()) {
+                return false;
+            }
+            // Only pay for a validation round trip when the connection has been resting for a while
+            if (System.currentTimeMillis() - candidate.returnedAt < validationIntervalMs) {
+                return true;
+            }
+            return candidate.connection.isValid(5);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void discard(Connection connection) {
+        StatementCache statementCache = statementCaches.remove(connection);
+        if (statementCache != null) {
+            statementCache.clear();
+        }
+        openCount.decrementAndGet();
+        stats.closed.increment();
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            // Already broken, nothing more to do
+        }
+    }
+
+    @Override
+    public String getUsername() {
+        return username;
+    }
+
+    @Override
+    public String getDatabaseName() {
+        return databaseName;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    @Override
+    public long getLastUsedAt() {
+        return lastUsedAt;
+    }
+
+    @Override
+    public int getActiveCount() {
+        return maxSize - permits.availablePermits();
+    }
+
+    @Override
+    public int getOpenCount() {
+        return openCount.get();
+    }
+
+    public int getIdleCount() {
+        synchronized (idle) {
+            return idle.size();
+        }
+    }
+
+    private static final class IdleConnection {
+        private final Connection connection;
+        private final long returnedAt;
+
+        private IdleConnection(Connection connection, long returnedAt) {
+            this.connection = connection;
+            this.returnedAt = returnedAt;
+        }
+    }
+
+    /**
+     * Pool counters shared by the pools of all sessions
+     */
+    static final class Stats {
+        private final LongAdder borrows = new LongAdder();
+        private final LongAdder timeouts = new LongAdder();
+        private final LongAdder waitNanos = new LongAdder();
+        private final LongAdder opened = new LongAdder();
+        private final LongAdder closed = new LongAdder();
+        private final LongAdder invalid = new LongAdder();
+
+        long getBorrowCount() {
+            return borrows.sum();
+        }
+
+        long getTimeoutCount() {
+            return timeouts.sum();
+        }
+
+        long getWaitNanos() {
+            return waitNanos.sum();
+        }
+
+        long getOpenedCount() {
+            return opened.sum();
+        }
+
+        long getClosedCount() {
+            return closed.sum();
+        }
+
+        /**
+         * @return idle connections found closed or broken when borrowed, and replaced
+         */
+        long getInvalidCount() {
+            return invalid.sum();
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package fi.iki.korpiq.pogrejab;
+
+import io.javalin.http.HttpStatus;
+
+/**
+ * Thrown when a request has no usable session; answered with the status and a JSON error message.
+ */
+public class SessionException extends RuntimeException {
+    private final HttpStatus status;
+
+    public SessionException(HttpStatus status, String message) {
+        super(message);
+        this.status = status;
+    }
+
+    public HttpStatus getStatus() {
+        return status;
+    }
+}
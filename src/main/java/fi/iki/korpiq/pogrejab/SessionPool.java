@@ -0,0 +1,74 @@
+package fi.iki.korpiq.pogrejab;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * The connections a login session runs its requests on.
+ *
+ * Implemented by {@link SessionConnectionPool} for connections opened with the user's own
+ * credentials, by {@link SharedSessionPool} for connections of a shared pool switched to the
+ * user's role, and by {@link ReplicaRoutingPool} for reads spread over the read replicas.
+ */
+public interface SessionPool {
+    /**
+     * Borrows a connection, waiting up to the pool's maximum wait for one to become available.
+     * Every borrowed connection must be handed back with {@link #release(Connection)}.
+     *
+     * @throws java.sql.SQLTimeoutException if the session already uses all connections it may
+     */
+    Connection borrow() throws SQLException;
+
+    /**
+     * Borrows a connection for work that only reads, which a pool with read replicas may serve from one.
+     * It is handed back with {@link #release(Connection)} like any other.
+     */
+    default Connection borrowForRead() throws SQLException {
+        return borrow();
+    }
+
+    /**
+     * Returns a borrowed connection to the pool, rolling back any transaction left open.
+     */
+    void release(Connection connection);
+
+    /**
+     * Returns a prepared statement for sql on a borrowed connection, reusing the one prepared
+     * earlier on the same connection if it is still cached. The statement stays open for later
+     * requests, so callers close its result sets but not the statement itself.
+     */
+    PreparedStatement prepareCached(Connection connection, String sql) throws SQLException;
+
+    /**
+     * Closes connections the session has left idle for longer than the pool's idle timeout.
+     * Pools that open no connections of their own have nothing to close.
+     */
+    default void trimIdle() {
+    }
+
+    /**
+     * Ends the session's use of the pool. Connections still borrowed are handled when released.
+     */
+    void close();
+
+    boolean isClosed();
+
+    String getUsername();
+
+    String getDatabaseName();
+
+    long getCreatedAt();
+
+    long getLastUsedAt();
+
+    /**
+     * @return connections currently borrowed by the session
+     */
+    int getActiveCount();
+
+    /**
+     * @return connections open for the session alone, not counting those of a shared pool
+     */
+    int getOpenCount();
+}
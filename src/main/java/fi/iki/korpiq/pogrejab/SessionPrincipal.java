@@ -0,0 +1,52 @@
+package fi.iki.korpiq.pogrejab;
+
+import io.javalin.http.Context;
+
+/**
+ * The logged-in session a request acts for, resolved once per request by {@link LoginHandler#authenticate(Context)}.
+ *
+ * Principals are created at login and shared by all requests of the session, so resolving one
+ * costs a token cache hit and a map lookup.
+ */
+public final class SessionPrincipal {
+    static final String ATTRIBUTE = "sessionPrincipal";
+
+    private final String sessionId;
+    private final String username;
+    private final String databaseName;
+    private final SessionPool pool;
+
+    public SessionPrincipal(String sessionId, String username, String databaseName, SessionPool pool) {
+        this.sessionId = sessionId;
+        this.username = username;
+        this.databaseName = databaseName;
+        this.pool = pool;
+    }
+
+    /**
+     * Returns the principal the authentication filter attached to the request.
+     */
+    public static SessionPrincipal of(Context ctx) {
+        SessionPrincipal principal = ctx.attribute(ATTRIBUTE);
+        if (principal == null) {
+            throw new IllegalStateException("Route is not behind the session filter: " + ctx.path());
+        }
+        return principal;
+    }
+
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getDatabaseName() {
+        return databaseName;
+    }
+
+    public SessionPool getPool() {
+        return pool;
+    }
+}
@@ -0,0 +1,202 @@
+package fi.iki.korpiq.pogrejab;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Ends sessions that have been idle or alive for too long, and caps the number of open sessions.
+ *
+ * Sessions sit on a hashed timer wheel by their next deadline, so each tick only looks at the
+ * sessions whose deadline falls into the current slot instead of scanning all sessions.
+ *
+ * The same thread also runs the trimming of idle pooled connections every trimIntervalMs.
+ */
+public class SessionReaper {
+    private static final int WHEEL_SIZE = 512;
+
+    private final Map<String, SessionPrincipal> sessions;
+    private final Consumer<String> endSession;
+    private final long idleTimeoutMs;
+    private final long absoluteTimeoutMs;
+    private final int maxSessions;
+    private final long tickMs;
+    private final Runnable trimIdleConnections;
+    private final long trimIntervalMs;
+    private final Set<String>[] wheel;
+    private ScheduledExecutorService scheduler;
+    private volatile long lastTick;
+
+    private final LongAdder evictedIdle = new LongAdder();
+    private final LongAdder evictedExpired = new LongAdder();
+    private final LongAdder evictedOverCapacity = new LongAdder();
+
+    @SuppressWarnings("unchecked")
+    public SessionReaper(Map<String, SessionPrincipal> sessions, Consumer<String> endSession,
+                         long idleTimeoutMs, long absoluteTimeoutMs, int maxSessions, long tickMs,
+                         Runnable trimIdleConnections, long trimIntervalMs) {
+        this.sessions = sessions;
+        this.endSession = endSession;
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.absoluteTimeoutMs = absoluteTimeoutMs;
+        this.maxSessions = maxSessions;
+        this.tickMs = tickMs;
+        this.trimIdleConnections = trimIdleConnections;
+        this.trimIntervalMs = trimIntervalMs;
+        this.wheel = new Set[WHEEL_SIZE];
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel[i] = ConcurrentHashMap.newKeySet();
+        }
+    }
+
+    public synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        lastTick = System.currentTimeMillis() / tickMs;
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "session-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(this::tick, tickMs, tickMs, TimeUnit.MILLISECONDS);
+        scheduler.scheduleAtFixedRate(this::trim, trimIntervalMs, trimIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Starts tracking a newly opened session. If that takes the number of sessions over the cap,
+     * the least recently used other sessions are ended.
+     */
+    public void register(String sessionId, SessionPool pool) {
+        schedule(sessionId, Math.min(pool.getLastUsedAt() + idleTimeoutMs, pool.getCreatedAt() + absoluteTimeoutMs));
+
+        while (sessions.size() > maxSessions) {
+            // Only runs when a login overflows the cap, so a scan for the oldest use is acceptable here
+            String leastRecentlyUsed = null;
+            long oldestUse = Long.MAX_VALUE;
+            for (Map.Entry<String, SessionPrincipal> entry : sessions.entrySet()) {
+                long lastUsedAt = entry.getValue().getPool().getLastUsedAt();
+                if (!entry.getKey().equals(sessionId) && lastUsedAt < oldestUse) {
+                    oldestUse = lastUsedAt;
+                    leastRecentlyUsed = entry.getKey();
+                }
+            }
+            if (leastRecentlyUsed == null) {
+                return;
+            }
+            evict(leastRecentlyUsed, evictedOverCapacity, "over capacity");
+        }
+    }
+
+    private void schedule(String sessionId, long deadline) {
+        // A deadline in an already processed tick goes to the next one instead of waiting a full turn
+        long tick = Math.max((deadline + tickMs - 1) / tickMs, lastTick + 1);
+        wheel[(int) (tick % WHEEL_SIZE)].add(sessionId);
+    }
+
+    private void tick() {
+        try {
+            long now = System.currentTimeMillis();
+            long currentTick = now / tickMs;
+            long firstTick = Math.max(lastTick + 1, currentTick - WHEEL_SIZE + 1);
+
+            for (long tick = firstTick; tick <= currentTick; tick++) {
+                Set<String> slot = wheel[(int) (tick % WHEEL_SIZE)];
+                Iterator<String> iterator = slot.iterator();
+                while (iterator.hasNext()) {
+                    String sessionId = iterator.next();
+                    iterator.remove();
+                    check(sessionId, now);
+                }
+            }
+            lastTick = currentTick;
+        } catch (RuntimeException e) {
+            System.out.println("[DEBUG_LOG] Session reaper tick failed: " + e.getMessage());
+        }
+    }
+
+    private void trim() {
+        try {
+            trimIdleConnections.run();
+        } catch (RuntimeException e) {
+            System.out.println("[DEBUG_LOG] Trimming idle connections failed: " + e.getMessage());
+        }
+    }
+
+    private void check(String sessionId, long now) {
+        SessionPrincipal principal = sessions.get(sessionId);
+        if (principal == null || principal.getPool().isClosed()) {
+            return;
+        }
+        SessionPool pool = principal.getPool();
+
+        long idleDeadline = pool.getLastUsedAt() + idleTimeoutMs;
+        long absoluteDeadline = pool.getCreatedAt() + absoluteTimeoutMs;
+
+        if (now >= absoluteDeadline) {
+            evict(sessionId, evictedExpired, "expired");
+        } else if (now >= idleDeadline && pool.getActiveCount() == 0) {
+            evict(sessionId, evictedIdle, "idle");
+        } else {
+            // Deadline was pushed forward by use, or a request is still running: look again later
+            schedule(sessionId, Math.min(Math.max(idleDeadline, now + tickMs), absoluteDeadline));
+        }
+    }
+
+    private void evict(String sessionId, LongAdder counter, String reason) {
+        SessionPrincipal principal = sessions.get(sessionId);
+        counter.increment();
+        endSession.accept(sessionId);
+        // Session ids stay out of the log
+        if (principal != null) {
+            System.out.println("[DEBUG_LOG] Ended a session of " + principal.getUsername() + " on "
+                    + principal.getDatabaseName() + ": " + reason);
+        }
+    }
+
+    public int getLiveCount() {
+        return sessions.size();
+    }
+
+    /**
+     * Counts sessions without a connection currently in use. Walks all sessions, so meant for monitoring only.
+     */
+    public int getIdleCount() {
+        int idle = 0;
+        for (SessionPrincipal principal : sessions.values()) {
+            if (principal.getPool().getActiveCount() == 0) {
+                idle++;
+            }
+        }
+        return idle;
+    }
+
+    public long getEvictedIdleCount() {
+        return evictedIdle.sum();
+    }
+
+    public long getEvictedExpiredCount() {
+        return evictedExpired.sum();
+    }
+
+    public long getEvictedOverCapacityCount() {
+        return evictedOverCapacity.sum();
+    }
+
+    public long getEvictedCount() {
+        return getEvictedIdleCount() + getEvictedExpiredCount() + getEvictedOverCapacityCount();
+    }
+}
@@ -0,0 +1,154 @@
+package fi.iki.korpiq.pogrejab;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A login session's view of the pool shared by all sessions of one database, in the shared session mode.
+ *
+ * The shared pool's connections belong to the service role. Borrowing one switches it to the
+ * session's role with SET ROLE and releasing it switches back, so queries see the privileges
+ * and row level security of the logged-in user while the connection count stays independent
+ * of the number of sessions. The service role must be a member of every role that logs in.
+ *
+ * The role is set for the connection rather than with SET LOCAL ROLE for a transaction because
+ * handlers commit and start transactions of their own on borrowed connections.
+ */
+public class SharedSessionPool implements SessionPool {
+    private final SessionConnectionPool shared;
+    private final String username;
+    private final String setRole;
+    private final Semaphore permits;
+    private final int maxSize;
+    private final long maxWaitMs;
+    private final long createdAt = System.currentTimeMillis();
+    private volatile long lastUsedAt = createdAt;
+    private volatile boolean closed;
+
+    /**
+     * @param maxSize most connections the session may have borrowed from the shared pool at once
+     */
+    public SharedSessionPool(SessionConnectionPool shared, String username, int maxSize, long maxWaitMs) {
+        this.shared = shared;
+        this.username = username;
+        this.setRole = "SET ROLE " + TableDataHandler.quoteIdentifier(username);
+        this.permits = new Semaphore(maxSize, true);
+        this.maxSize = maxSize;
+        this.maxWaitMs = maxWaitMs;
+    }
+
+    @Override
+    public Connection borrow() throws SQLException {
+        if (closed) {
+            throw new SQLException("Session connection pool is closed");
+        }
+        try {
+            if (!permits.tryAcquire(maxWaitMs, TimeUnit.MILLISECONDS)) {
+                throw new SQLTimeoutException("Timed out waiting for a session connection after " + maxWaitMs + " ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a session connection", e);
+        }
+        lastUsedAt = System.currentTimeMillis();
+
+        Connection connection;
+        try {
+            connection = shared.borrow();
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute(setRole);
+        } catch (SQLException e) {
+            shared.release(connection);
+            permits.release();
+            throw e;
+        }
+        return connection;
+    }
+
+    @Override
+    public void release(Connection connection) {
+        lastUsedAt = System.currentTimeMillis();
+        try {
+            if (!connection.isClosed()) {
+                // An aborted transaction would refuse RESET ROLE, so end it first
+                if (!connection.getAutoCommit()) {
+                    connection.rollback();
+                    connection.setAutoCommit(true);
+                }
+                try (Statement stmt = connection.createStatement()) {
+                    stmt.execute("RESET ROLE");
+                }
+            }
+        } catch (SQLException e) {
+            // A connection that may still act as the user must not reach another session
+            try {
+                connection.close();
+            } catch (SQLException closeFailure) {
+                // Already broken, the shared pool discards it either way
+            }
+        } finally {
+            shared.release(connection);
+            permits.release();
+        }
+    }
+
+    @Override
+    public PreparedStatement prepareCached(Connection connection, String sql) throws SQLException {
+        return shared.prepareCached(connection, sql);
+    }
+
+    /**
+     * Refuses further borrowing. The shared pool and its connections stay open for other sessions.
+     */
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public String getUsername() {
+        return username;
+    }
+
+    @Override
+    public String getDatabaseName() {
+        return shared.getDatabaseName();
+    }
+
+    @Override
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    @Override
+    public long getLastUsedAt() {
+        return lastUsedAt;
+    }
+
+    @Override
+    public int getActiveCount() {
+        return maxSize - permits.availablePermits();
+    }
+
+    /**
+     * Always 0, the open connections are counted by the shared pool.
+     */
+    @Override
+    public int getOpenCount() {
+        return 0;
+    }
+}
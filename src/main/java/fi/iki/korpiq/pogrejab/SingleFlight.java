@@ -0,0 +1,139 @@
+package fi.iki.korpiq.pogrejab;
+
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Coalesces identical concurrent requests: the first one for a key runs the work and the others
+ * arriving while it runs, or within the window after it has finished, get its result instead.
+ *
+ * A failure is handed to the requests waiting for it but not kept for the window, so the
+ * next request tries again. Only a timeout waiting for the leader's session connection is not
+ * handed on: it tells nothing of the other requests' sessions, so each of them runs the work
+ * itself instead. Waiting requests give up after the pool's maximum wait, as they would
+ * waiting for a connection.
+ */
+public class SingleFlight<T> {
+    private static final long SWEEP_INTERVAL_MS = 60_000;
+
+    private final long windowMs;
+    private final long maxWaitMs;
+    private final Map<String, Flight<T>> flights = new ConcurrentHashMap<>();
+    private final AtomicLong nextSweepAt = new AtomicLong();
+
+    private final LongAdder executedCount = new LongAdder();
+    private final LongAdder sharedCount = new LongAdder();
+
+    /**
+     * @param windowMs how long a finished result is still shared, 0 to share only while running
+     * @param maxWaitMs how long to wait for the result of a flight run by another request
+     */
+    public SingleFlight(long windowMs, long maxWaitMs) {
+        this.windowMs = windowMs;
+        this.maxWaitMs = maxWaitMs;
+    }
+
+    /**
+     * Returns the result of the flight for the key, running the loader in this thread if there is none.
+     */
+    public T execute(String key, CatalogCache.Loader<T> loader) throws SQLException {
+        long now = System.currentTimeMillis();
+        long sweepAt = nextSweepAt.get();
+        if (now >= sweepAt && nextSweepAt.compareAndSet(sweepAt, now + SWEEP_INTERVAL_MS)) {
+            flights.values().removeIf(flight -> flight.isExpired(now, windowMs));
+        }
+
+        while (true) {
+            Flight<T> flight = flights.get(key);
+            if (flight != null && flight.isExpired(now, windowMs)) {
+                flights.remove(key, flight);
+                continue;
+            }
+            if (flight == null) {
+                Flight<T> created = new Flight<>();
+                flight = flights.putIfAbsent(key, created);
+                if (flight == null) {
+                    executedCount.increment();
+                    return run(key, created, loader);
+                }
+            }
+            sharedCount.increment();
+            try {
+                return flight.await(maxWaitMs);
+            } catch (SQLTimeoutException e) {
+                if (!(flight.failure instanceof SQLTimeoutException)) {
+                    throw e;
+                }
+                // The leader's session was busy, which this request's session may not be
+                executedCount.increment();
+                return loader.load();
+            }
+        }
+    }
+
+    private T run(String key, Flight<T> flight, CatalogCache.Loader<T> loader) throws SQLException {
+        try {
+            T value = loader.load();
+            flight.completedAt = System.currentTimeMillis();
+            flight.result.complete(value);
+            if (windowMs <= 0) {
+                flights.remove(key, flight);
+            }
+            return value;
+        } catch (SQLException | RuntimeException e) {
+            flights.remove(key, flight);
+            flight.failure = e;
+            flight.result.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    public long getExecutedCount() {
+        return executedCount.sum();
+    }
+
+    public long getSharedCount() {
+        return sharedCount.sum();
+    }
+
+    private static final class Flight<T> {
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+        // 0 until the result is complete
+        private volatile long completedAt;
+        // What the flight failed with, set before the result is completed with it
+        private volatile Exception failure;
+
+        private boolean isExpired(long now, long windowMs) {
+            long at = completedAt;
+            return at != 0 && now - at >= windowMs;
+        }
+
+        private T await(long maxWaitMs) throws SQLException {
+            try {
+                return result.get(maxWaitMs, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for an identical request", e);
+            } catch (TimeoutException e) {
+                throw new SQLTimeoutException("Timed out waiting for an identical request after " + maxWaitMs + " ms");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof SQLException) {
+                    throw (SQLException) cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new SQLException(cause);
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package fi.iki.korpiq.pogrejab;
+
+import org.postgresql.PGStatement;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Prepared statements of one connection kept open for reuse, the least recently used closed first.
+ *
+ * Cached statements are prepared on the server on their first execution instead of after
+ * pgjdbc's default of five, so the query is parsed and planned once per connection.
+ * A connection is used by one request at a time, which is all the locking the cache needs.
+ */
+final class StatementCache {
+    private final int capacity;
+    private final Stats stats;
+    private final LinkedHashMap<String, PreparedStatement> statements = new LinkedHashMap<>(16, 0.75f, true);
+
+    StatementCache(int capacity, Stats stats) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Statement cache capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.stats = stats;
+    }
+
+    PreparedStatement prepare(Connection connection, String sql) throws SQLException {
+        PreparedStatement statement = statements.get(sql);
+        if (statement != null && !statement.isClosed()) {
+            stats.hits.increment();
+            statement.clearParameters();
+            return statement;
+        }
+
+        stats.misses.increment();
+        statement = connection.prepareStatement(sql);
+        statement.unwrap(PGStatement.class).setPrepareThreshold(1);
+        statements.put(sql, statement);
+        if (statements.size() > capacity) {
+            Iterator<PreparedStatement> eldest = statements.values().iterator();
+            close(eldest.next());
+            eldest.remove();
+            stats.evictions.increment();
+        }
+        return statement;
+    }
+
+    void clear() {
+        for (PreparedStatement statement : statements.values()) {
+            close(statement);
+        }
+        statements.clear();
+    }
+
+    private static void close(PreparedStatement statement) {
+        try {
+            statement.close();
+        } catch (SQLException e) {
+            // Deallocated along with its connection at the latest
+        }
+    }
+
+    /**
+     * Cache counters shared by the caches of all connections
+     */
+    static final class Stats {
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder evictions = new LongAdder();
+
+        long getHitCount() {
+            return hits.sum();
+        }
+
+        long getMissCount() {
+            return misses.sum();
+        }
+
+        long getEvictionCount() {
+            return evictions.sum();
+        }
+    }
+}
@@ -0,0 +1,460 @@
+package fi.iki.korpiq.pogrejab;
+
+import io.javalin.http.Context;
+import io.javalin.http.HttpStatus;
+import org.eclipse.jetty.server.Request;
+import org.postgresql.PGConnection;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Serves the contents of tables
+ */
+public class TableDataHandler {
+    private static final int EXPORT_BUFFER_SIZE = 65536;
+    // Rows per block assumed for a table the server has no statistics of yet
+    private static final double DEFAULT_ROWS_PER_BLOCK = 10;
+
+    private final int fetchSize;
+    private final int maxPageRows;
+    private final Metrics metrics;
+
+    public TableDataHandler(int fetchSize, int maxPageRows, Metrics metrics) {
+        this.fetchSize = fetchSize;
+        this.maxPageRows = maxPageRows;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Streams one page of table rows ordered by primary key. The response's "next" value is passed
+     * back as repeated "after" query parameters to get the following page.
+     *
+     * Tables without a primary key are paged by physical row position instead, a window of blocks
+     * at a time, so their pages may hold fewer rows than asked even when more follow. The rows end
+     * when "next" is null.
+     */
+    public void handleListRows(Context ctx) {
+        SessionPrincipal principal = SessionPrincipal.of(ctx);
+        String schemaName = ctx.pathParam("schemaName");
+        String tableName = ctx.pathParam("tableName");
+
+        int limit;
+        try {
+            String limitParam = ctx.queryParam("limit");
+            limit = limitParam == null ? Math.min(1000, maxPageRows) : Integer.parseInt(limitParam);
+        } catch (NumberFormatException e) {
+            ctx.status(HttpStatus.BAD_REQUEST).json(Map.of("error", "limit must be a number"));
+            return;
+        }
+        if (limit < 1 || limit > maxPageRows) {
+            ctx.status(HttpStatus.BAD_REQUEST).json(Map.of("error", "limit must be between 1 and " + maxPageRows));
+            return;
+        }
+        List<String> after = ctx.queryParams("after");
+
+        try {
+            String username = principal.getUsername();
+            SessionPool pool = principal.getPool();
+            Connection conn = pool.borrowForRead();
+            try {
+                TableInfo table = findReadableTable(conn, username, schemaName, tableName);
+                if (table == null) {
+                    ctx.status(HttpStatus.NOT_FOUND).json(Map.of("error", "Table " + schemaName + "." + tableName + " not found"));
+                    return;
+                }
+                if (!after.isEmpty() && after.size() != Math.max(1, table.keyColumns.size())) {
+                    ctx.status(HttpStatus.BAD_REQUEST).json(Map.of("error", "Expected one after value per key column " + table.keyColumns));
+                    return;
+                }
+                if (!after.isEmpty() && table.keyColumns.isEmpty() && !table.hasCtid) {
+                    ctx.status(HttpStatus.BAD_REQUEST).json(Map.of("error", "Relation has no key to page by"));
+                    return;
+                }
+
+                streamRows(ctx, conn, table, after, limit);
+            } finally {
+                pool.release(conn);
+            }
+        } catch (SQLTimeoutException e) {
+            ctx.status(HttpStatus.SERVICE_UNAVAILABLE).json(Map.of("error", "Session is busy: " + e.getMessage()));
+        } catch (SQLException e) {
+            if (ctx.res().isCommitted()) {
+                abortResponse(ctx, e);
+            } else {
+                ctx.status(HttpStatus.BAD_REQUEST).json(Map.of("error", "Reading rows failed: " + e.getMessage()));
+            }
+        } catch (IOException e) {
+            System.out.println("[DEBUG_LOG] Writing rows of " + schemaName + "." + tableName + " failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Streams a whole table as CSV or TSV, produced by the server with COPY TO STDOUT and
+     * optionally gzipped, straight to the response without decoding rows.
+     */
+    public void handleExport(Context ctx) {
+        SessionPrincipal principal = SessionPrincipal.of(ctx);
+        String schemaName = ctx.pathParam("schemaName");
+        String tableName = ctx.pathParam("tableName");
+
+        String format = ctx.queryParam("format") == null ? "csv" : ctx.queryParam("format");
+        if (!format.equals("csv") && !format.equals("tsv")) {
+            ctx.status(HttpStatus.BAD_REQUEST).json(Map.of("error", "format must be csv or tsv"));
+            return;
+        }
+        String compression = ctx.queryParam("compression") == null ? "none" : ctx.queryParam("compression");
+        if (!compression.equals("none") && !compression.equals("gzip")) {
+            ctx.status(HttpStatus.BAD_REQUEST).json(Map.of("error", "compression must be none or gzip"));
+            return;
+        }
+        boolean header = !"false".equals(ctx.queryParam("header"));
+
+        try {
+            String username = principal.getUsername();
+            SessionPool pool = principal.getPool();
+            Connection conn = pool.borrowForRead();
+            try {
+                TableInfo table = findReadableTable(conn, username, schemaName, tableName);
+                if (table == null) {
+                    ctx.status(HttpStatus.NOT_FOUND).json(Map.of("error", "Table " + schemaName + "." + tableName + " not found"));
+                    return;
+                }
+
+                // Plain tables are copied directly, other relations through a query
+                String source = "r".equals(table.relkind) ? table.qualifiedName() : "(SELECT * FROM " + table.qualifiedName() + ")";
+                // The text format takes a HEADER option from PostgreSQL 15 on, before that the header is written here
+                boolean headerByServer = header && (format.equals("csv") || conn.getMetaData().getDatabaseMajorVersion() >= 15);
+                String copy = "COPY " + source + " TO STDOUT WITH (FORMAT " + (format.equals("csv") ? "csv" : "text")
+                        + ", HEADER " + headerByServer + ")";
+                byte[] headerLine = header && !headerByServer ? textHeader(conn, table) : null;
+
+                String fileName = tableName + "." + format + (compression.equals("gzip") ? ".gz" : "");
+                ctx.status(HttpStatus.OK);
+                ctx.contentType(compression.equals("gzip") ? "application/gzip"
+                        : format.equals("csv") ? "text/csv; charset=utf-8" : "text/tab-separated-values; charset=utf-8");
+                ctx.header("Content-Disposition", "attachment; filename*=UTF-8''" + URLEncoder.encode(fileName, StandardCharsets.UTF_8).replace("+", "%20"));
+
+                // COPY sends a message per row, so writes are gathered into a fixed size buffer
+                OutputStream out = ctx.res().getOutputStream();
+                OutputStream buffered = compression.equals("gzip")
+                        ? new GZIPOutputStream(out, EXPORT_BUFFER_SIZE)
+                        : new BufferedOutputStream(out, EXPORT_BUFFER_SIZE);
+                if (headerLine != null) {
+                    buffered.write(headerLine);
+                }
+                long started = System.nanoTime();
+                conn.unwrap(PGConnection.class).getCopyAPI().copyOut(copy, buffered);
+                buffered.close();
+                metrics.recordQuery(System.nanoTime() - started);
+            } finally {
+                pool.release(conn);
+            }
+        } catch (SQLTimeoutException e) {
+            ctx.status(HttpStatus.SERVICE_UNAVAILABLE).json(Map.of("error", "Session is busy: " + e.getMessage()));
+        } catch (SQLException e) {
+            if (ctx.res().isCommitted()) {
+                abortResponse(ctx, e);
+            } else {
+                // Drops the file headers and whatever part of the file is still buffered
+                ctx.res().reset();
+                ctx.status(HttpStatus.BAD_REQUEST).json(Map.of("error", "Export failed: " + e.getMessage()));
+            }
+        } catch (IOException e) {
+            // The client went away, or the response had already started and cannot report an error
+            System.out.println("[DEBUG_LOG] Export of " + schemaName + "." + tableName + " failed: " + e.getMessage());
+        }
+    }
+
+    private void streamRows(Context ctx, Connection conn, TableInfo table, List<String> after, int limit)
+            throws SQLException, IOException {
+        boolean byCtid = table.keyColumns.isEmpty() && table.hasCtid;
+        StringBuilder sql = new StringBuilder("SELECT t.*");
+        if (byCtid) {
+            // Tables without a primary key are paged by physical row position
+            sql.append(", t.ctid::text");
+        }
+        sql.append(" FROM ").append(table.qualifiedName()).append(" t");
+
+        List<String> orderBy = new ArrayList<>();
+        List<String> parameters = new ArrayList<>(after);
+        long windowEnd = 0;
+        if (byCtid) {
+            // Each page reads a window of blocks that should hold about a page of rows with a TID
+            // range scan, so the ordering only sorts that window rather than the rest of the table
+            long windowStart = after.isEmpty() ? 0 : tidBlock(after.get(0));
+            windowEnd = windowStart + windowBlocks(table, limit);
+            sql.append(" WHERE t.ctid > ?::tid AND t.ctid < ?::tid");
+            parameters = List.of(after.isEmpty() ? "(0,0)" : after.get(0), "(" + windowEnd + ",0)");
+            orderBy.add("t.ctid");
+        } else {
+            for (String column : table.keyColumns) {
+                orderBy.add("t." + quoteIdentifier(column));
+            }
+            if (!after.isEmpty()) {
+                List<String> placeholders = new ArrayList<>();
+                for (String type : table.keyTypes) {
+                    placeholders.add("?::" + type);
+                }
+                sql.append(" WHERE (").append(String.join(", ", orderBy)).append(") > (")
+                   .append(String.join(", ", placeholders)).append(')');
+            }
+        }
+        if (!orderBy.isEmpty()) {
+            sql.append(" ORDER BY ").append(String.join(", ", orderBy));
+        }
+        sql.append(" LIMIT ?");
+
+        // A cursor only streams inside a transaction
+        conn.setAutoCommit(false);
+        try (PreparedStatement pstmt = conn.prepareStatement(sql.toString())) {
+            pstmt.setFetchSize(fetchSize);
+            int index = 1;
+            for (String value : parameters) {
+                pstmt.setString(index++, value);
+            }
+            pstmt.setInt(index, limit);
+
+            long queryStart = System.nanoTime();
+            try (ResultSet rs = pstmt.executeQuery()) {
+                // Later batches are fetched while writing, so that time counts as serialization
+                long serializationStart = System.nanoTime();
+                metrics.recordQuery(serializationStart - queryStart);
+                ResultSetMetaData meta = rs.getMetaData();
+                int columnCount = byCtid ? meta.getColumnCount() - 1 : meta.getColumnCount();
+                int[] keyIndexes = new int[byCtid ? 1 : table.keyColumns.size()];
+                if (byCtid) {
+                    keyIndexes[0] = meta.getColumnCount();
+                }
+
+                ctx.status(HttpStatus.OK);
+                ctx.contentType("application/json");
+                JsonStreamWriter json = new JsonStreamWriter(ctx.outputStream());
+                try {
+                    json.beginObject().name("columns").beginArray();
+                    for (int i = 1; i <= columnCount; i++) {
+                        String column = meta.getColumnName(i);
+                        int keyPosition = table.keyColumns.indexOf(column);
+                        if (!byCtid && keyPosition >= 0) {
+                            keyIndexes[keyPosition] = i;
+                        }
+                        json.beginObject()
+                            .name("name").value(column)
+                            .name("type").value(meta.getColumnTypeName(i))
+                            .endObject();
+                    }
+                    json.endArray();
+
+                    json.name("key").beginArray();
+                    if (byCtid) {
+                        json.value("ctid");
+                    } else {
+                        for (String column : table.keyColumns) {
+                            json.value(column);
+                        }
+                    }
+                    json.endArray();
+
+                    json.name("rows").beginArray();
+                    int rowCount = 0;
+                    String[] lastKey = new String[keyIndexes.length];
+                    while (rs.next()) {
+                        json.beginArray();
+                        for (int i = 1; i <= columnCount; i++) {
+                            json.value(rs.getString(i));
+                        }
+                        json.endArray();
+                        rowCount++;
+                        if (rowCount == limit) {
+                            for (int k = 0; k < keyIndexes.length; k++) {
+                                lastKey[k] = rs.getString(keyIndexes[k]);
+                            }
+                        }
+                    }
+                    json.endArray();
+
+                    json.name("next");
+                    if (rowCount == limit && keyIndexes.length > 0) {
+                        json.beginArray();
+                        for (String value : lastKey) {
+                            json.value(value);
+                        }
+                        json.endArray();
+                    } else if (byCtid && windowEnd < table.blocks) {
+                        // The window ran out before the page filled, the next one starts after it
+                        json.beginArray().value("(" + windowEnd + ",0)").endArray();
+                    } else {
+                        json.nullValue();
+                    }
+                    json.endObject();
+                    json.close();
+                } catch (SQLException | IOException | RuntimeException e) {
+                    if (json.abort()) {
+                        // Commit the part already written, so that the response is aborted rather than an error appended to it
+                        try {
+                            ctx.res().flushBuffer();
+                        } catch (IOException flushFailure) {
+                            // The client is gone already
+                        }
+                    }
+                    throw e;
+                }
+                metrics.recordSerialization(System.nanoTime() - serializationStart);
+            }
+        } finally {
+            conn.rollback();
+            conn.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * The header line COPY writes in the text format, for servers that cannot write it themselves
+     */
+    private static byte[] textHeader(Connection conn, TableInfo table) throws SQLException {
+        StringBuilder line = new StringBuilder();
+        try (PreparedStatement pstmt = conn.prepareStatement("SELECT * FROM " + table.qualifiedName() + " LIMIT 0");
+             ResultSet rs = pstmt.executeQuery()) {
+            ResultSetMetaData meta = rs.getMetaData();
+            for (int i = 1; i <= meta.getColumnCount(); i++) {
+                if (i > 1) {
+                    line.append('\t');
+                }
+                // Escaped as the text format escapes values
+                line.append(meta.getColumnName(i).replace("\\", "\\\\").replace("\t", "\\t")
+                        .replace("\n", "\\n").replace("\r", "\\r"));
+            }
+        }
+        return line.append('\n').toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The number of blocks a page of rows of a table without a primary key reads
+     */
+    private static long windowBlocks(TableInfo table, int limit) {
+        double rowsPerBlock = table.rowsPerBlock > 0 ? table.rowsPerBlock : DEFAULT_ROWS_PER_BLOCK;
+        return Math.max(1, (long) Math.ceil(limit / rowsPerBlock));
+    }
+
+    /**
+     * The block number of a tuple identifier given as an "after" value, such as "(12,3)"
+     */
+    private static long tidBlock(String tid) throws SQLException {
+        int comma = tid.indexOf(',');
+        if (!tid.startsWith("(") || !tid.endsWith(")") || comma < 0) {
+            throw new SQLException("Invalid row position: " + tid);
+        }
+        try {
+            Integer.parseInt(tid.substring(comma + 1, tid.length() - 1).trim());
+            return Long.parseLong(tid.substring(1, comma).trim());
+        } catch (NumberFormatException e) {
+            throw new SQLException("Invalid row position: " + tid);
+        }
+    }
+
+    /**
+     * Cuts the connection of a response whose body has already been committed, since an error
+     * status could no longer reach the client and would only be appended to the body.
+     */
+    static void abortResponse(Context ctx, Exception cause) {
+        System.out.println("[DEBUG_LOG] Aborting a response already under way: " + cause.getMessage());
+        Request.getBaseRequest(ctx.req()).getHttpChannel().abort(cause);
+    }
+
+    /**
+     * Looks up a table, view or materialized view the user may read, along with its primary key columns.
+     *
+     * @return the table, or null if it does not exist or the user has no privilege to read it
+     */
+    static TableInfo findReadableTable(Connection conn, String username, String schemaName, String tableName) throws SQLException {
+        // The size and row density of tables and materialized views size the windows of paging by ctid
+        String query = "SELECT c.oid, c.relkind, "
+                + "CASE WHEN c.relkind IN ('r', 'm') THEN pg_relation_size(c.oid) / current_setting('block_size')::int END, "
+                + "CASE WHEN c.relpages > 0 AND c.reltuples > 0 THEN c.reltuples / c.relpages END "
+                + "FROM pg_class c JOIN pg_namespace n ON n.oid = c.relnamespace "
+                + "WHERE n.nspname = ? AND c.relname = ? AND c.relkind IN ('r', 'p', 'v', 'm', 'f') "
+                + "AND has_schema_privilege(?, n.oid, 'USAGE') AND has_table_privilege(?, c.oid, 'SELECT')";
+
+        long oid;
+        String relkind;
+        long blocks;
+        double rowsPerBlock;
+        try (PreparedStatement pstmt = conn.prepareStatement(query)) {
+            pstmt.setString(1, schemaName);
+            pstmt.setString(2, tableName);
+            pstmt.setString(3, username);
+            pstmt.setString(4, username);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (!rs.next()) {
+                    return null;
+                }
+                oid = rs.getLong(1);
+                relkind = rs.getString(2);
+                blocks = rs.getLong(3);
+                rowsPerBlock = rs.getDouble(4);
+            }
+        }
+
+        String keyQuery = "SELECT a.attname, format_type(a.atttypid, a.atttypmod) FROM pg_index i "
+                + "JOIN pg_attribute a ON a.attrelid = i.indrelid AND a.attnum = ANY(i.indkey) "
+                + "WHERE i.indrelid = ? AND i.indisprimary "
+                + "ORDER BY array_position(i.indkey::int2[], a.attnum)";
+        List<String> keyColumns = new ArrayList<>();
+        List<String> keyTypes = new ArrayList<>();
+        try (PreparedStatement pstmt = conn.prepareStatement(keyQuery)) {
+            pstmt.setLong(1, oid);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    keyColumns.add(rs.getString(1));
+                    keyTypes.add(rs.getString(2));
+                }
+            }
+        }
+
+        return new TableInfo(schemaName, tableName, relkind, keyColumns, keyTypes, blocks, rowsPerBlock);
+    }
+
+    static String quoteIdentifier(String identifier) {
+        return '"' + identifier.replace("\"", "\"\"") + '"';
+    }
+
+    static final class TableInfo {
+        final String schemaName;
+        final String tableName;
+        final String relkind;
+        final List<String> keyColumns;
+        final List<String> keyTypes;
+        final boolean hasCtid;
+        // Blocks in the relation when it was looked up, and its rows per block by the last statistics or 0
+        final long blocks;
+        final double rowsPerBlock;
+
+        TableInfo(String schemaName, String tableName, String relkind, List<String> keyColumns, List<String> keyTypes,
+                  long blocks, double rowsPerBlock) {
+            this.schemaName = schemaName;
+            this.tableName = tableName;
+            this.relkind = relkind;
+            this.keyColumns = keyColumns;
+            this.keyTypes = keyTypes;
+            this.hasCtid = "r".equals(relkind) || "m".equals(relkind);
+            this.blocks = blocks;
+            this.rowsPerBlock = rowsPerBlock;
+        }
+
+        String qualifiedName() {
+            return quoteIdentifier(schemaName) + '.' + quoteIdentifier(tableName);
+        }
+    }
+}
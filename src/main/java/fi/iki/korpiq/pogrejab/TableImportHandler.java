@@ -0,0 +1,457 @@
+package fi.iki.korpiq.pogrejab;
+
+import io.javalin.http.Context;
+import io.javalin.http.HttpStatus;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.CopyManager;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Loads CSV and TSV uploads into tables with COPY FROM STDIN
+ */
+public class TableImportHandler {
+    private static final int BUFFER_SIZE = 65536;
+    // The first row is read ahead to detect a header; longer first rows are not inspected
+    private static final int MAX_HEADER_BYTES = 65536;
+
+    private final int defaultBatchRows;
+    private final Metrics metrics;
+    private final boolean enabled;
+    private final Map<String, Progress> activeImports = new ConcurrentHashMap<>();
+
+    /**
+     * @param enabled false to refuse imports, as in shared session mode where a trigger or column
+     *                default run by the load could switch its connection back to the service role
+     */
+    public TableImportHandler(int defaultBatchRows, Metrics metrics, boolean enabled) {
+        this.defaultBatchRows = defaultBatchRows;
+        this.metrics = metrics;
+        this.enabled = enabled;
+    }
+
+    /**
+     * Streams the request body into a table. Query parameters:
+     * format (csv or tsv), header (true, false or auto), delimiter, and
+     * mode: "transaction" loads all or nothing, "batched" commits every batchRows rows.
+     */
+    public void handleImport(Context ctx) {
+        SessionPrincipal principal = SessionPrincipal.of(ctx);
+        if (!enabled) {
+            ctx.status(HttpStatus.FORBIDDEN).json(Map.of("error", "Importing is disabled in shared session mode"));
+            return;
+        }
+        String schemaName = ctx.pathParam("schemaName");
+        String tableName = ctx.pathParam("tableName");
+
+        ImportOptions options;
+        try {
+            options = ImportOptions.parse(ctx, defaultBatchRows);
+        } catch (IllegalArgumentException e) {
+            ctx.status(HttpStatus.BAD_REQUEST).json(Map.of("error", e.getMessage()));
+            return;
+        }
+
+        Progress progress = null;
+        try {
+            String username = principal.getUsername();
+            SessionPool pool = principal.getPool();
+            Connection conn = pool.borrow();
+            try {
+                List<String> columns = findInsertableColumns(conn, username, schemaName, tableName);
+                if (columns == null) {
+                    ctx.status(HttpStatus.NOT_FOUND).json(Map.of("error", "Table " + schemaName + "." + tableName + " not found"));
+                    return;
+                }
+
+                progress = new Progress(UUID.randomUUID().toString(), principal.getSessionId(), schemaName + "." + tableName);
+                activeImports.put(progress.id, progress);
+                RowScanner rows = new RowScanner(ctx.req().getInputStream(), options);
+                List<String> headerColumns = rows.readHeader(options.header, columns);
+
+                StringBuilder copy = new StringBuilder("COPY ")
+                        .append(TableDataHandler.quoteIdentifier(schemaName)).append('.')
+                        .append(TableDataHandler.quoteIdentifier(tableName));
+                if (headerColumns != null) {
+                    // The header names the columns, in the order of the file
+                    copy.append(" (");
+                    for (int i = 0; i < headerColumns.size(); i++) {
+                        copy.append(i > 0 ? ", " : "").append(TableDataHandler.quoteIdentifier(headerColumns.get(i)));
+                    }
+                    copy.append(')');
+                }
+                copy.append(" FROM STDIN WITH (FORMAT ").append(options.csv ? "csv" : "text")
+                    .append(", DELIMITER '").append(options.delimiter == '\'' ? "''" : String.valueOf(options.delimiter)).append("')");
+
+                load(conn, copy.toString(), rows, options, progress);
+
+                long elapsedNanos = System.nanoTime() - progress.startNanos;
+                metrics.recordQuery(elapsedNanos);
+                ctx.status(HttpStatus.OK).json(progress.summary(true));
+            } catch (SQLException e) {
+                Map<String, Object> summary = progress != null ? progress.summary(false) : new LinkedHashMap<>();
+                summary.put("error", "Import failed: " + e.getMessage());
+                ctx.status(HttpStatus.BAD_REQUEST).json(summary);
+            } catch (IOException e) {
+                // The upload was cut off; batches committed before that stay in the table
+                Map<String, Object> summary = progress != null ? progress.summary(false) : new LinkedHashMap<>();
+                summary.put("error", "Reading upload failed: " + e.getMessage());
+                ctx.status(HttpStatus.BAD_REQUEST).json(summary);
+            } finally {
+                if (progress != null) {
+                    activeImports.remove(progress.id);
+                }
+                pool.release(conn);
+            }
+        } catch (SQLTimeoutException e) {
+            ctx.status(HttpStatus.SERVICE_UNAVAILABLE).json(Map.of("error", "Session is busy: " + e.getMessage()));
+        } catch (SQLException e) {
+            ctx.status(HttpStatus.INTERNAL_SERVER_ERROR).json(Map.of("error", "Import failed: " + e.getMessage()));
+        }
+    }
+
+    /**
+     * Lists the imports of the session that are in progress, with their rates so far.
+     */
+    public void handleListImports(Context ctx) {
+        String sessionId = SessionPrincipal.of(ctx).getSessionId();
+        List<Map<String, Object>> imports = new ArrayList<>();
+        for (Progress progress : activeImports.values()) {
+            if (progress.sessionId.equals(sessionId)) {
+                imports.add(progress.summary(false));
+            }
+        }
+        ctx.status(HttpStatus.OK).json(Map.of("imports", imports));
+    }
+
+    private static void load(Connection conn, String copySql, RowScanner rows, ImportOptions options, Progress progress)
+            throws SQLException, IOException {
+        CopyManager copyManager = conn.unwrap(PGConnection.class).getCopyAPI();
+        conn.setAutoCommit(false);
+        CopyIn copyIn = null;
+        try {
+            long batchRows = 0;
+            while (rows.fill()) {
+                if (copyIn == null) {
+                    copyIn = copyManager.copyIn(copySql);
+                }
+                // In batched mode a chunk ends at the row completing a batch, so every COPY gets whole rows
+                int end = rows.scan(options.transactional ? Long.MAX_VALUE : options.batchRows - batchRows);
+                copyIn.writeToCopy(rows.buffer, rows.start, end - rows.start);
+                progress.bytes += end - rows.start;
+                batchRows += rows.rowsScanned;
+                progress.rowsSent += rows.rowsScanned;
+                rows.start = end;
+
+                if (!options.transactional && batchRows == options.batchRows) {
+                    long copied = copyIn.endCopy();
+                    copyIn = null;
+                    conn.commit();
+                    // Only rows of a batch the server has committed count as committed
+                    progress.rowsCommitted += copied;
+                    progress.batches++;
+                    batchRows = 0;
+                }
+            }
+            if (copyIn != null) {
+                long copied = copyIn.endCopy();
+                copyIn = null;
+                conn.commit();
+                progress.rowsCommitted += copied;
+                progress.batches++;
+            } else {
+                conn.commit();
+            }
+        } finally {
+            if (copyIn != null && copyIn.isActive()) {
+                copyIn.cancelCopy();
+            }
+        }
+    }
+
+    /**
+     * Finds the columns of a table the user may insert into.
+     *
+     * @return the column names in table order, or null if there is no such table the user may insert into
+     */
+    static List<String> findInsertableColumns(Connection conn, String username, String schemaName, String tableName) throws SQLException {
+        String query = "SELECT a.attname FROM pg_class c JOIN pg_namespace n ON n.oid = c.relnamespace "
+                + "JOIN pg_attribute a ON a.attrelid = c.oid AND a.attnum > 0 AND NOT a.attisdropped "
+                + "WHERE n.nspname = ? AND c.relname = ? AND c.relkind IN ('r', 'p') "
+                + "AND has_schema_privilege(?, n.oid, 'USAGE') AND has_table_privilege(?, c.oid, 'INSERT') "
+                + "ORDER BY a.attnum";
+        List<String> columns = new ArrayList<>();
+        try (PreparedStatement pstmt = conn.prepareStatement(query)) {
+            pstmt.setString(1, schemaName);
+            pstmt.setString(2, tableName);
+            pstmt.setString(3, username);
+            pstmt.setString(4, username);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    columns.add(rs.getString(1));
+                }
+            }
+        }
+        return columns.isEmpty() ? null : columns;
+    }
+
+    static final class ImportOptions {
+        final boolean csv;
+        final char delimiter;
+        final String header;
+        final boolean transactional;
+        final long batchRows;
+
+        private ImportOptions(boolean csv, char delimiter, String header, boolean transactional, long batchRows) {
+            this.csv = csv;
+            this.delimiter = delimiter;
+            this.header = header;
+            this.transactional = transactional;
+            this.batchRows = batchRows;
+        }
+
+        static ImportOptions parse(Context ctx, int defaultBatchRows) {
+            String format = valueOr(ctx.queryParam("format"), "csv");
+            if (!format.equals("csv") && !format.equals("tsv")) {
+                throw new IllegalArgumentException("format must be csv or tsv");
+            }
+            boolean csv = format.equals("csv");
+
+            String delimiterParam = ctx.queryParam("delimiter");
+            char delimiter;
+            if (delimiterParam == null) {
+                delimiter = csv ? ',' : '\t';
+            } else if (delimiterParam.equals("tab") || delimiterParam.equals("\\t")) {
+                delimiter = '\t';
+            } else if (delimiterParam.length() == 1 && "\r\n\\\"".indexOf(delimiterParam.charAt(0)) < 0) {
+                delimiter = delimiterParam.charAt(0);
+            } else {
+                throw new IllegalArgumentException("delimiter must be a single character or \"tab\"");
+            }
+
+            String header = valueOr(ctx.queryParam("header"), "auto");
+            if (!header.equals("true") && !header.equals("false") && !header.equals("auto")) {
+                throw new IllegalArgumentException("header must be true, false or auto");
+            }
+
+            String mode = valueOr(ctx.queryParam("mode"), "transaction");
+            if (!mode.equals("transaction") && !mode.equals("batched")) {
+                throw new IllegalArgumentException("mode must be transaction or batched");
+            }
+            long batchRows;
+            try {
+                batchRows = Long.parseLong(valueOr(ctx.queryParam("batchRows"), String.valueOf(defaultBatchRows)));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("batchRows must be a number");
+            }
+            if (batchRows < 1) {
+                throw new IllegalArgumentException("batchRows must be positive");
+            }
+            return new ImportOptions(csv, delimiter, header, mode.equals("transaction"), batchRows);
+        }
+
+        private static String valueOr(String value, String defaultValue) {
+            return value == null ? defaultValue : value;
+        }
+    }
+
+    /**
+     * Reads the upload through one fixed buffer and finds where rows end, telling apart
+     * newlines that end a row from those inside quoted CSV values.
+     */
+    static final class RowScanner {
+        private final InputStream in;
+        private final boolean csv;
+        private final char delimiter;
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        int start;
+        private int limit;
+        private int scanned;
+        private boolean inQuotes;
+        private boolean eof;
+        long rowsScanned;
+
+        RowScanner(InputStream in, ImportOptions options) {
+            this.in = in;
+            this.csv = options.csv;
+            this.delimiter = options.delimiter;
+        }
+
+        /**
+         * Makes sure there are unsent bytes in the buffer, reading more if needed.
+         *
+         * @return false when the whole upload has been sent
+         */
+        boolean fill() throws IOException {
+            if (start < limit) {
+                return true;
+            }
+            start = 0;
+            limit = 0;
+            scanned = 0;
+            while (!eof && limit == 0) {
+                int read = in.read(buffer, 0, buffer.length);
+                if (read < 0) {
+                    eof = true;
+                } else {
+                    limit = read;
+                }
+            }
+            return limit > 0;
+        }
+
+        /**
+         * Scans unsent bytes for row ends, stopping after the given number of rows.
+         *
+         * @return the end of the bytes to send
+         */
+        int scan(long maxRows) {
+            rowsScanned = 0;
+            int position = Math.max(start, scanned);
+            while (position < limit) {
+                byte b = buffer[position++];
+                if (csv && b == '"') {
+                    // Doubled quotes inside a quoted value toggle twice and cancel out
+                    inQuotes = !inQuotes;
+                } else if (b == '\n' && !inQuotes) {
+                    rowsScanned++;
+                    if (rowsScanned == maxRows) {
+                        break;
+                    }
+                }
+            }
+            scanned = position;
+            return position;
+        }
+
+        /**
+         * Decides whether the upload starts with a header row, and consumes it if so.
+         * With header "auto" the first row is a header if all its values are column names.
+         *
+         * @return the columns named by the header, or null if there is no header
+         */
+        List<String> readHeader(String header, List<String> tableColumns) throws IOException {
+            if (header.equals("false")) {
+                return null;
+            }
+            // Read until the first row is in the buffer
+            while (!eof && indexOfRowEnd() < 0 && limit < MAX_HEADER_BYTES) {
+                int read = in.read(buffer, limit, buffer.length - limit);
+                if (read < 0) {
+                    eof = true;
+                } else {
+                    limit += read;
+                }
+            }
+            int rowEnd = indexOfRowEnd();
+            int end = rowEnd >= 0 ? rowEnd : limit;
+            if (end == 0 && limit == 0) {
+                return null;
+            }
+            List<String> values = splitRow(new String(buffer, 0, end, StandardCharsets.UTF_8));
+
+            Set<String> names = new HashSet<>(tableColumns);
+            boolean allColumns = !values.isEmpty();
+            for (String value : values) {
+                allColumns &= names.contains(value);
+            }
+            if (header.equals("auto") && !allColumns) {
+                return null;
+            }
+            start = rowEnd >= 0 ? rowEnd + 1 : limit;
+            scanned = start;
+            return values;
+        }
+
+        private int indexOfRowEnd() {
+            boolean quoted = false;
+            for (int i = 0; i < limit; i++) {
+                if (csv && buffer[i] == '"') {
+                    quoted = !quoted;
+                } else if (buffer[i] == '\n' && !quoted) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private List<String> splitRow(String row) {
+            if (row.endsWith("\r")) {
+                row = row.substring(0, row.length() - 1);
+            }
+            List<String> values = new ArrayList<>();
+            StringBuilder value = new StringBuilder();
+            boolean quoted = false;
+            for (int i = 0; i < row.length(); i++) {
+                char c = row.charAt(i);
+                if (csv && c == '"') {
+                    if (quoted && i + 1 < row.length() && row.charAt(i + 1) == '"') {
+                        value.append('"');
+                        i++;
+                    } else {
+                        quoted = !quoted;
+                    }
+                } else if (c == delimiter && !quoted) {
+                    values.add(value.toString());
+                    value.setLength(0);
+                } else {
+                    value.append(c);
+                }
+            }
+            values.add(value.toString());
+            return values;
+        }
+    }
+
+    /**
+     * Progress of one import, updated by the thread running it and read by progress requests
+     */
+    static final class Progress {
+        final String id;
+        final String sessionId;
+        final String table;
+        final long startNanos = System.nanoTime();
+        volatile long bytes;
+        volatile long rowsSent;
+        volatile long rowsCommitted;
+        volatile long batches;
+
+        Progress(String id, String sessionId, String table) {
+            this.id = id;
+            this.sessionId = sessionId;
+            this.table = table;
+        }
+
+        Map<String, Object> summary(boolean finished) {
+            double seconds = Math.max(System.nanoTime() - startNanos, 1) / 1e9;
+            Map<String, Object> summary = new LinkedHashMap<>();
+            summary.put("importId", id);
+            summary.put("table", table);
+            summary.put("finished", finished);
+            summary.put("rows", finished ? rowsCommitted : rowsSent);
+            summary.put("rowsCommitted", rowsCommitted);
+            summary.put("bytes", bytes);
+            summary.put("batches", batches);
+            summary.put("elapsedMs", (long) (seconds * 1000));
+            summary.put("rowsPerSecond", Math.round(rowsSent / seconds));
+            summary.put("bytesPerSecond", Math.round(bytes / seconds));
+            return summary;
+        }
+    }
+}
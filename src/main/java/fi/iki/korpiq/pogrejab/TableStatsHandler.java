@@ -0,0 +1,195 @@
+package fi.iki.korpiq.pogrejab;
+
+import io.javalin.http.Context;
+import io.javalin.http.HttpStatus;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.Map;
+
+/**
+ * Serves row count estimates, sizes and maintenance state of tables without reading the tables
+ */
+public class TableStatsHandler {
+    // reltuples is the planner's estimate from the last VACUUM or ANALYZE, -1 if there has been none
+    static final String STATS_QUERY = "SELECT c.relname, c.relkind, "
+            + "CASE WHEN c.reltuples >= 0 THEN c.reltuples::bigint END, "
+            + "pg_total_relation_size(c.oid), pg_relation_size(c.oid), "
+            + "s.n_live_tup, s.n_dead_tup, "
+            + "greatest(s.last_vacuum, s.last_autovacuum), greatest(s.last_analyze, s.last_autoanalyze) "
+            + "FROM pg_class c JOIN pg_namespace n ON n.oid = c.relnamespace "
+            + "LEFT JOIN pg_stat_all_tables s ON s.relid = c.oid "
+            + "WHERE n.nspname = ? AND c.relkind IN ('r', 'p', 'm') AND c.relname LIKE ? "
+            + "AND has_table_privilege(?, c.oid, 'SELECT') "
+            + "ORDER BY c.relname";
+
+    private final ExactRowCounter exactRowCounter;
+    private final Metrics metrics;
+
+    public TableStatsHandler(ExactRowCounter exactRowCounter, Metrics metrics) {
+        this.exactRowCounter = exactRowCounter;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Lists the statistics of the tables in a schema the user may read, optionally only those
+     * whose names start with the "prefix" query parameter.
+     */
+    public void handleSchemaStats(Context ctx) {
+        SessionPrincipal principal = SessionPrincipal.of(ctx);
+        String schemaName = ctx.pathParam("schemaName");
+        SessionPool pool = principal.getPool();
+        try {
+            Connection conn = pool.borrow();
+            try {
+                streamStats(ctx, conn, principal, schemaName, CatalogHandler.likePrefix(ctx.queryParam("prefix")), null);
+            } finally {
+                pool.release(conn);
+            }
+        } catch (SQLTimeoutException e) {
+            ctx.status(HttpStatus.SERVICE_UNAVAILABLE).json(Map.of("error", "Session is busy: " + e.getMessage()));
+        } catch (SQLException e) {
+            ctx.status(HttpStatus.BAD_REQUEST).json(Map.of("error", "Reading table statistics failed: " + e.getMessage()));
+        } catch (IOException e) {
+            System.out.println("[DEBUG_LOG] Writing table statistics failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Responds with the statistics of one table. With "exact=true" the table's rows are also
+     * counted in the background; the response has the count once it is done.
+     */
+    public void handleTableStats(Context ctx) {
+        SessionPrincipal principal = SessionPrincipal.of(ctx);
+        String schemaName = ctx.pathParam("schemaName");
+        String tableName = ctx.pathParam("tableName");
+        boolean exact = "true".equals(ctx.queryParam("exact"));
+        SessionPool pool = principal.getPool();
+        try {
+            Connection conn = pool.borrow();
+            try {
+                TableDataHandler.TableInfo table = TableDataHandler.findReadableTable(conn, principal.getUsername(), schemaName, tableName);
+                // Views and foreign tables are readable but have no storage, statistics or rows to count here
+                if (table == null || !hasStats(table)) {
+                    ctx.status(HttpStatus.NOT_FOUND).json(Map.of("error", "Table " + schemaName + "." + tableName + " not found"));
+                    return;
+                }
+                if (exact) {
+                    exactRowCounter.request(principal.getDatabaseName(), principal.getUsername(), table, pool);
+                }
+                streamStats(ctx, conn, principal, schemaName, CatalogHandler.likeLiteral(tableName), table);
+            } finally {
+                pool.release(conn);
+            }
+        } catch (SQLTimeoutException e) {
+            ctx.status(HttpStatus.SERVICE_UNAVAILABLE).json(Map.of("error", "Session is busy: " + e.getMessage()));
+        } catch (SQLException e) {
+            ctx.status(HttpStatus.BAD_REQUEST).json(Map.of("error", "Reading table statistics failed: " + e.getMessage()));
+        } catch (IOException e) {
+            System.out.println("[DEBUG_LOG] Writing table statistics failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Whether STATS_QUERY covers the relation: a table, a partitioned table or a materialized view.
+     */
+    private static boolean hasStats(TableDataHandler.TableInfo table) {
+        return "r".equals(table.relkind) || "p".equals(table.relkind) || "m".equals(table.relkind);
+    }
+
+    /**
+     * Writes the statistics of the matching tables, as an object for a single table or else as a list.
+     */
+    private void streamStats(Context ctx, Connection conn, SessionPrincipal principal, String schemaName,
+                             String namePattern, TableDataHandler.TableInfo single) throws SQLException, IOException {
+        try (PreparedStatement pstmt = conn.prepareStatement(STATS_QUERY)) {
+            pstmt.setString(1, schemaName);
+            pstmt.setString(2, namePattern);
+            pstmt.setString(3, principal.getUsername());
+
+            long queryStart = System.nanoTime();
+            try (ResultSet rs = pstmt.executeQuery()) {
+                long serializationStart = System.nanoTime();
+                metrics.recordQuery(serializationStart - queryStart);
+
+                ctx.status(HttpStatus.OK);
+                ctx.contentType("application/json");
+                try (JsonStreamWriter json = new JsonStreamWriter(ctx.outputStream())) {
+                    if (single != null) {
+                        if (rs.next()) {
+                            writeTable(json, rs, exactRowCounter.get(principal.getDatabaseName(), principal.getUsername(), single));
+                        } else {
+                            json.nullValue();
+                        }
+                    } else {
+                        json.beginObject().name("schema").value(schemaName).name("tables").beginArray();
+                        while (rs.next()) {
+                            writeTable(json, rs, null);
+                        }
+                        json.endArray().endObject();
+                    }
+                }
+                metrics.recordSerialization(System.nanoTime() - serializationStart);
+            }
+        }
+    }
+
+    private static void writeTable(JsonStreamWriter json, ResultSet rs, ExactRowCounter.Count exactCount)
+            throws SQLException, IOException {
+        json.beginObject()
+            .name("name").value(rs.getString(1))
+            .name("kind").value(CatalogHandler.relationKind(rs.getString(2)));
+        json.name("estimatedRows");
+        writeLong(json, rs, 3);
+        json.name("totalBytes");
+        writeLong(json, rs, 4);
+        json.name("tableBytes");
+        writeLong(json, rs, 5);
+        json.name("liveTuples");
+        long live = writeLong(json, rs, 6);
+        json.name("deadTuples");
+        long dead = writeLong(json, rs, 7);
+        json.name("deadTupleRatio");
+        if (rs.wasNull() || live + dead == 0) {
+            json.nullValue();
+        } else {
+            json.value((double) dead / (live + dead));
+        }
+        json.name("lastVacuum").value(isoTime(rs.getTimestamp(8)));
+        json.name("lastAnalyze").value(isoTime(rs.getTimestamp(9)));
+        if (exactCount != null) {
+            // The status is written last by the counting thread, so the other fields are complete for it
+            ExactRowCounter.Status status = exactCount.status;
+            json.name("exactCount").beginObject().name("status").value(status.name().toLowerCase());
+            if (status == ExactRowCounter.Status.SUCCEEDED) {
+                json.name("rows").value(exactCount.rows);
+            }
+            if (status != ExactRowCounter.Status.RUNNING) {
+                json.name("countedAt").value(Instant.ofEpochMilli(exactCount.countedAt).toString());
+                json.name("error").value(exactCount.error);
+            }
+            json.endObject();
+        }
+        json.endObject();
+    }
+
+    private static long writeLong(JsonStreamWriter json, ResultSet rs, int column) throws SQLException, IOException {
+        long value = rs.getLong(column);
+        if (rs.wasNull()) {
+            json.nullValue();
+        } else {
+            json.value(value);
+        }
+        return value;
+    }
+
+    private static String isoTime(Timestamp timestamp) {
+        return timestamp == null ? null : timestamp.toInstant().toString();
+    }
+}
@@ -1,6 +1,7 @@
 package fi.iki.korpiq.pogrejab;
 
 import io.restassured.response.Response;
+import org.testcontainers.containers.GenericContainer;
 import org.testcontainers.containers.PostgreSQLContainer;
 
 import java.sql.Connection;
@@ -12,6 +13,7 @@ import java.util.Map;
  */
 public class TestContext {
     private PostgreSQLContainer<?> postgresContainer;
+    private GenericContainer<?> replicaContainer;
     private Response lastResponse;
     private String jwtToken;
     private Map<String, Connection> sessionConnections = new HashMap<>();
@@ -25,6 +27,14 @@ public class TestContext {
         this.postgresContainer = postgresContainer;
     }
 
+    public GenericContainer<?> getReplicaContainer() {
+        return replicaContainer;
+    }
+
+    public void setReplicaContainer(GenericContainer<?> replicaContainer) {
+        this.replicaContainer = replicaContainer;
+    }
+
     public Response getLastResponse() {
         return lastResponse;
     }
@@ -0,0 +1,124 @@
+package fi.iki.korpiq.pogrejab;
+
+import io.javalin.Javalin;
+import org.testcontainers.containers.PostgreSQLContainer;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Compares platform and virtual request threads under a mix of fast and slow JDBC calls.
+ *
+ * Run with: ./gradlew runThreadModeBenchmark (needs Docker, and Java 21 for virtual threads)
+ */
+public class ThreadModeBenchmark {
+    private static final int REQUESTS = 4000;
+    private static final int CONCURRENCY = 500;
+    private static final int SLOW_EVERY = 5;
+    private static final String SLOW_QUERY = "SELECT pg_sleep(0.1)";
+    private static final String FAST_QUERY = "SELECT 1";
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("Java " + Runtime.version());
+        try (PostgreSQLContainer<?> postgres = new PostgreSQLContainer<>("postgres:18-alpine")) {
+            postgres.start();
+            for (boolean virtualThreads : new boolean[] {false, true}) {
+                run(postgres, virtualThreads);
+            }
+        }
+    }
+
+    private static void run(PostgreSQLContainer<?> postgres, boolean virtualThreads) throws Exception {
+        SessionConnectionPool pool = new SessionConnectionPool(postgres.getJdbcUrl(), postgres.getUsername(),
+                postgres.getPassword(), postgres.getDatabaseName(), 1, 50, 60000, 60000, 30000, new Semaphore(50, true),
+                32, new StatementCache.Stats(), new SessionConnectionPool.Stats());
+
+        Javalin app = Javalin.create(config -> {
+            config.showJavalinBanner = false;
+            config.useVirtualThreads = virtualThreads;
+        }).start(0);
+        app.get("/fast", ctx -> ctx.result(query(pool, FAST_QUERY)));
+        app.get("/slow", ctx -> ctx.result(query(pool, SLOW_QUERY)));
+        app.get("/health", ctx -> ctx.result("OK"));
+
+        try {
+            HttpClient client = HttpClient.newHttpClient();
+            List<Long> fast = Collections.synchronizedList(new ArrayList<>());
+            List<Long> slow = Collections.synchronizedList(new ArrayList<>());
+            List<Long> health = Collections.synchronizedList(new ArrayList<>());
+            Semaphore concurrency = new Semaphore(CONCURRENCY);
+            List<CompletableFuture<?>> futures = new ArrayList<>();
+
+            long start = System.nanoTime();
+            for (int i = 0; i < REQUESTS; i++) {
+                String path;
+                List<Long> latencies;
+                if (i % SLOW_EVERY == 0) {
+                    path = "/slow";
+                    latencies = slow;
+                } else if (i % SLOW_EVERY == 1) {
+                    path = "/health";
+                    latencies = health;
+                } else {
+                    path = "/fast";
+                    latencies = fast;
+                }
+                HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + app.port() + path)).build();
+
+                concurrency.acquire();
+                long sent = System.nanoTime();
+                futures.add(client.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+                        .whenComplete((response, error) -> {
+                            latencies.add(System.nanoTime() - sent);
+                            concurrency.release();
+                        }));
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+            long elapsedNanos = System.nanoTime() - start;
+
+            String mode = virtualThreads ? "virtual" : "platform";
+            System.out.printf("mode=%s requests=%d concurrency=%d throughput=%.1f/s%n",
+                    mode, REQUESTS, CONCURRENCY, REQUESTS / (elapsedNanos / 1e9));
+            report(mode, "fast", fast);
+            report(mode, "slow", slow);
+            report(mode, "health", health);
+        } finally {
+            app.stop();
+            pool.close();
+        }
+    }
+
+    private static String query(SessionConnectionPool pool, String sql) throws Exception {
+        Connection conn = pool.borrow();
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute(sql);
+            return "OK";
+        } finally {
+            pool.release(conn);
+        }
+    }
+
+    private static void report(String mode, String route, List<Long> latencies) {
+        List<Long> sorted = new ArrayList<>(latencies);
+        Collections.sort(sorted);
+        System.out.printf("mode=%s route=%s count=%d p50=%.1fms p99=%.1fms max=%.1fms%n", mode, route, sorted.size(),
+                percentile(sorted, 0.50), percentile(sorted, 0.99), percentile(sorted, 1.0));
+    }
+
+    private static double percentile(List<Long> sorted, double fraction) {
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        int index = (int) Math.ceil(fraction * sorted.size()) - 1;
+        return sorted.get(Math.max(0, index)) / 1e6;
+    }
+}
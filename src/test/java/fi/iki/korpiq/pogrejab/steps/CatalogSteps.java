@@ -0,0 +1,187 @@
+package fi.iki.korpiq.pogrejab.steps;
+
+import fi.iki.korpiq.pogrejab.TestContext;
+import io.cucumber.java.en.And;
+import io.cucumber.java.en.Then;
+import io.cucumber.java.en.When;
+import io.restassured.RestAssured;
+import io.restassured.response.Response;
+import org.testcontainers.containers.PostgreSQLContainer;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CatalogSteps {
+    private final TestContext testContext;
+
+    public CatalogSteps(TestContext testContext) {
+        this.testContext = testContext;
+    }
+
+    @When("I request the catalog of database {string}")
+    public void iRequestTheCatalogOfDatabase(String dbName) {
+        Response response = RestAssured.given()
+                .header("Authorization", "Bearer " + testContext.getJwtToken())
+                .when()
+                .get("/api/databases/" + dbName + "/catalog");
+
+        testContext.setLastResponse(response);
+    }
+
+    @When("I request the catalog of database {string} with schema prefix {string}")
+    public void iRequestTheCatalogOfDatabaseWithSchemaPrefix(String dbName, String schemaPrefix) {
+        Response response = RestAssured.given()
+                .header("Authorization", "Bearer " + testContext.getJwtToken())
+                .queryParam("schemaPrefix", schemaPrefix)
+                .when()
+                .get("/api/databases/" + dbName + "/catalog");
+
+        testContext.setLastResponse(response);
+    }
+
+    @And("the catalog should contain table {string} in schema {string}")
+    public void theCatalogShouldContainTableInSchema(String tableName, String schemaName) {
+        assertTrue(relationsOf(schemaName).contains(tableName), "Catalog should contain " + schemaName + "." + tableName);
+    }
+
+    @And("the catalog should not contain table {string} in schema {string}")
+    public void theCatalogShouldNotContainTableInSchema(String tableName, String schemaName) {
+        assertFalse(relationsOf(schemaName).contains(tableName), "Catalog should not contain " + schemaName + "." + tableName);
+    }
+
+    @And("the catalog should not contain schema {string}")
+    public void theCatalogShouldNotContainSchema(String schemaName) {
+        List<String> schemas = testContext.getLastResponse().jsonPath().getList("schemas.name", String.class);
+        assertFalse(schemas.contains(schemaName), "Catalog should not contain schema " + schemaName);
+    }
+
+    @When("I search the catalog of database {string} for {string}")
+    public void iSearchTheCatalogOfDatabaseFor(String dbName, String query) {
+        Response response = RestAssured.given()
+                .header("Authorization", "Bearer " + testContext.getJwtToken())
+                .queryParam("q", query)
+                .when()
+                .get("/api/databases/" + dbName + "/search");
+
+        testContext.setLastResponse(response);
+    }
+
+    @And("the search results should include table {string}")
+    public void theSearchResultsShouldIncludeTable(String tableName) {
+        assertTrue(resultNames("table").contains(tableName), "Search results should include table " + tableName);
+    }
+
+    @And("the search results should not include table {string}")
+    public void theSearchResultsShouldNotIncludeTable(String tableName) {
+        assertFalse(resultNames("table").contains(tableName), "Search results should not include table " + tableName);
+    }
+
+    @And("the search results should include column {string} of table {string}")
+    public void theSearchResultsShouldIncludeColumnOfTable(String columnName, String tableName) {
+        List<String> columns = testContext.getLastResponse().jsonPath()
+                .getList("results.findAll { it.kind == 'column' && it.table == '" + tableName + "' }.name", String.class);
+        assertTrue(columns.contains(columnName), "Search results should include column " + tableName + "." + columnName);
+    }
+
+    @And("the column {string} of table {string} in schema {string} in database {string} is renamed to {string}")
+    public void theColumnIsRenamed(String columnName, String tableName, String schemaName, String dbName, String newName) throws SQLException {
+        PostgreSQLContainer<?> postgres = testContext.getPostgresContainer();
+        String url = postgres.getJdbcUrl();
+        String dbUrl = url.substring(0, url.lastIndexOf("/") + 1) + dbName;
+        try (Connection conn = DriverManager.getConnection(dbUrl, postgres.getUsername(), postgres.getPassword())) {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("ALTER TABLE " + schemaName + "." + tableName + " RENAME COLUMN " + columnName + " TO " + newName);
+            }
+        }
+    }
+
+    @Then("searching the catalog of database {string} for {string} should come to find column {string} of table {string}")
+    public void searchingShouldComeToFindColumn(String dbName, String query, String columnName, String tableName) throws InterruptedException {
+        // A changed catalog is indexed again in the background, while searches still use the old index
+        long deadline = System.currentTimeMillis() + 10000;
+        while (true) {
+            iSearchTheCatalogOfDatabaseFor(dbName, query);
+            List<String> columns = testContext.getLastResponse().jsonPath()
+                    .getList("results.findAll { it.kind == 'column' && it.table == '" + tableName + "' }.name", String.class);
+            if (columns.contains(columnName)) {
+                return;
+            }
+            assertTrue(System.currentTimeMillis() < deadline, "Search never found column " + tableName + "." + columnName);
+            Thread.sleep(200);
+        }
+    }
+
+    @When("I request the structure of schema {string} in database {string}")
+    public void iRequestTheStructureOfSchemaInDatabase(String schemaName, String dbName) {
+        Response response = RestAssured.given()
+                .header("Authorization", "Bearer " + testContext.getJwtToken())
+                .when()
+                .get("/api/databases/" + dbName + "/schemas/" + schemaName + "/structure");
+
+        testContext.setLastResponse(response);
+    }
+
+    @And("the structure should list table {string}")
+    public void theStructureShouldListTable(String tableName) {
+        List<String> tables = testContext.getLastResponse().jsonPath().getList("tables.name", String.class);
+        assertTrue(tables.contains(tableName), "Structure should list table " + tableName);
+    }
+
+    @And("the structure should not list table {string}")
+    public void theStructureShouldNotListTable(String tableName) {
+        List<String> tables = testContext.getLastResponse().jsonPath().getList("tables.name", String.class);
+        assertFalse(tables.contains(tableName), "Structure should not list table " + tableName);
+    }
+
+    @And("the column {string} of table {string} should be its primary key")
+    public void theColumnOfTableShouldBeItsPrimaryKey(String columnName, String tableName) {
+        List<String> keyColumns = testContext.getLastResponse().jsonPath()
+                .getList("tables.find { it.name == '" + tableName + "' }.constraints.find { it.type == 'primary_key' }.columns",
+                        String.class);
+        assertTrue(keyColumns.contains(columnName), "Primary key of " + tableName + " should be " + columnName);
+    }
+
+    @Then("the structure of schema {string} in database {string} should come to list column {string} of table {string} under a new entity tag")
+    public void theStructureShouldComeToListColumn(String schemaName, String dbName, String columnName, String tableName)
+            throws InterruptedException {
+        String etag = testContext.getLastResponse().getHeader("ETag");
+        assertNotNull(etag, "The last response had no entity tag");
+        // The catalog is probed for changes at most once per probe interval
+        long deadline = System.currentTimeMillis() + 10000;
+        while (true) {
+            Response response = RestAssured.given()
+                    .header("Authorization", "Bearer " + testContext.getJwtToken())
+                    .header("If-None-Match", etag)
+                    .when()
+                    .get("/api/databases/" + dbName + "/schemas/" + schemaName + "/structure");
+            testContext.setLastResponse(response);
+            if (response.getStatusCode() == 200) {
+                List<String> columns = response.jsonPath()
+                        .getList("tables.find { it.name == '" + tableName + "' }.columns.name", String.class);
+                assertTrue(columns.contains(columnName), "Structure of " + tableName + " should list column " + columnName);
+                return;
+            }
+            assertEquals(304, response.getStatusCode(), "Unexpected status");
+            assertTrue(System.currentTimeMillis() < deadline, "Structure was never served again after the change");
+            Thread.sleep(200);
+        }
+    }
+
+    private List<String> resultNames(String kind) {
+        return testContext.getLastResponse().jsonPath()
+                .getList("results.findAll { it.kind == '" + kind + "' }.name", String.class);
+    }
+
+    private List<String> relationsOf(String schemaName) {
+        return testContext.getLastResponse().jsonPath()
+                .getList("schemas.find { it.name == '" + schemaName + "' }.relations.name", String.class);
+    }
+}
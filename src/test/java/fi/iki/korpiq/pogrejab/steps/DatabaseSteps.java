@@ -80,6 +80,32 @@ public class DatabaseSteps {
         }
     }
 
+    @Given("connecting to database {string} takes {int} ms for user {string}")
+    public void connectingToDatabaseTakesFor(String dbName, int delayMs, String username) throws SQLException {
+        PostgreSQLContainer<?> postgres = testContext.getPostgresContainer();
+        String url = postgres.getJdbcUrl();
+        String dbUrl = url.substring(0, url.lastIndexOf("/") + 1) + dbName;
+        try (Connection conn = DriverManager.getConnection(dbUrl, postgres.getUsername(), postgres.getPassword())) {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("CREATE FUNCTION slow_login() RETURNS event_trigger LANGUAGE plpgsql AS $$ BEGIN "
+                        + "IF session_user = '" + username + "' THEN PERFORM pg_sleep(" + delayMs / 1000.0 + "); END IF; "
+                        + "END $$");
+                stmt.execute("CREATE EVENT TRIGGER slow_login ON login EXECUTE FUNCTION slow_login()");
+            }
+        }
+    }
+
+    @When("I list the databases as {string} with password {string}")
+    public void iListTheDatabasesAs(String username, String password) {
+        Response response = RestAssured.given()
+                .contentType("application/json")
+                .body(Map.of("username", username, "password", password))
+                .when()
+                .post("/api/databases");
+
+        testContext.setLastResponse(response);
+    }
+
     @And("I am logged in as {string} with password {string}")
     public void iAmLoggedInAsWithPassword(String username, String password) {
         // Step 1: Get databases
@@ -210,6 +236,29 @@ public class DatabaseSteps {
         testContext.setLastResponse(response);
     }
 
+    @When("I request the list of schemas for database {string} again with the entity tag of the last response")
+    public void iRequestTheListOfSchemasAgainWithTheEntityTag(String dbName) {
+        String etag = testContext.getLastResponse().getHeader("ETag");
+        assertNotNull(etag, "The last response had no entity tag");
+
+        Response response = RestAssured.given()
+                .header("Authorization", "Bearer " + testContext.getJwtToken())
+                .header("If-None-Match", etag)
+                .when()
+                .get("/api/databases/" + dbName + "/schemas");
+
+        testContext.setLastResponse(response);
+    }
+
+    @When("I request the list of schemas for database {string} without a token")
+    public void iRequestTheListOfSchemasWithoutAToken(String dbName) {
+        Response response = RestAssured.given()
+                .when()
+                .get("/api/databases/" + dbName + "/schemas");
+
+        testContext.setLastResponse(response);
+    }
+
     @And("the response should contain schema {string}")
     public void theResponseShouldContainSchema(String expectedSchema) {
         Response response = testContext.getLastResponse();
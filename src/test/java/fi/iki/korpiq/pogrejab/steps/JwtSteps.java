@@ -0,0 +1,150 @@
+package fi.iki.korpiq.pogrejab.steps;
+
+import com.auth0.jwt.JWT;
+import com.auth0.jwt.algorithms.Algorithm;
+import com.auth0.jwt.interfaces.DecodedJWT;
+import fi.iki.korpiq.pogrejab.JwtService;
+import io.cucumber.java.en.And;
+import io.cucumber.java.en.Given;
+import io.cucumber.java.en.Then;
+import io.cucumber.java.en.When;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.interfaces.ECPrivateKey;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.ECFieldFp;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPublicKeySpec;
+import java.security.spec.EllipticCurve;
+import java.util.Base64;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class JwtSteps {
+    private final Map<String, KeyPair> keyPairs = new HashMap<>();
+    private final Map<String, Path> privateKeyPaths = new HashMap<>();
+    private final Map<String, Path> publicKeyPaths = new HashMap<>();
+    private JwtService jwtService;
+    private String token;
+
+    @Given("a {string} signing key {string}")
+    public void aSigningKey(String algorithm, String name) throws IOException, GeneralSecurityException {
+        KeyPairGenerator generator;
+        if (algorithm.equals("ES256")) {
+            generator = KeyPairGenerator.getInstance("EC");
+            generator.initialize(new ECGenParameterSpec("secp256r1"));
+        } else {
+            generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(2048);
+        }
+        KeyPair keyPair = generator.generateKeyPair();
+        keyPairs.put(name, keyPair);
+        privateKeyPaths.put(name, writePem(name, "PRIVATE KEY", keyPair.getPrivate().getEncoded()));
+        publicKeyPaths.put(name, writePem(name + ".pub", "PUBLIC KEY", keyPair.getPublic().getEncoded()));
+    }
+
+    @Given("a public key {string} on the secp256k1 curve")
+    public void aPublicKeyOnSecp256k1(String name) throws IOException, GeneralSecurityException {
+        // The JDK no longer generates secp256k1 keys, but still encodes one given its parameters
+        EllipticCurve curve = new EllipticCurve(new ECFieldFp(hex("FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFEFFFFFC2F")),
+                BigInteger.ZERO, BigInteger.valueOf(7));
+        ECPoint generator = new ECPoint(hex("79BE667EF9DCBBAC55A06295CE870B07029BFCDB2DCE28D959F2815B16F81798"),
+                hex("483ADA7726A3C4655DA4FBFC0E1108A8FD17B448A68554199C47D08FFB10D4B8"));
+        ECParameterSpec secp256k1 = new ECParameterSpec(curve, generator,
+                hex("FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFEBAAEDCE6AF48A03BBFD25E8CD0364141"), 1);
+        PublicKey publicKey = KeyFactory.getInstance("EC").generatePublic(new ECPublicKeySpec(generator, secp256k1));
+        publicKeyPaths.put(name, writePem(name + ".pub", "PUBLIC KEY", publicKey.getEncoded()));
+    }
+
+    @Given("a JWT service signing with key {string}")
+    @When("the JWT service is restarted signing with key {string}")
+    public void aJwtServiceSigningWithKey(String name) {
+        jwtService = createJwtService(name, List.of());
+    }
+
+    @Given("a JWT service signing with key {string} and also accepting key {string}")
+    @When("the JWT service is restarted signing with key {string} and also accepting key {string}")
+    public void aJwtServiceAlsoAcceptingKey(String name, String additionalName) {
+        jwtService = createJwtService(name, List.of(additionalName));
+    }
+
+    @Then("a JWT service signing with key {string} and also accepting key {string} cannot be created")
+    public void aJwtServiceCannotBeCreated(String name, String additionalName) {
+        assertThrows(RuntimeException.class, () -> createJwtService(name, List.of(additionalName)));
+    }
+
+    @When("the JWT service issues a token for session {string}")
+    public void theJwtServiceIssuesAToken(String sessionId) {
+        token = jwtService.generateToken("testuser", sessionId);
+    }
+
+    @When("a token for session {string} is signed with key {string} but names key {string}")
+    public void aTokenSignedWithOneKeyNamingAnother(String sessionId, String signingName, String namedName) {
+        String namedKeyId = JWT.decode(createJwtService(namedName, List.of()).generateToken("testuser", sessionId)).getKeyId();
+        KeyPair keyPair = keyPairs.get(signingName);
+        Algorithm algorithm = keyPair.getPublic() instanceof RSAPublicKey
+                ? Algorithm.RSA256((RSAPublicKey) keyPair.getPublic(), (RSAPrivateKey) keyPair.getPrivate())
+                : Algorithm.ECDSA256((ECPublicKey) keyPair.getPublic(), (ECPrivateKey) keyPair.getPrivate());
+        token = JWT.create()
+                .withClaim("username", "testuser")
+                .withClaim("sessionId", sessionId)
+                .withExpiresAt(new Date(System.currentTimeMillis() + 3600000))
+                .withKeyId(namedKeyId)
+                .sign(algorithm);
+    }
+
+    @Then("the token should be signed with {string} and name its key")
+    public void theTokenShouldBeSignedWith(String algorithm) {
+        DecodedJWT jwt = JWT.decode(token);
+        assertEquals(algorithm, jwt.getAlgorithm(), "Unexpected signing algorithm");
+        assertNotNull(jwt.getKeyId(), "Token does not name its signing key");
+    }
+
+    @And("the JWT service should accept the token for session {string}")
+    public void theJwtServiceShouldAcceptTheToken(String sessionId) {
+        assertEquals(sessionId, jwtService.validateSessionId(token), "Token was accepted for another session");
+    }
+
+    @Then("the JWT service should reject the token")
+    public void theJwtServiceShouldRejectTheToken() {
+        assertThrows(RuntimeException.class, () -> jwtService.validateSessionId(token));
+    }
+
+    private JwtService createJwtService(String name, List<String> additionalNames) {
+        String algorithm = keyPairs.get(name).getPublic() instanceof RSAPublicKey ? "RS256" : "ES256";
+        List<String> additionalPaths = additionalNames.stream().map(n -> publicKeyPaths.get(n).toString()).toList();
+        return new JwtService(privateKeyPaths.get(name).toString(), publicKeyPaths.get(name).toString(),
+                3600000, 16, algorithm, additionalPaths);
+    }
+
+    private static Path writePem(String name, String type, byte[] der) throws IOException {
+        Path path = Files.createTempFile("pogrejab-jwt-" + name, ".pem");
+        path.toFile().deleteOnExit();
+        Files.writeString(path, "-----BEGIN " + type + "-----\n"
+                + Base64.getMimeEncoder(64, "\n".getBytes()).encodeToString(der)
+                + "\n-----END " + type + "-----\n");
+        return path;
+    }
+
+    private static BigInteger hex(String value) {
+        return new BigInteger(value, 16);
+    }
+}
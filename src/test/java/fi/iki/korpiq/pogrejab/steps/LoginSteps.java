@@ -4,6 +4,8 @@ import com.auth0.jwt.JWT;
 import com.auth0.jwt.algorithms.Algorithm;
 import com.auth0.jwt.interfaces.DecodedJWT;
 import fi.iki.korpiq.pogrejab.App;
+import fi.iki.korpiq.pogrejab.Config;
+import fi.iki.korpiq.pogrejab.SessionConnectionPool;
 import fi.iki.korpiq.pogrejab.TestContext;
 import io.cucumber.java.After;
 import io.cucumber.java.Before;
@@ -13,6 +15,7 @@ import io.cucumber.java.en.Then;
 import io.cucumber.java.en.When;
 import io.restassured.RestAssured;
 import io.restassured.response.Response;
+import org.testcontainers.containers.GenericContainer;
 import org.testcontainers.containers.PostgreSQLContainer;
 
 import java.io.IOException;
@@ -28,11 +31,13 @@ import java.security.interfaces.RSAPublicKey;
 import java.security.spec.X509EncodedKeySpec;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.time.Duration;
 import java.util.Base64;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -139,6 +144,63 @@ public class LoginSteps {
         assertTrue(testContext.getPostgresContainer().isRunning());
     }
 
+    @Given("the application runs in shared session mode with {int} shared connection(s)")
+    public void theApplicationRunsInSharedSessionMode(int sharedPoolSize) {
+        restartApp(new Config() {
+            @Override
+            public String getSessionMode() {
+                return "shared";
+            }
+
+            @Override
+            public int getSharedPoolSize() {
+                return sharedPoolSize;
+            }
+        });
+    }
+
+    @Given("the application runs with settings:")
+    public void theApplicationRunsWithSettings(io.cucumber.datatable.DataTable dataTable) {
+        restartApp(new SettingsConfig(dataTable.asMap(String.class, String.class)));
+    }
+
+    @Given("the application reads from the replica with at most {int} ms lag")
+    public void theApplicationReadsFromTheReplica(int maxLagMs) {
+        GenericContainer<?> replica = testContext.getReplicaContainer();
+        restartApp(new SettingsConfig(Map.of(
+                "db.replicas", "jdbc:postgresql://" + replica.getHost() + ":" + replica.getMappedPort(5432) + "/testdb",
+                "db.replica.maxLagMs", String.valueOf(maxLagMs),
+                "db.replica.checkIntervalMs", "100")));
+    }
+
+    private void restartApp(Config config) {
+        app.stop();
+        app = new App(config);
+        app.start(0);
+        int port = app.getPort();
+        testContext.setServerPort(port);
+        RestAssured.port = port;
+        waitForAppReady(port);
+    }
+
+    @Then("the shared connections of database {string} should be back to the service role")
+    public void theSharedConnectionsShouldBeBackToTheServiceRole(String dbName) throws SQLException {
+        List<SessionConnectionPool> pools = app.getLoginHandler().getSharedPools().values().stream()
+                .filter(pool -> pool.getDatabaseName().equals(dbName))
+                .toList();
+        assertFalse(pools.isEmpty(), "No shared pool for " + dbName);
+        for (SessionConnectionPool pool : pools) {
+            Connection conn = pool.borrow();
+            try (Statement stmt = conn.createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT current_user")) {
+                rs.next();
+                assertEquals(testContext.getPostgresContainer().getUsername(), rs.getString(1));
+            } finally {
+                pool.release(conn);
+            }
+        }
+    }
+
     @Given("a Postgres user {string} with password {string} exists")
     public void aPostgresUserWithPasswordExists(String username, String password) {
         try (Connection conn = DriverManager.getConnection(
@@ -190,6 +252,30 @@ public class LoginSteps {
         }
     }
 
+    @When("I try to log in as {string} with a wrong password {int} times")
+    public void iTryToLogInWithAWrongPassword(String username, int times) {
+        for (int i = 0; i < times; i++) {
+            sendPostRequest("/api/login", Map.of("username", username, "password", "wrong" + i, "dbName", "testdb"));
+        }
+    }
+
+    @When("I log in as {string} with password {string} {int} times")
+    public void iLogInTimes(String username, String password, int times) {
+        for (int i = 0; i < times; i++) {
+            sendPostRequest("/api/login", Map.of("username", username, "password", password, "dbName", "testdb"));
+        }
+    }
+
+    @When("I log out")
+    public void iLogOut() {
+        Response response = RestAssured.given()
+                .header("Authorization", "Bearer " + testContext.getJwtToken())
+                .when()
+                .post("/api/logout");
+
+        testContext.setLastResponse(response);
+    }
+
     @And("a cookie {string} should be set with path {string}")
     public void aCookieShouldBeSetWithPath(String cookieName, String path) {
         Response response = testContext.getLastResponse();
@@ -210,6 +296,11 @@ public class LoginSteps {
         assertEquals(expectedStatus, testContext.getLastResponse().getStatusCode());
     }
 
+    @And("the response should have a {string} header")
+    public void theResponseShouldHaveAHeader(String headerName) {
+        assertNotNull(testContext.getLastResponse().getHeader(headerName), "Response has no " + headerName + " header");
+    }
+
     @And("the response should contain a valid JWT token")
     public void theResponseShouldContainAValidJWTToken() {
         assertNotNull(testContext.getLastResponse());
@@ -275,6 +366,83 @@ public class LoginSteps {
         // to a Postgres connection. For now, we verify the JWT contains the correct username
     }
 
+    /**
+     * Configuration with some application.properties settings replaced
+     */
+    private static final class SettingsConfig extends Config {
+        private final Map<String, String> settings;
+
+        private SettingsConfig(Map<String, String> settings) {
+            this.settings = settings;
+        }
+
+        private long setting(String key, long defaultValue) {
+            String value = settings.get(key);
+            return value != null ? Long.parseLong(value) : defaultValue;
+        }
+
+        @Override
+        public int getPoolMinSize() {
+            return (int) setting("db.pool.minSize", super.getPoolMinSize());
+        }
+
+        @Override
+        public int getPoolMaxSize() {
+            return (int) setting("db.pool.size", super.getPoolMaxSize());
+        }
+
+        @Override
+        public long getPoolMaxWaitMs() {
+            return setting("db.pool.maxWait", super.getPoolMaxWaitMs());
+        }
+
+        @Override
+        public long getPoolIdleTimeoutMs() {
+            return setting("db.pool.idleTimeoutMs", super.getPoolIdleTimeoutMs());
+        }
+
+        @Override
+        public long getPoolValidationIntervalMs() {
+            return setting("db.pool.validationIntervalMs", super.getPoolValidationIntervalMs());
+        }
+
+        @Override
+        public List<String> getDatabaseReplicaUrls() {
+            String value = settings.get("db.replicas");
+            return value != null ? List.of(value.split(",")) : super.getDatabaseReplicaUrls();
+        }
+
+        @Override
+        public long getReplicaMaxLagMs() {
+            return setting("db.replica.maxLagMs", super.getReplicaMaxLagMs());
+        }
+
+        @Override
+        public long getReplicaCheckIntervalMs() {
+            return setting("db.replica.checkIntervalMs", super.getReplicaCheckIntervalMs());
+        }
+
+        @Override
+        public long getSessionIdleTimeoutMs() {
+            return setting("session.idleTimeoutMs", super.getSessionIdleTimeoutMs());
+        }
+
+        @Override
+        public long getSessionAbsoluteTimeoutMs() {
+            return setting("session.absoluteTimeoutMs", super.getSessionAbsoluteTimeoutMs());
+        }
+
+        @Override
+        public int getSessionMaxCount() {
+            return (int) setting("session.maxCount", super.getSessionMaxCount());
+        }
+
+        @Override
+        public long getSessionReaperTickMs() {
+            return setting("session.reaperTickMs", super.getSessionReaperTickMs());
+        }
+    }
+
     /**
      * Helper method to read RSA public key from PEM file
      */
@@ -0,0 +1,69 @@
+package fi.iki.korpiq.pogrejab.steps;
+
+import fi.iki.korpiq.pogrejab.TestContext;
+import io.cucumber.java.en.And;
+import io.cucumber.java.en.Then;
+import io.cucumber.java.en.When;
+import io.restassured.RestAssured;
+import io.restassured.response.Response;
+
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class MetricsSteps {
+    private final TestContext testContext;
+
+    public MetricsSteps(TestContext testContext) {
+        this.testContext = testContext;
+    }
+
+    @When("I request the metrics")
+    public void iRequestTheMetrics() {
+        Response response = RestAssured.given()
+                .when()
+                .get("/metrics");
+
+        testContext.setLastResponse(response);
+    }
+
+    @Then("the metrics should come to include {string}")
+    public void theMetricsShouldComeToInclude(String sample) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        iRequestTheMetrics();
+        while (testContext.getLastResponse().getBody().asString().lines().noneMatch(sample::equals)
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+            iRequestTheMetrics();
+        }
+        theMetricsShouldInclude(sample);
+    }
+
+    @Then("the metric {string} should come to exceed {double}")
+    public void theMetricShouldComeToExceed(String series, double limit) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        double value = sampleOf(series);
+        while (value <= limit && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+            value = sampleOf(series);
+        }
+        assertTrue(value > limit, series + " should exceed " + limit + " but was " + value);
+    }
+
+    private double sampleOf(String series) {
+        iRequestTheMetrics();
+        String prefix = series + " ";
+        return testContext.getLastResponse().getBody().asString().lines()
+                .filter(line -> line.startsWith(prefix))
+                .mapToDouble(line -> Double.parseDouble(line.substring(prefix.length())))
+                .findFirst()
+                .orElse(Double.NaN);
+    }
+
+    @And("the metrics should include {string}")
+    public void theMetricsShouldInclude(String sample) {
+        Response response = testContext.getLastResponse();
+        assertNotNull(response);
+        String body = response.getBody().asString();
+        assertTrue(body.lines().anyMatch(sample::equals), "Metrics should include " + sample + " but were:\n" + body);
+    }
+}
@@ -0,0 +1,104 @@
+package fi.iki.korpiq.pogrejab.steps;
+
+import fi.iki.korpiq.pogrejab.TestContext;
+import io.cucumber.java.en.And;
+import io.cucumber.java.en.When;
+import io.restassured.RestAssured;
+import io.restassured.response.Response;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class QuerySteps {
+    private final TestContext testContext;
+    private String dbName;
+    private String queryId;
+
+    public QuerySteps(TestContext testContext) {
+        this.testContext = testContext;
+    }
+
+    @When("I run the query {string} in database {string}")
+    public void iRunTheQueryInDatabase(String sql, String dbName) {
+        runQuery(sql, dbName, null);
+    }
+
+    @When("I run the query {string} in database {string} with at most {int} rows")
+    public void iRunTheQueryInDatabaseWithAtMostRows(String sql, String dbName, int maxRows) {
+        runQuery(sql, dbName, maxRows);
+    }
+
+    private void runQuery(String sql, String dbName, Integer maxRows) {
+        Map<String, Object> body = new HashMap<>();
+        body.put("sql", sql);
+        if (maxRows != null) {
+            body.put("maxRows", maxRows);
+        }
+
+        Response response = RestAssured.given()
+                .header("Authorization", "Bearer " + testContext.getJwtToken())
+                .contentType("application/json")
+                .body(body)
+                .when()
+                .post("/api/databases/" + dbName + "/query");
+
+        testContext.setLastResponse(response);
+        this.dbName = dbName;
+        this.queryId = response.jsonPath().getString("queryId");
+    }
+
+    @When("I wait for the query to finish")
+    public void iWaitForTheQueryToFinish() throws InterruptedException {
+        assertNotNull(queryId, "No query was started");
+        long deadline = System.currentTimeMillis() + 10000;
+        Response response;
+        do {
+            Thread.sleep(100);
+            response = RestAssured.given()
+                    .header("Authorization", "Bearer " + testContext.getJwtToken())
+                    .when()
+                    .get("/api/databases/" + dbName + "/query/" + queryId);
+        } while ("running".equals(response.jsonPath().getString("status")) && System.currentTimeMillis() < deadline);
+
+        testContext.setLastResponse(response);
+    }
+
+    @When("I cancel the query")
+    public void iCancelTheQuery() {
+        assertNotNull(queryId, "No query was started");
+        Response response = RestAssured.given()
+                .header("Authorization", "Bearer " + testContext.getJwtToken())
+                .when()
+                .delete("/api/databases/" + dbName + "/query/" + queryId);
+
+        testContext.setLastResponse(response);
+    }
+
+    @And("the query status should be {string}")
+    public void theQueryStatusShouldBe(String expectedStatus) {
+        assertEquals(expectedStatus, testContext.getLastResponse().jsonPath().getString("status"));
+    }
+
+    @And("the query result should have {int} rows")
+    public void theQueryResultShouldHaveRows(int expectedRows) {
+        List<List<String>> rows = testContext.getLastResponse().jsonPath().getList("rows");
+        assertEquals(expectedRows, rows.size(), "Unexpected number of rows");
+    }
+
+    @And("the query result should be {string}")
+    public void theQueryResultShouldBe(String expectedValue) {
+        List<List<String>> rows = testContext.getLastResponse().jsonPath().getList("rows");
+        assertEquals(1, rows.size(), "Expected a single row");
+        assertEquals(expectedValue, rows.get(0).get(0));
+    }
+
+    @And("the query result should be truncated")
+    public void theQueryResultShouldBeTruncated() {
+        assertTrue(testContext.getLastResponse().jsonPath().getBoolean("truncated"));
+    }
+}
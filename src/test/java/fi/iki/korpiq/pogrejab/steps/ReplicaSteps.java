@@ -0,0 +1,121 @@
+package fi.iki.korpiq.pogrejab.steps;
+
+import fi.iki.korpiq.pogrejab.TestContext;
+import io.cucumber.java.After;
+import io.cucumber.java.en.Given;
+import io.cucumber.java.en.When;
+import org.testcontainers.containers.Container;
+import org.testcontainers.containers.GenericContainer;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.testcontainers.containers.wait.strategy.Wait;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ReplicaSteps {
+    private static final long WAIT_MS = 10000;
+
+    private final TestContext testContext;
+
+    public ReplicaSteps(TestContext testContext) {
+        this.testContext = testContext;
+    }
+
+    @After
+    public void tearDown() {
+        if (testContext.getReplicaContainer() != null) {
+            testContext.getReplicaContainer().stop();
+            testContext.setReplicaContainer(null);
+        }
+    }
+
+    private Connection connectToReplica() throws SQLException {
+        GenericContainer<?> replica = testContext.getReplicaContainer();
+        PostgreSQLContainer<?> postgres = testContext.getPostgresContainer();
+        String url = "jdbc:postgresql://" + replica.getHost() + ":" + replica.getMappedPort(5432) + "/testdb";
+        return DriverManager.getConnection(url, postgres.getUsername(), postgres.getPassword());
+    }
+
+    private void executeOnReplica(String sql) throws SQLException {
+        try (Connection conn = connectToReplica();
+             Statement stmt = conn.createStatement()) {
+            stmt.execute(sql);
+        }
+    }
+
+    @Given("a read replica of the Postgres instance is running")
+    public void aReadReplicaIsRunning() throws Exception {
+        PostgreSQLContainer<?> postgres = testContext.getPostgresContainer();
+        // The image lets only local connections stream WAL
+        Container.ExecResult result = postgres.execInContainer("sh", "-c",
+                "echo 'host replication all all scram-sha-256' >> \"$PGDATA/pg_hba.conf\"");
+        assertEquals(0, result.getExitCode(), result.getStderr());
+        try (Connection conn = DriverManager.getConnection(postgres.getJdbcUrl(), postgres.getUsername(), postgres.getPassword());
+             Statement stmt = conn.createStatement()) {
+            stmt.execute("SELECT pg_reload_conf()");
+        }
+
+        String primaryHost = postgres.getContainerInfo().getNetworkSettings().getIpAddress();
+        GenericContainer<?> replica = new GenericContainer<>("postgres:18-alpine")
+                .withEnv("PGPASSWORD", postgres.getPassword())
+                .withExposedPorts(5432)
+                .withCreateContainerCmdModifier(cmd -> cmd.withUser("postgres"))
+                .withCommand("sh", "-c", "pg_basebackup -h " + primaryHost + " -U " + postgres.getUsername()
+                        + " -D \"$PGDATA\" -R -X stream && chmod 0700 \"$PGDATA\" && exec postgres")
+                .waitingFor(Wait.forLogMessage(".*ready to accept read-only connections.*", 1)
+                        .withStartupTimeout(Duration.ofSeconds(60)));
+        replica.start();
+        testContext.setReplicaContainer(replica);
+    }
+
+    @Given("the replica has caught up with the primary")
+    public void theReplicaHasCaughtUpWithThePrimary() throws Exception {
+        PostgreSQLContainer<?> postgres = testContext.getPostgresContainer();
+        String primaryLsn;
+        try (Connection conn = DriverManager.getConnection(postgres.getJdbcUrl(), postgres.getUsername(), postgres.getPassword());
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT pg_current_wal_lsn()")) {
+            rs.next();
+            primaryLsn = rs.getString(1);
+        }
+        try (Connection conn = connectToReplica();
+             PreparedStatement stmt = conn.prepareStatement("SELECT pg_last_wal_replay_lsn() >= ?::pg_lsn")) {
+            stmt.setString(1, primaryLsn);
+            long deadline = System.currentTimeMillis() + WAIT_MS;
+            boolean caughtUp = false;
+            while (!caughtUp && System.currentTimeMillis() < deadline) {
+                try (ResultSet rs = stmt.executeQuery()) {
+                    rs.next();
+                    caughtUp = rs.getBoolean(1);
+                }
+                if (!caughtUp) {
+                    Thread.sleep(100);
+                }
+            }
+            assertTrue(caughtUp, "The replica did not replay up to " + primaryLsn);
+        }
+    }
+
+    @When("replay is paused on the replica")
+    public void replayIsPausedOnTheReplica() throws SQLException {
+        executeOnReplica("SELECT pg_wal_replay_pause()");
+    }
+
+    @When("the replica is promoted")
+    public void theReplicaIsPromoted() throws SQLException {
+        executeOnReplica("SELECT pg_promote()");
+    }
+
+    @When("the replica is stopped")
+    public void theReplicaIsStopped() {
+        testContext.getReplicaContainer().stop();
+    }
+}
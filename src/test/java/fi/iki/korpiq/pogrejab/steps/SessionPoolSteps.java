@@ -0,0 +1,128 @@
+package fi.iki.korpiq.pogrejab.steps;
+
+import fi.iki.korpiq.pogrejab.TestContext;
+import io.cucumber.java.After;
+import io.cucumber.java.en.Given;
+import io.cucumber.java.en.Then;
+import io.cucumber.java.en.When;
+import io.restassured.RestAssured;
+import io.restassured.response.Response;
+import org.testcontainers.containers.PostgreSQLContainer;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class SessionPoolSteps {
+    private static final long WAIT_MS = 10000;
+
+    private final TestContext testContext;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final List<Future<Response>> requests = new ArrayList<>();
+    private Connection lockingConnection;
+
+    public SessionPoolSteps(TestContext testContext) {
+        this.testContext = testContext;
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        if (lockingConnection != null) {
+            lockingConnection.close();
+        }
+        executor.shutdownNow();
+    }
+
+    private Connection connectAsAdmin(String dbName) throws SQLException {
+        PostgreSQLContainer<?> postgres = testContext.getPostgresContainer();
+        String url = postgres.getJdbcUrl();
+        String dbUrl = url.substring(0, url.lastIndexOf("/") + 1) + dbName;
+        return DriverManager.getConnection(dbUrl, postgres.getUsername(), postgres.getPassword());
+    }
+
+    private int countBackends(String sql, String username) throws SQLException {
+        try (Connection conn = connectAsAdmin("testdb");
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setString(1, username);
+            try (ResultSet rs = stmt.executeQuery()) {
+                rs.next();
+                return rs.getInt(1);
+            }
+        }
+    }
+
+    private void awaitBackends(int expected, String sql, String username) throws SQLException, InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_MS;
+        int count = countBackends(sql, username);
+        while (count != expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+            count = countBackends(sql, username);
+        }
+        assertEquals(expected, count, "Unexpected number of backends of " + username);
+    }
+
+    @Given("the table {string} in schema {string} in database {string} is locked")
+    public void theTableIsLocked(String tableName, String schemaName, String dbName) throws SQLException {
+        lockingConnection = connectAsAdmin(dbName);
+        lockingConnection.setAutoCommit(false);
+        try (Statement stmt = lockingConnection.createStatement()) {
+            stmt.execute("LOCK TABLE " + schemaName + "." + tableName + " IN ACCESS EXCLUSIVE MODE");
+        }
+    }
+
+    @When("the table lock is released")
+    public void theTableLockIsReleased() throws SQLException {
+        lockingConnection.rollback();
+        lockingConnection.close();
+        lockingConnection = null;
+    }
+
+    @When("I request {int} rows of table {string} in schema {string} in database {string} {int} times at once")
+    public void iRequestRowsOfTableTimesAtOnce(int limit, String tableName, String schemaName, String dbName, int times) {
+        String token = testContext.getJwtToken();
+        for (int i = 0; i < times; i++) {
+            requests.add(executor.submit(() -> RestAssured.given()
+                    .header("Authorization", "Bearer " + token)
+                    .queryParam("limit", limit)
+                    .when()
+                    .get("/api/databases/" + dbName + "/schemas/" + schemaName + "/tables/" + tableName + "/rows")));
+        }
+    }
+
+    @Then("the requests made at once should all get status {int}")
+    public void theRequestsMadeAtOnceShouldAllGetStatus(int expectedStatus) throws Exception {
+        for (Future<Response> request : requests) {
+            assertEquals(expectedStatus, request.get(WAIT_MS, TimeUnit.MILLISECONDS).getStatusCode());
+        }
+        requests.clear();
+    }
+
+    @Then("{int} connection(s) of user {string} should come to wait for a lock")
+    public void connectionsShouldComeToWaitForALock(int expected, String username) throws Exception {
+        awaitBackends(expected,
+                "SELECT count(*) FROM pg_stat_activity WHERE usename = ? AND wait_event_type = 'Lock'", username);
+    }
+
+    @Then("the user {string} should come to have {int} connection(s) open")
+    public void theUserShouldComeToHaveConnectionsOpen(String username, int expected) throws Exception {
+        awaitBackends(expected,
+                "SELECT count(*) FROM pg_stat_activity WHERE usename = ? AND backend_type = 'client backend'", username);
+    }
+
+    @When("the connections of user {string} are terminated")
+    public void theConnectionsOfUserAreTerminated(String username) throws Exception {
+        countBackends("SELECT count(pg_terminate_backend(pid)) FROM pg_stat_activity WHERE usename = ?", username);
+        theUserShouldComeToHaveConnectionsOpen(username, 0);
+    }
+}
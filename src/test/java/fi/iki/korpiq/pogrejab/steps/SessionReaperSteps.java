@@ -0,0 +1,43 @@
+package fi.iki.korpiq.pogrejab.steps;
+
+import fi.iki.korpiq.pogrejab.TestContext;
+import io.cucumber.java.en.When;
+import io.restassured.RestAssured;
+import io.restassured.response.Response;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+public class SessionReaperSteps {
+    private final TestContext testContext;
+    private final Map<String, String> tokens = new HashMap<>();
+
+    public SessionReaperSteps(TestContext testContext) {
+        this.testContext = testContext;
+    }
+
+    @When("I log in as {string} with password {string} as session {string}")
+    public void iLogInAsSession(String username, String password, String sessionName) {
+        Response response = RestAssured.given()
+                .contentType("application/json")
+                .body(Map.of("username", username, "password", password, "dbName", "testdb"))
+                .when()
+                .post("/api/login");
+
+        assertEquals(200, response.getStatusCode(), "Login failed for " + username);
+        String token = response.jsonPath().getString("token");
+        assertNotNull(token, "Login did not return a token");
+        tokens.put(sessionName, token);
+        testContext.setJwtToken(token);
+    }
+
+    @When("I switch to session {string}")
+    public void iSwitchToSession(String sessionName) {
+        String token = tokens.get(sessionName);
+        assertNotNull(token, "No session " + sessionName);
+        testContext.setJwtToken(token);
+    }
+}
@@ -0,0 +1,64 @@
+package fi.iki.korpiq.pogrejab.steps;
+
+import fi.iki.korpiq.pogrejab.TestContext;
+import io.cucumber.java.en.And;
+import io.cucumber.java.en.Given;
+import org.testcontainers.containers.PostgreSQLContainer;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+public class SharedSessionSteps {
+    private final TestContext testContext;
+
+    public SharedSessionSteps(TestContext testContext) {
+        this.testContext = testContext;
+    }
+
+    private void executeAsAdmin(String dbName, String... statements) throws SQLException {
+        PostgreSQLContainer<?> postgres = testContext.getPostgresContainer();
+        String url = postgres.getJdbcUrl();
+        String dbUrl = url.substring(0, url.lastIndexOf("/") + 1) + dbName;
+        try (Connection conn = DriverManager.getConnection(dbUrl, postgres.getUsername(), postgres.getPassword())) {
+            try (Statement stmt = conn.createStatement()) {
+                for (String sql : statements) {
+                    stmt.execute(sql);
+                }
+            }
+        }
+    }
+
+    @And("temporary tables are not allowed in database {string}")
+    public void temporaryTablesAreNotAllowedInDatabase(String dbName) throws SQLException {
+        // Every role may create temporary tables by default
+        executeAsAdmin(dbName, "REVOKE TEMP ON DATABASE " + dbName + " FROM PUBLIC");
+    }
+
+    @Given("the user {string} may create temporary tables in database {string}")
+    public void theUserMayCreateTemporaryTables(String username, String dbName) throws SQLException {
+        executeAsAdmin(dbName, "GRANT TEMP ON DATABASE " + dbName + " TO " + username);
+    }
+
+    @Given("the user {string} may create objects in schema {string} in {string}")
+    public void theUserMayCreateObjectsInSchema(String username, String schemaName, String dbName) throws SQLException {
+        executeAsAdmin(dbName, "GRANT CREATE ON SCHEMA " + schemaName + " TO " + username);
+    }
+
+    @Given("a table {string} in schema {string} in database {string} shows each user only their own rows")
+    public void aTableShowsEachUserOnlyTheirOwnRows(String tableName, String schemaName, String dbName) throws SQLException {
+        String table = schemaName + "." + tableName;
+        executeAsAdmin(dbName,
+                "CREATE TABLE " + table + " (id SERIAL PRIMARY KEY, owner NAME NOT NULL)",
+                "ALTER TABLE " + table + " ENABLE ROW LEVEL SECURITY",
+                "CREATE POLICY own_rows ON " + table + " USING (owner = current_user)",
+                "GRANT SELECT ON " + table + " TO PUBLIC");
+    }
+
+    @And("the user {string} owns {int} rows of table {string} in schema {string} in database {string}")
+    public void theUserOwnsRows(String username, int rowCount, String tableName, String schemaName, String dbName) throws SQLException {
+        executeAsAdmin(dbName, "INSERT INTO " + schemaName + "." + tableName + " (owner) SELECT '" + username
+                + "' FROM generate_series(1, " + rowCount + ")");
+    }
+}
@@ -0,0 +1,240 @@
+package fi.iki.korpiq.pogrejab.steps;
+
+import fi.iki.korpiq.pogrejab.TestContext;
+import io.cucumber.java.en.And;
+import io.cucumber.java.en.When;
+import io.restassured.RestAssured;
+import io.restassured.response.Response;
+import org.testcontainers.containers.PostgreSQLContainer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TableDataSteps {
+    private final TestContext testContext;
+    private String exactCountPath;
+
+    public TableDataSteps(TestContext testContext) {
+        this.testContext = testContext;
+    }
+
+    private String databaseUrl(String dbName) {
+        String url = testContext.getPostgresContainer().getJdbcUrl();
+        return url.substring(0, url.lastIndexOf("/") + 1) + dbName;
+    }
+
+    @And("the table {string} in schema {string} in database {string} has {int} rows")
+    public void theTableHasRows(String tableName, String schemaName, String dbName, int rowCount) throws SQLException {
+        PostgreSQLContainer<?> postgres = testContext.getPostgresContainer();
+        try (Connection conn = DriverManager.getConnection(databaseUrl(dbName), postgres.getUsername(), postgres.getPassword())) {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("INSERT INTO " + schemaName + "." + tableName + " SELECT FROM generate_series(1, " + rowCount + ")");
+            }
+        }
+    }
+
+    @And("a table {string} without a primary key exists in schema {string} in database {string}")
+    public void aTableWithoutPrimaryKeyExists(String tableName, String schemaName, String dbName) throws SQLException {
+        PostgreSQLContainer<?> postgres = testContext.getPostgresContainer();
+        try (Connection conn = DriverManager.getConnection(databaseUrl(dbName), postgres.getUsername(), postgres.getPassword())) {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("CREATE TABLE " + schemaName + "." + tableName + " (n INT DEFAULT 1)");
+            }
+        }
+    }
+
+    @And("a view {string} of table {string} exists in schema {string} in database {string}")
+    public void aViewOfTableExists(String viewName, String tableName, String schemaName, String dbName) throws SQLException {
+        PostgreSQLContainer<?> postgres = testContext.getPostgresContainer();
+        try (Connection conn = DriverManager.getConnection(databaseUrl(dbName), postgres.getUsername(), postgres.getPassword())) {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("CREATE VIEW " + schemaName + "." + viewName + " AS SELECT * FROM " + schemaName + "." + tableName);
+            }
+        }
+    }
+
+    @When("I request {int} rows of table {string} in schema {string} in database {string}")
+    public void iRequestRowsOfTable(int limit, String tableName, String schemaName, String dbName) {
+        Response response = RestAssured.given()
+                .header("Authorization", "Bearer " + testContext.getJwtToken())
+                .queryParam("limit", limit)
+                .when()
+                .get("/api/databases/" + dbName + "/schemas/" + schemaName + "/tables/" + tableName + "/rows");
+
+        testContext.setLastResponse(response);
+    }
+
+    @When("I request the next {int} rows of table {string} in schema {string} in database {string}")
+    public void iRequestTheNextRowsOfTable(int limit, String tableName, String schemaName, String dbName) {
+        List<String> next = testContext.getLastResponse().jsonPath().getList("next", String.class);
+        assertNotNull(next, "Previous page did not tell where to continue");
+
+        Response response = RestAssured.given()
+                .header("Authorization", "Bearer " + testContext.getJwtToken())
+                .queryParam("limit", limit)
+                .queryParam("after", next)
+                .when()
+                .get("/api/databases/" + dbName + "/schemas/" + schemaName + "/tables/" + tableName + "/rows");
+
+        testContext.setLastResponse(response);
+    }
+
+    @And("the response should contain {int} rows")
+    public void theResponseShouldContainRows(int expectedRows) {
+        List<List<String>> rows = testContext.getLastResponse().jsonPath().getList("rows");
+        assertEquals(expectedRows, rows.size(), "Unexpected number of rows");
+    }
+
+    @And("the response should have no next page")
+    public void theResponseShouldHaveNoNextPage() {
+        assertNull(testContext.getLastResponse().jsonPath().get("next"), "Response tells to continue");
+    }
+
+    @When("I export table {string} in schema {string} in database {string} as {string}")
+    public void iExportTableAs(String tableName, String schemaName, String dbName, String format) {
+        Response response = RestAssured.given()
+                .header("Authorization", "Bearer " + testContext.getJwtToken())
+                .queryParam("format", format)
+                .when()
+                .get("/api/databases/" + dbName + "/schemas/" + schemaName + "/tables/" + tableName + "/export");
+
+        testContext.setLastResponse(response);
+    }
+
+    @When("I export table {string} in schema {string} in database {string} as gzipped {string} without a header")
+    public void iExportTableAsGzippedWithoutHeader(String tableName, String schemaName, String dbName, String format) {
+        Response response = RestAssured.given()
+                .header("Authorization", "Bearer " + testContext.getJwtToken())
+                .queryParam("format", format)
+                .queryParam("compression", "gzip")
+                .queryParam("header", false)
+                .when()
+                .get("/api/databases/" + dbName + "/schemas/" + schemaName + "/tables/" + tableName + "/export");
+
+        testContext.setLastResponse(response);
+    }
+
+    @And("the export should have {int} lines")
+    public void theExportShouldHaveLines(int expectedLines) {
+        String body = testContext.getLastResponse().getBody().asString();
+        assertEquals(expectedLines, body.lines().count(), "Unexpected number of lines");
+    }
+
+    @And("the gzipped export should have {int} lines")
+    public void theGzippedExportShouldHaveLines(int expectedLines) throws IOException {
+        byte[] compressed = testContext.getLastResponse().getBody().asByteArray();
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            String body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            assertEquals(expectedLines, body.lines().count(), "Unexpected number of lines");
+        }
+    }
+
+    @And("the user {string} has privilege to insert into the table {string} in schema {string} in database {string}")
+    public void theUserHasPrivilegeToInsertIntoTheTable(String username, String tableName, String schemaName, String dbName) throws SQLException {
+        PostgreSQLContainer<?> postgres = testContext.getPostgresContainer();
+        try (Connection conn = DriverManager.getConnection(databaseUrl(dbName), postgres.getUsername(), postgres.getPassword())) {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("GRANT INSERT ON " + schemaName + "." + tableName + " TO " + username);
+            }
+        }
+    }
+
+    @When("I import into table {string} in schema {string} in database {string}:")
+    public void iImportIntoTable(String tableName, String schemaName, String dbName, String csv) {
+        importRows(tableName, schemaName, dbName, csv, Map.of());
+    }
+
+    @When("I import into table {string} in schema {string} in database {string} in batches of {int} rows:")
+    public void iImportIntoTableInBatches(String tableName, String schemaName, String dbName, int batchRows, String csv) {
+        importRows(tableName, schemaName, dbName, csv, Map.of("mode", "batched", "batchRows", batchRows));
+    }
+
+    private void importRows(String tableName, String schemaName, String dbName, String csv, Map<String, ?> params) {
+        Response response = RestAssured.given()
+                .header("Authorization", "Bearer " + testContext.getJwtToken())
+                .contentType("text/csv")
+                .queryParams(params)
+                .body(csv + "\n")
+                .when()
+                .post("/api/databases/" + dbName + "/schemas/" + schemaName + "/tables/" + tableName + "/import");
+
+        testContext.setLastResponse(response);
+    }
+
+    @And("the import should have loaded {int} rows")
+    public void theImportShouldHaveLoadedRows(int expectedRows) {
+        assertEquals(expectedRows, testContext.getLastResponse().jsonPath().getInt("rows"));
+    }
+
+    @And("the import should have committed {int} rows")
+    public void theImportShouldHaveCommittedRows(int expectedRows) {
+        assertEquals(expectedRows, testContext.getLastResponse().jsonPath().getInt("rowsCommitted"));
+    }
+
+    @And("the import should have used {int} batches")
+    public void theImportShouldHaveUsedBatches(int expectedBatches) {
+        assertEquals(expectedBatches, testContext.getLastResponse().jsonPath().getInt("batches"));
+    }
+
+    @When("I request the table statistics of schema {string} in database {string}")
+    public void iRequestTheTableStatisticsOfSchema(String schemaName, String dbName) {
+        Response response = RestAssured.given()
+                .header("Authorization", "Bearer " + testContext.getJwtToken())
+                .when()
+                .get("/api/databases/" + dbName + "/schemas/" + schemaName + "/stats");
+
+        testContext.setLastResponse(response);
+    }
+
+    @And("the statistics should list table {string}")
+    public void theStatisticsShouldListTable(String tableName) {
+        List<String> names = testContext.getLastResponse().jsonPath().getList("tables.name", String.class);
+        assertTrue(names.contains(tableName), "Statistics do not list " + tableName);
+    }
+
+    @And("the statistics should not list table {string}")
+    public void theStatisticsShouldNotListTable(String tableName) {
+        List<String> names = testContext.getLastResponse().jsonPath().getList("tables.name", String.class);
+        assertFalse(names.contains(tableName), "Statistics list " + tableName);
+    }
+
+    @When("I request an exact row count of table {string} in schema {string} in database {string}")
+    public void iRequestAnExactRowCountOfTable(String tableName, String schemaName, String dbName) {
+        exactCountPath = "/api/databases/" + dbName + "/schemas/" + schemaName + "/tables/" + tableName + "/stats";
+        testContext.setLastResponse(requestExactCount());
+    }
+
+    @And("the exact row count should become {int}")
+    public void theExactRowCountShouldBecome(int expectedRows) throws InterruptedException {
+        Response response = testContext.getLastResponse();
+        long deadline = System.currentTimeMillis() + 10000;
+        while ("running".equals(response.jsonPath().getString("exactCount.status")) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+            response = requestExactCount();
+        }
+        assertEquals("succeeded", response.jsonPath().getString("exactCount.status"));
+        assertEquals(expectedRows, response.jsonPath().getInt("exactCount.rows"));
+    }
+
+    private Response requestExactCount() {
+        return RestAssured.given()
+                .header("Authorization", "Bearer " + testContext.getJwtToken())
+                .queryParam("exact", "true")
+                .when()
+                .get(exactCountPath);
+    }
+}
@@ -0,0 +1,41 @@
+Feature: Browse Rows of a Table
+  As a logged-in user
+  I want to page through the rows of a table
+  So that I can see the data in that table
+
+  Background:
+    Given a temporary Postgres instance is running
+    And a Postgres user "rows_user" with password "rows_pass" exists
+    And a database "rows_test_db" exists
+    And the user "rows_user" has privilege to see the database "rows_test_db"
+    And I connect to database "rows_test_db" as "rows_user" with password "rows_pass"
+    And a schema "rows_schema" exists in database "rows_test_db"
+    And the user "rows_user" has privilege to see the schema "rows_schema" in "rows_test_db"
+    And a table "allowed_table" exists in schema "rows_schema" in database "rows_test_db"
+    And a table "secret_table" exists in schema "rows_schema" in database "rows_test_db"
+    And the user "rows_user" has privilege to see the table "allowed_table" in schema "rows_schema" in database "rows_test_db"
+    And the table "allowed_table" in schema "rows_schema" in database "rows_test_db" has 3 rows
+
+  Scenario: User pages through rows of a table they have access to
+    When I request 2 rows of table "allowed_table" in schema "rows_schema" in database "rows_test_db"
+    Then the response status should be 200
+    And the response should contain 2 rows
+    When I request the next 2 rows of table "allowed_table" in schema "rows_schema" in database "rows_test_db"
+    Then the response status should be 200
+    And the response should contain 1 rows
+
+  Scenario: User pages through rows of a table without a primary key
+    Given a table "heap_table" without a primary key exists in schema "rows_schema" in database "rows_test_db"
+    And the user "rows_user" has privilege to see the table "heap_table" in schema "rows_schema" in database "rows_test_db"
+    And the table "heap_table" in schema "rows_schema" in database "rows_test_db" has 3 rows
+    When I request 2 rows of table "heap_table" in schema "rows_schema" in database "rows_test_db"
+    Then the response status should be 200
+    And the response should contain 2 rows
+    When I request the next 2 rows of table "heap_table" in schema "rows_schema" in database "rows_test_db"
+    Then the response status should be 200
+    And the response should contain 1 rows
+    And the response should have no next page
+
+  Scenario: User cannot read rows of a table they have no access to
+    When I request 2 rows of table "secret_table" in schema "rows_schema" in database "rows_test_db"
+    Then the response status should be 404
@@ -0,0 +1,28 @@
+Feature: Catalog Tree of a Database
+  As a logged-in user
+  I want to get the schemas and tables of a database in one request
+  So that I can get an overview of the database quickly
+
+  Background:
+    Given a temporary Postgres instance is running
+    And a Postgres user "catalog_user" with password "catalog_pass" exists
+    And a database "catalog_test_db" exists
+    And the user "catalog_user" has privilege to see the database "catalog_test_db"
+    And I connect to database "catalog_test_db" as "catalog_user" with password "catalog_pass"
+    And a schema "catalog_schema" exists in database "catalog_test_db"
+    And the user "catalog_user" has privilege to see the schema "catalog_schema" in "catalog_test_db"
+    And a table "allowed_table" exists in schema "catalog_schema" in database "catalog_test_db"
+    And a table "secret_table" exists in schema "catalog_schema" in database "catalog_test_db"
+    And the user "catalog_user" has privilege to see the table "allowed_table" in schema "catalog_schema" in database "catalog_test_db"
+
+  Scenario: User gets the tables they have access to in one request
+    When I request the catalog of database "catalog_test_db"
+    Then the response status should be 200
+    And the catalog should contain table "allowed_table" in schema "catalog_schema"
+    And the catalog should not contain table "secret_table" in schema "catalog_schema"
+
+  Scenario: User filters the catalog by schema name prefix
+    When I request the catalog of database "catalog_test_db" with schema prefix "catalog_"
+    Then the response status should be 200
+    And the catalog should contain table "allowed_table" in schema "catalog_schema"
+    And the catalog should not contain schema "public"
@@ -0,0 +1,38 @@
+Feature: Catalog Search
+  As a logged-in user
+  I want to find tables and columns by typing part of their name
+  So that I do not have to browse through every schema
+
+  Background:
+    Given a temporary Postgres instance is running
+    And a Postgres user "search_user" with password "search_pass" exists
+    And a database "search_test_db" exists
+    And the user "search_user" has privilege to see the database "search_test_db"
+    And I connect to database "search_test_db" as "search_user" with password "search_pass"
+    And a schema "search_schema" exists in database "search_test_db"
+    And the user "search_user" has privilege to see the schema "search_schema" in "search_test_db"
+    And a table "customer_orders" exists in schema "search_schema" in database "search_test_db"
+    And a table "secret_orders" exists in schema "search_schema" in database "search_test_db"
+    And the user "search_user" has privilege to see the table "customer_orders" in schema "search_schema" in database "search_test_db"
+
+  Scenario: User finds the tables they may read by part of the name
+    When I search the catalog of database "search_test_db" for "orders"
+    Then the response status should be 200
+    And the search results should include table "customer_orders"
+    And the search results should not include table "secret_orders"
+
+  Scenario: User finds columns by the start of their name
+    When I search the catalog of database "search_test_db" for "id"
+    Then the response status should be 200
+    And the search results should include column "id" of table "customer_orders"
+
+  Scenario: Renamed columns are found once the catalog has been indexed again
+    When I search the catalog of database "search_test_db" for "id"
+    Then the search results should include column "id" of table "customer_orders"
+    When the column "id" of table "customer_orders" in schema "search_schema" in database "search_test_db" is renamed to "order_number"
+    And a table "archived_orders" exists in schema "search_schema" in database "search_test_db"
+    Then searching the catalog of database "search_test_db" for "order_number" should come to find column "order_number" of table "customer_orders"
+
+  Scenario: Search requires a query
+    When I search the catalog of database "search_test_db" for ""
+    Then the response status should be 400
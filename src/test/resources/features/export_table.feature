@@ -0,0 +1,31 @@
+Feature: Export a Table
+  As a logged-in user
+  I want to download the contents of a table as a file
+  So that I can use the data in other tools
+
+  Background:
+    Given a temporary Postgres instance is running
+    And a Postgres user "export_user" with password "export_pass" exists
+    And a database "export_test_db" exists
+    And the user "export_user" has privilege to see the database "export_test_db"
+    And I connect to database "export_test_db" as "export_user" with password "export_pass"
+    And a schema "export_schema" exists in database "export_test_db"
+    And the user "export_user" has privilege to see the schema "export_schema" in "export_test_db"
+    And a table "allowed_table" exists in schema "export_schema" in database "export_test_db"
+    And a table "secret_table" exists in schema "export_schema" in database "export_test_db"
+    And the user "export_user" has privilege to see the table "allowed_table" in schema "export_schema" in database "export_test_db"
+    And the table "allowed_table" in schema "export_schema" in database "export_test_db" has 3 rows
+
+  Scenario: User exports a table as CSV
+    When I export table "allowed_table" in schema "export_schema" in database "export_test_db" as "csv"
+    Then the response status should be 200
+    And the export should have 4 lines
+
+  Scenario: User exports a table as gzipped TSV without a header
+    When I export table "allowed_table" in schema "export_schema" in database "export_test_db" as gzipped "tsv" without a header
+    Then the response status should be 200
+    And the gzipped export should have 3 lines
+
+  Scenario: User cannot export a table they have no access to
+    When I export table "secret_table" in schema "export_schema" in database "export_test_db" as "csv"
+    Then the response status should be 404
@@ -0,0 +1,72 @@
+Feature: Import Data into a Table
+  As a logged-in user
+  I want to upload CSV files into tables
+  So that I can load data without other tools
+
+  Background:
+    Given a temporary Postgres instance is running
+    And a Postgres user "import_user" with password "import_pass" exists
+    And a database "import_test_db" exists
+    And the user "import_user" has privilege to see the database "import_test_db"
+    And I connect to database "import_test_db" as "import_user" with password "import_pass"
+    And a schema "import_schema" exists in database "import_test_db"
+    And the user "import_user" has privilege to see the schema "import_schema" in "import_test_db"
+    And a table "allowed_table" exists in schema "import_schema" in database "import_test_db"
+    And a table "secret_table" exists in schema "import_schema" in database "import_test_db"
+    And the user "import_user" has privilege to see the table "allowed_table" in schema "import_schema" in database "import_test_db"
+    And the user "import_user" has privilege to insert into the table "allowed_table" in schema "import_schema" in database "import_test_db"
+
+  Scenario: User imports a CSV file with a header
+    When I import into table "allowed_table" in schema "import_schema" in database "import_test_db":
+      """
+      id
+      10
+      11
+      12
+      """
+    Then the response status should be 200
+    And the import should have loaded 3 rows
+    When I request 10 rows of table "allowed_table" in schema "import_schema" in database "import_test_db"
+    Then the response should contain 3 rows
+
+  Scenario: User imports a CSV file in batches
+    When I import into table "allowed_table" in schema "import_schema" in database "import_test_db" in batches of 2 rows:
+      """
+      10
+      11
+      12
+      """
+    Then the response status should be 200
+    And the import should have loaded 3 rows
+    And the import should have used 2 batches
+
+  Scenario: A batched import that fails keeps and reports the batches committed before
+    When I import into table "allowed_table" in schema "import_schema" in database "import_test_db" in batches of 2 rows:
+      """
+      10
+      11
+      not a number
+      """
+    Then the response status should be 400
+    And the import should have committed 2 rows
+    And the import should have used 1 batches
+    When I request 10 rows of table "allowed_table" in schema "import_schema" in database "import_test_db"
+    Then the response should contain 2 rows
+
+  Scenario: A failing import loads nothing
+    When I import into table "allowed_table" in schema "import_schema" in database "import_test_db":
+      """
+      id
+      10
+      not a number
+      """
+    Then the response status should be 400
+    When I request 10 rows of table "allowed_table" in schema "import_schema" in database "import_test_db"
+    Then the response should contain 0 rows
+
+  Scenario: User cannot import into a table they may not insert into
+    When I import into table "secret_table" in schema "import_schema" in database "import_test_db":
+      """
+      10
+      """
+    Then the response status should be 404
@@ -0,0 +1,42 @@
+Feature: JWT Signing Keys
+  As an operator of the web application
+  I want to choose the token signing algorithm and rotate signing keys
+  So that sessions stay valid while the keys change
+
+  Scenario: Tokens are signed and verified with ES256
+    Given a "ES256" signing key "current"
+    And a JWT service signing with key "current"
+    When the JWT service issues a token for session "s1"
+    Then the token should be signed with "ES256" and name its key
+    And the JWT service should accept the token for session "s1"
+
+  Scenario: Tokens of the previous signing key are accepted after rotation
+    Given a "RS256" signing key "old"
+    And a "ES256" signing key "new"
+    And a JWT service signing with key "old"
+    When the JWT service issues a token for session "s1"
+    And the JWT service is restarted signing with key "new" and also accepting key "old"
+    Then the JWT service should accept the token for session "s1"
+    When the JWT service issues a token for session "s2"
+    Then the token should be signed with "ES256" and name its key
+    And the JWT service should accept the token for session "s2"
+
+  Scenario: Tokens of a key that is no longer accepted are rejected
+    Given a "RS256" signing key "old"
+    And a "ES256" signing key "new"
+    And a JWT service signing with key "old"
+    When the JWT service issues a token for session "s1"
+    And the JWT service is restarted signing with key "new"
+    Then the JWT service should reject the token
+
+  Scenario: A token is verified only with the key it names
+    Given a "RS256" signing key "old"
+    And a "ES256" signing key "new"
+    And a JWT service signing with key "new" and also accepting key "old"
+    When a token for session "s1" is signed with key "old" but names key "new"
+    Then the JWT service should reject the token
+
+  Scenario: A 256-bit curve other than P-256 is refused for ES256
+    Given a "ES256" signing key "current"
+    And a public key "other" on the secp256k1 curve
+    Then a JWT service signing with key "current" and also accepting key "other" cannot be created
@@ -16,3 +16,11 @@ Feature: List Databases in Postgres Instance
     Then the response status should be 200
     And the response should contain "allowed_db"
     And the response should not contain "secret_db"
+
+  Scenario: Listing databases before login leaves no connection behind when the fallback connects first
+    Given connecting to database "postgres" takes 1000 ms for user "db_user"
+    When I list the databases as "db_user" with password "db_pass"
+    Then the response status should be 200
+    And the response should contain "allowed_db"
+    # Only the connection of the session logged in above stays open
+    And the user "db_user" should come to have 1 connection open
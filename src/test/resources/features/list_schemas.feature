@@ -18,3 +18,17 @@ Feature: List Schemas in a Database
     Then the response status should be 200
     And the response should contain schema "allowed_schema"
     And the response should not contain schema "secret_schema"
+
+  Scenario: An unchanged list of schemas is not sent again
+    When I request the list of schemas for database "schema_test_db"
+    Then the response status should be 200
+    When I request the list of schemas for database "schema_test_db" again with the entity tag of the last response
+    Then the response status should be 304
+
+  Scenario: A session only gives access to the database it was opened for
+    When I request the list of schemas for database "some_other_db"
+    Then the response status should be 403
+
+  Scenario: Listing schemas needs a token
+    When I request the list of schemas for database "schema_test_db" without a token
+    Then the response status should be 401
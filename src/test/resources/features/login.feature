@@ -38,3 +38,30 @@ Feature: User Login with Postgres Credentials
       | dbName   | testdb      |
     Then the response status should be 401
     And the response should contain an error message
+
+  Scenario: Logout ends the session
+    When I send a POST request to "/api/login" with:
+      | username | testuser |
+      | password | testpass |
+      | dbName   | testdb   |
+    Then the response status should be 200
+    When I log out
+    Then the response status should be 200
+    When I request the list of databases
+    Then the response status should be 401
+
+  Scenario: Repeated failed logins for a user are throttled
+    When I try to log in as "testuser" with a wrong password 10 times
+    Then the response status should be 401
+    When I send a POST request to "/api/login" with credentials:
+      | username | testuser    |
+      | password | wrongpasswd |
+      | dbName   | testdb      |
+    Then the response status should be 429
+    And the response should have a "Retry-After" header
+
+  Scenario: Successful logins do not use up a user's login attempts
+    When I log in as "testuser" with password "testpass" 11 times
+    Then the response status should be 200
+    When I try to log in as "testuser" with a wrong password 1 times
+    Then the response status should be 401
@@ -0,0 +1,67 @@
+Feature: Operational Metrics
+  As an operator of the web application
+  I want to scrape metrics from the application
+  So that I can follow its traffic, latency and sessions
+
+  Background:
+    Given a temporary Postgres instance is running
+    And a Postgres user "metrics_user" with password "metrics_pass" exists
+
+  Scenario: Metrics count logins and requests per route
+    When I send a POST request to "/api/login" with:
+      | username | metrics_user |
+      | password | metrics_pass |
+      | dbName   | testdb       |
+    Then the response status should be 200
+    When I send a POST request to "/api/login" with credentials:
+      | username | metrics_user |
+      | password | wrongpasswd  |
+      | dbName   | testdb       |
+    Then the response status should be 401
+    When I request the metrics
+    Then the response status should be 200
+    And the metrics should include 'pogrejab_logins_total{result="success"} 1'
+    And the metrics should include 'pogrejab_logins_total{result="failure"} 1'
+    And the metrics should include 'pogrejab_http_requests_total{method="POST",route="/api/login",status="2xx"} 1'
+    And the metrics should include 'pogrejab_sessions{state="live"} 1'
+
+  Scenario: Repeated listings reuse their prepared statement
+    When I send a POST request to "/api/login" with:
+      | username | metrics_user |
+      | password | metrics_pass |
+      | dbName   | testdb       |
+    Then the response status should be 200
+    When I request the list of databases
+    Then the response status should be 200
+    When I request the list of databases
+    Then the response status should be 200
+    When I request the metrics
+    Then the response status should be 200
+    And the metrics should include 'pogrejab_statement_cache_requests_total{result="miss"} 1'
+    And the metrics should include 'pogrejab_statement_cache_requests_total{result="hit"} 1'
+
+  Scenario: Catalog listings count lookups run and shared
+    When I send a POST request to "/api/login" with:
+      | username | metrics_user |
+      | password | metrics_pass |
+      | dbName   | testdb       |
+    Then the response status should be 200
+    When I request the list of schemas for database "testdb"
+    Then the response status should be 200
+    When I request the metrics
+    Then the response status should be 200
+    And the metrics should include 'pogrejab_catalog_listings_total{result="executed"} 1'
+
+  Scenario: Revalidating an unchanged listing does not look it up again
+    When I send a POST request to "/api/login" with:
+      | username | metrics_user |
+      | password | metrics_pass |
+      | dbName   | testdb       |
+    Then the response status should be 200
+    When I request the list of schemas for database "testdb"
+    Then the response status should be 200
+    When I request the list of schemas for database "testdb" again with the entity tag of the last response
+    Then the response status should be 304
+    When I request the metrics
+    Then the metrics should include 'pogrejab_catalog_listings_total{result="executed"} 1'
+    And the metrics should include 'pogrejab_catalog_cache_requests_total{result="hit"} 0'
@@ -0,0 +1,44 @@
+Feature: Run Ad-hoc SQL Queries
+  As a logged-in user
+  I want to run my own SQL queries in the background
+  So that I can explore data beyond browsing tables
+
+  Background:
+    Given a temporary Postgres instance is running
+    And a Postgres user "query_user" with password "query_pass" exists
+    And I connect to database "testdb" as "query_user" with password "query_pass"
+
+  Scenario: User runs a query and polls for its results
+    When I run the query "SELECT generate_series(1, 5) AS n" in database "testdb"
+    Then the response status should be 202
+    When I wait for the query to finish
+    Then the response status should be 200
+    And the query status should be "succeeded"
+    And the query result should have 5 rows
+
+  Scenario: Query results are limited to the requested number of rows
+    When I run the query "SELECT generate_series(1, 5) AS n" in database "testdb" with at most 3 rows
+    Then the response status should be 202
+    When I wait for the query to finish
+    Then the query status should be "succeeded"
+    And the query result should have 3 rows
+    And the query result should be truncated
+
+  Scenario: User cancels a long running query
+    When I run the query "SELECT pg_sleep(60)" in database "testdb"
+    Then the response status should be 202
+    When I cancel the query
+    Then the response status should be 200
+    And the query status should be "cancelled"
+
+  Scenario: Session state left by a query does not reach the next one
+    Given the application runs with settings:
+      | db.pool.size | 1 |
+    And I connect to database "testdb" as "query_user" with password "query_pass"
+    When I run the query "SET application_name = 'leftover'; CREATE TEMP TABLE leftover (n INT)" in database "testdb"
+    And I wait for the query to finish
+    Then the query status should be "succeeded"
+    When I run the query "SELECT CASE current_setting('application_name') WHEN 'leftover' THEN 'kept' ELSE 'reset' END || ':' || count(*) FROM pg_tables WHERE tablename = 'leftover'" in database "testdb"
+    And I wait for the query to finish
+    Then the query status should be "succeeded"
+    And the query result should be "reset:0"
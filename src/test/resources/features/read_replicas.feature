@@ -0,0 +1,86 @@
+Feature: Reads from Replicas
+  As an operator with read replicas of the database
+  I want reads to go to a replica only while it is fresh enough
+  So that the primary is spared without users seeing stale data
+
+  Background:
+    Given a temporary Postgres instance is running
+    And a read replica of the Postgres instance is running
+    And a Postgres user "replica_user" with password "replica_pass" exists
+    And a database "replica_db" exists
+    And the user "replica_user" has privilege to see the database "replica_db"
+    And a schema "replica_schema" exists in database "replica_db"
+    And the user "replica_user" has privilege to see the schema "replica_schema" in "replica_db"
+    And a table "replica_table" exists in schema "replica_schema" in database "replica_db"
+    And the user "replica_user" has privilege to see the table "replica_table" in schema "replica_schema" in database "replica_db"
+    And the user "replica_user" has privilege to insert into the table "replica_table" in schema "replica_schema" in database "replica_db"
+    And the table "replica_table" in schema "replica_schema" in database "replica_db" has 2 rows
+    And the replica has caught up with the primary
+
+  Scenario: Rows are read from a replica that has caught up
+    Given the application reads from the replica with at most 5000 ms lag
+    And I connect to database "replica_db" as "replica_user" with password "replica_pass"
+    Then the metrics should come to include 'pogrejab_replica_lag_seconds{replica="0"} 0'
+    When I request 10 rows of table "replica_table" in schema "replica_schema" in database "replica_db"
+    Then the response status should be 200
+    And the response should contain 2 rows
+    When I request the metrics
+    Then the metrics should include 'pogrejab_read_routing_total{target="replica"} 1'
+    And the metrics should include 'pogrejab_read_routing_total{target="primary"} 0'
+
+  Scenario: Reads stay on the primary while the replica lags more than the limit
+    Given the application reads from the replica with at most 1000 ms lag
+    And I connect to database "replica_db" as "replica_user" with password "replica_pass"
+    When replay is paused on the replica
+    And the table "replica_table" in schema "replica_schema" in database "replica_db" has 3 rows
+    Then the metric 'pogrejab_replica_lag_seconds{replica="0"}' should come to exceed 1.0
+    When I request 10 rows of table "replica_table" in schema "replica_schema" in database "replica_db"
+    Then the response status should be 200
+    And the response should contain 5 rows
+    When I request the metrics
+    Then the metrics should include 'pogrejab_read_routing_total{target="replica"} 0'
+    And the metrics should include 'pogrejab_read_routing_total{target="primary"} 1'
+
+  Scenario: A session reads its own import before the replica has replayed it
+    Given the application reads from the replica with at most 60000 ms lag
+    And I connect to database "replica_db" as "replica_user" with password "replica_pass"
+    Then the metrics should come to include 'pogrejab_replica_lag_seconds{replica="0"} 0'
+    When replay is paused on the replica
+    And I import into table "replica_table" in schema "replica_schema" in database "replica_db":
+      """
+      id
+      10
+      11
+      12
+      """
+    Then the response status should be 200
+    And the import should have loaded 3 rows
+    When I request 10 rows of table "replica_table" in schema "replica_schema" in database "replica_db"
+    Then the response status should be 200
+    And the response should contain 5 rows
+    When I request the metrics
+    Then the metrics should include 'pogrejab_read_routing_total{target="replica"} 0'
+
+  Scenario: A promoted replica is no longer read from
+    Given the application reads from the replica with at most 5000 ms lag
+    And I connect to database "replica_db" as "replica_user" with password "replica_pass"
+    When the replica is promoted
+    Then the metrics should come to include 'pogrejab_replica_lag_seconds{replica="0"} -1'
+    When I request 10 rows of table "replica_table" in schema "replica_schema" in database "replica_db"
+    Then the response status should be 200
+    And the response should contain 2 rows
+    When I request the metrics
+    Then the metrics should include 'pogrejab_read_routing_total{target="primary"} 1'
+
+  Scenario: Reads go to the primary when the replica cannot be reached
+    Given the application reads from the replica with at most 5000 ms lag
+    And I connect to database "replica_db" as "replica_user" with password "replica_pass"
+    Then the metrics should come to include 'pogrejab_replica_lag_seconds{replica="0"} 0'
+    When the replica is stopped
+    Then the metrics should come to include 'pogrejab_replica_lag_seconds{replica="0"} -1'
+    When I request 10 rows of table "replica_table" in schema "replica_schema" in database "replica_db"
+    Then the response status should be 200
+    And the response should contain 2 rows
+    When I request the metrics
+    Then the metrics should include 'pogrejab_read_routing_total{target="replica"} 0'
+    And the metrics should include 'pogrejab_read_routing_total{target="primary"} 1'
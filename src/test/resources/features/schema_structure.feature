@@ -0,0 +1,29 @@
+Feature: Schema Structure
+  As a logged-in user
+  I want to see the columns, keys and indexes of the tables in a schema
+  So that I know how the tables are built before querying them
+
+  Background:
+    Given a temporary Postgres instance is running
+    And a Postgres user "structure_user" with password "structure_pass" exists
+    And a database "structure_test_db" exists
+    And the user "structure_user" has privilege to see the database "structure_test_db"
+    And I connect to database "structure_test_db" as "structure_user" with password "structure_pass"
+    And a schema "structure_schema" exists in database "structure_test_db"
+    And the user "structure_user" has privilege to see the schema "structure_schema" in "structure_test_db"
+    And a table "visible_table" exists in schema "structure_schema" in database "structure_test_db"
+    And a table "hidden_table" exists in schema "structure_schema" in database "structure_test_db"
+    And the user "structure_user" has privilege to see the table "visible_table" in schema "structure_schema" in database "structure_test_db"
+
+  Scenario: User reads the structure of the tables they may read
+    When I request the structure of schema "structure_schema" in database "structure_test_db"
+    Then the response status should be 200
+    And the structure should list table "visible_table"
+    And the structure should not list table "hidden_table"
+    And the column "id" of table "visible_table" should be its primary key
+
+  Scenario: Renaming a column changes the structure and its entity tag
+    When I request the structure of schema "structure_schema" in database "structure_test_db"
+    Then the response status should be 200
+    When the column "id" of table "visible_table" in schema "structure_schema" in database "structure_test_db" is renamed to "visible_id"
+    Then the structure of schema "structure_schema" in database "structure_test_db" should come to list column "visible_id" of table "visible_table" under a new entity tag
@@ -0,0 +1,57 @@
+Feature: Session Connection Pools
+  As a user with several tabs or panels open
+  I want the requests of my session to run on connections of their own
+  So that one slow request does not hold up the others
+
+  Background:
+    Given a temporary Postgres instance is running
+    And the application runs with settings:
+      | db.pool.minSize              | 1    |
+      | db.pool.size                 | 2    |
+      | db.pool.maxWait              | 500  |
+      | db.pool.idleTimeoutMs        | 1000 |
+      | db.pool.validationIntervalMs | 0    |
+    And a Postgres user "pool_user" with password "pool_pass" exists
+    And a database "pool_db" exists
+    And the user "pool_user" has privilege to see the database "pool_db"
+    And a schema "pool_schema" exists in database "pool_db"
+    And the user "pool_user" has privilege to see the schema "pool_schema" in "pool_db"
+    And a table "slow_table" exists in schema "pool_schema" in database "pool_db"
+    And the user "pool_user" has privilege to see the table "slow_table" in schema "pool_schema" in database "pool_db"
+    And I connect to database "pool_db" as "pool_user" with password "pool_pass"
+
+  Scenario: Requests of a session run in parallel up to the pool size
+    Given the table "slow_table" in schema "pool_schema" in database "pool_db" is locked
+    When I request 10 rows of table "slow_table" in schema "pool_schema" in database "pool_db" 2 times at once
+    Then 2 connections of user "pool_user" should come to wait for a lock
+    When I request the metrics
+    Then the metrics should include 'pogrejab_session_connections{state="in_use"} 2'
+    And the metrics should include 'pogrejab_session_connections_opened_total 2'
+    When I request the list of schemas for database "pool_db"
+    Then the response status should be 503
+    And the response should contain an error message
+    When the table lock is released
+    Then the requests made at once should all get status 200
+    When I request the metrics
+    Then the metrics should include 'pogrejab_session_connection_borrows_total{result="timeout"} 1'
+    And the metrics should include 'pogrejab_session_connections{state="in_use"} 0'
+
+  Scenario: Idle connections are closed down to the minimum size
+    Given the table "slow_table" in schema "pool_schema" in database "pool_db" is locked
+    When I request 10 rows of table "slow_table" in schema "pool_schema" in database "pool_db" 2 times at once
+    Then 2 connections of user "pool_user" should come to wait for a lock
+    When the table lock is released
+    Then the requests made at once should all get status 200
+    And the user "pool_user" should come to have 1 connection open
+    When I request the metrics
+    Then the metrics should include 'pogrejab_session_connections{state="open"} 1'
+    And the metrics should include 'pogrejab_session_connections_closed_total 1'
+
+  Scenario: A connection closed by the server is replaced when borrowed
+    When the connections of user "pool_user" are terminated
+    And I request the list of schemas for database "pool_db"
+    Then the response status should be 200
+    And the response should contain schema "pool_schema"
+    When I request the metrics
+    Then the metrics should include 'pogrejab_session_connections_invalid_total 1'
+    And the metrics should include 'pogrejab_session_connections_opened_total 2'
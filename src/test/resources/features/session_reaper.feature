@@ -0,0 +1,54 @@
+Feature: Session Reaper
+  As an operator of the web application
+  I want sessions to end when they are idle, too old or too many
+  So that their connections do not pile up until Postgres runs out
+
+  Background:
+    Given a temporary Postgres instance is running
+    And a Postgres user "reaper_user" with password "reaper_pass" exists
+
+  Scenario: An idle session is ended
+    Given the application runs with settings:
+      | session.idleTimeoutMs | 1000 |
+      | session.reaperTickMs  | 100  |
+    When I log in as "reaper_user" with password "reaper_pass" as session "first"
+    And I request the list of databases
+    Then the response status should be 200
+    And the metrics should come to include 'pogrejab_sessions_evicted_total{reason="idle"} 1'
+    And the metrics should include 'pogrejab_sessions{state="live"} 0'
+    When I request the list of databases
+    Then the response status should be 401
+
+  Scenario: A session in use is ended at the absolute timeout
+    Given the application runs with settings:
+      | session.idleTimeoutMs     | 60000 |
+      | session.absoluteTimeoutMs | 1500  |
+      | session.reaperTickMs      | 100   |
+    When I log in as "reaper_user" with password "reaper_pass" as session "first"
+    And I request the list of databases
+    Then the response status should be 200
+    And the metrics should come to include 'pogrejab_sessions_evicted_total{reason="expired"} 1'
+    And the metrics should include 'pogrejab_sessions_evicted_total{reason="idle"} 0'
+    When I request the list of databases
+    Then the response status should be 401
+
+  Scenario: The least recently used session is ended when sessions reach the cap
+    Given the application runs with settings:
+      | session.maxCount     | 2   |
+      | session.reaperTickMs | 100 |
+    When I log in as "reaper_user" with password "reaper_pass" as session "first"
+    And I log in as "reaper_user" with password "reaper_pass" as session "second"
+    And I switch to session "first"
+    And I request the list of databases
+    Then the response status should be 200
+    When I log in as "reaper_user" with password "reaper_pass" as session "third"
+    And I request the metrics
+    Then the metrics should include 'pogrejab_sessions_evicted_total{reason="over_capacity"} 1'
+    And the metrics should include 'pogrejab_sessions{state="live"} 2'
+    And the metrics should include 'pogrejab_sessions{state="idle"} 2'
+    When I switch to session "second"
+    And I request the list of databases
+    Then the response status should be 401
+    When I switch to session "first"
+    And I request the list of databases
+    Then the response status should be 200
@@ -0,0 +1,76 @@
+Feature: Shared Session Mode
+  As an operator of a busy server
+  I want login sessions to share a pool of service role connections
+  So that the connection count does not grow with the number of users
+
+  Background:
+    Given a temporary Postgres instance is running
+    And the application runs in shared session mode with 1 shared connection
+    And a Postgres user "shared_alice" with password "alice_pass" exists
+    And a Postgres user "shared_bob" with password "bob_pass" exists
+    And a database "shared_db" exists
+    And temporary tables are not allowed in database "shared_db"
+    And the user "shared_alice" has privilege to see the database "shared_db"
+    And the user "shared_bob" has privilege to see the database "shared_db"
+    And a schema "shared_schema" exists in database "shared_db"
+    And the user "shared_alice" has privilege to see the schema "shared_schema" in "shared_db"
+    And the user "shared_bob" has privilege to see the schema "shared_schema" in "shared_db"
+    And a table "alice_table" exists in schema "shared_schema" in database "shared_db"
+    And a table "bob_table" exists in schema "shared_schema" in database "shared_db"
+    And the user "shared_alice" has privilege to see the table "alice_table" in schema "shared_schema" in database "shared_db"
+    And the user "shared_bob" has privilege to see the table "bob_table" in schema "shared_schema" in database "shared_db"
+
+  Scenario: Each user lists only the tables their role may see
+    When I connect to database "shared_db" as "shared_alice" with password "alice_pass"
+    And I request the list of tables for schema "shared_schema" in database "shared_db"
+    Then the response status should be 200
+    And the response should contain table "alice_table"
+    And the response should not contain table "bob_table"
+    When I connect to database "shared_db" as "shared_bob" with password "bob_pass"
+    And I request the list of tables for schema "shared_schema" in database "shared_db"
+    Then the response status should be 200
+    And the response should contain table "bob_table"
+    And the response should not contain table "alice_table"
+    And the shared connections of database "shared_db" should be back to the service role
+
+  Scenario: Row level security applies to the logged-in user
+    Given a table "notes" in schema "shared_schema" in database "shared_db" shows each user only their own rows
+    And the user "shared_alice" owns 2 rows of table "notes" in schema "shared_schema" in database "shared_db"
+    And the user "shared_bob" owns 3 rows of table "notes" in schema "shared_schema" in database "shared_db"
+    When I connect to database "shared_db" as "shared_alice" with password "alice_pass"
+    And I request 10 rows of table "notes" in schema "shared_schema" in database "shared_db"
+    Then the response status should be 200
+    And the response should contain 2 rows
+    When I connect to database "shared_db" as "shared_bob" with password "bob_pass"
+    And I request 10 rows of table "notes" in schema "shared_schema" in database "shared_db"
+    Then the response status should be 200
+    And the response should contain 3 rows
+    And the shared connections of database "shared_db" should be back to the service role
+
+  Scenario: Ad-hoc SQL and importing are refused
+    When I connect to database "shared_db" as "shared_alice" with password "alice_pass"
+    And I run the query "RESET ROLE" in database "shared_db"
+    Then the response status should be 403
+    When I import into table "alice_table" in schema "shared_schema" in database "shared_db":
+      """
+      10
+      """
+    Then the response status should be 403
+
+  Scenario: A user who may create temporary tables cannot log in
+    Given the user "shared_alice" may create temporary tables in database "shared_db"
+    When I send a POST request to "/api/login" with credentials:
+      | username | shared_alice |
+      | password | alice_pass   |
+      | dbName   | shared_db    |
+    Then the response status should be 403
+    And the response should contain an error message
+
+  Scenario: A user who may create objects in a schema cannot log in
+    Given the user "shared_bob" may create objects in schema "shared_schema" in "shared_db"
+    When I send a POST request to "/api/login" with credentials:
+      | username | shared_bob |
+      | password | bob_pass   |
+      | dbName   | shared_db  |
+    Then the response status should be 403
+    And the response should contain an error message
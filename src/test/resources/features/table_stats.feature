@@ -0,0 +1,39 @@
+Feature: Table Statistics
+  As a logged-in user
+  I want to see how big the tables in a schema are
+  So that I know what to expect before opening one
+
+  Background:
+    Given a temporary Postgres instance is running
+    And a Postgres user "stats_user" with password "stats_pass" exists
+    And a database "stats_test_db" exists
+    And the user "stats_user" has privilege to see the database "stats_test_db"
+    And I connect to database "stats_test_db" as "stats_user" with password "stats_pass"
+    And a schema "stats_schema" exists in database "stats_test_db"
+    And the user "stats_user" has privilege to see the schema "stats_schema" in "stats_test_db"
+    And a table "allowed_table" exists in schema "stats_schema" in database "stats_test_db"
+    And a table "secret_table" exists in schema "stats_schema" in database "stats_test_db"
+    And the user "stats_user" has privilege to see the table "allowed_table" in schema "stats_schema" in database "stats_test_db"
+    And the table "allowed_table" in schema "stats_schema" in database "stats_test_db" has 5 rows
+
+  Scenario: User lists statistics of the tables they may read
+    When I request the table statistics of schema "stats_schema" in database "stats_test_db"
+    Then the response status should be 200
+    And the statistics should list table "allowed_table"
+    And the statistics should not list table "secret_table"
+
+  Scenario: User gets an exact row count counted in the background
+    When I request an exact row count of table "allowed_table" in schema "stats_schema" in database "stats_test_db"
+    Then the response status should be 200
+    And the exact row count should become 5
+
+  Scenario: User cannot get statistics of a table they have no access to
+    When I request an exact row count of table "secret_table" in schema "stats_schema" in database "stats_test_db"
+    Then the response status should be 404
+
+  Scenario: A view has no statistics or exact row count
+    Given a view "allowed_view" of table "allowed_table" exists in schema "stats_schema" in database "stats_test_db"
+    And the user "stats_user" has privilege to see the table "allowed_view" in schema "stats_schema" in database "stats_test_db"
+    When I request an exact row count of table "allowed_view" in schema "stats_schema" in database "stats_test_db"
+    Then the response status should be 404
+    And the response should contain an error message